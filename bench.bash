@@ -0,0 +1,8 @@
+# benchmark every phase of the compiler, see "bash bench.bash -help"
+# results are printed to stdout
+
+set -e
+cd "$(dirname "$0")"
+mkdir -p bin/bench
+find ./src ./bench -name *.java | javac -d bin/bench -classpath "lib/antlr-4.6-complete.jar" @/dev/stdin
+java -cp "bin/bench:lib/antlr-4.6-complete.jar" com.mercy.compiler.Benchmark.PhaseBenchmark "$@"
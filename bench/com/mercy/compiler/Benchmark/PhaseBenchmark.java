@@ -0,0 +1,211 @@
+package com.mercy.compiler.Benchmark;
+
+import com.mercy.compiler.Benchmark.PhasePipeline.Phase;
+import com.mercy.compiler.Option;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static java.lang.System.out;
+
+/**
+ * Benchmark for every phase of Main.compile.
+ * For each input and each phase, the previous phases are run untimed, then the phase itself is measured.
+ * Reports throughput (ops/s) and allocation (bytes/op, MB/s) per phase.
+ */
+public class PhaseBenchmark {
+    private static int warmup = 5;
+    private static int iteration = 10;
+    private static boolean verbose = false;
+    private static List<Phase> phases = new ArrayList<>(Arrays.asList(Phase.values()));
+    private static List<String> names = new ArrayList<>();
+    private static List<String> sources = new ArrayList<>();
+    private static Option option = new Option();   // of every compilation
+
+    private static com.sun.management.ThreadMXBean threadBean;
+
+    private static class Result {
+        long time;    // ns
+        long bytes;
+        int ops;
+
+        void add(Result other) {
+            time += other.time;
+            bytes += other.bytes;
+            ops += other.ops;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        parseOption(args);
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        // compiler passes print a lot of debug info to stderr
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+        option.printRemoveInfo = option.printInlineInfo = option.printNaiveAllocatorInfo = false;
+
+        Map<Phase, Result> total = new EnumMap<>(Phase.class);
+        for (Phase phase : phases)
+            total.put(phase, new Result());
+
+        try {
+            for (int i = 0; i < sources.size(); i++) {
+                if (verbose)
+                    out.println("==== " + names.get(i) + " ====");
+                for (Phase phase : phases) {
+                    Result result = measure(sources.get(i), phase);
+                    total.get(phase).add(result);
+                    if (verbose)
+                        printRow(phase.name(), result);
+                }
+            }
+        } finally {
+            System.setErr(err);
+        }
+
+        out.println("==== total over " + sources.size() + " inputs (" + iteration + " iterations, "
+                + warmup + " warmup) ====");
+        printHeader();
+        for (Phase phase : phases)
+            printRow(phase.name(), total.get(phase));
+    }
+
+    private static Result measure(String source, Phase phase) {
+        Result result = new Result();
+        for (int i = 0; i < warmup + iteration; i++) {
+            PhasePipeline pipeline = new PhasePipeline(source, option);
+            pipeline.runUntil(phase);
+
+            long bytes = allocatedBytes();
+            long time = System.nanoTime();
+            pipeline.run(phase);
+            time = System.nanoTime() - time;
+            bytes = allocatedBytes() - bytes;
+
+            if (i >= warmup) {
+                result.time += time;
+                result.bytes += bytes;
+                result.ops++;
+            }
+        }
+        return result;
+    }
+
+    // of all threads, the backend phases run on worker threads
+    private static long allocatedBytes() {
+        if (threadBean == null)
+            return 0;
+        long ret = 0;
+        for (long bytes : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds())) {
+            if (bytes > 0)
+                ret += bytes;
+        }
+        return ret;
+    }
+
+    private static void printHeader() {
+        out.printf("%-12s %12s %12s %14s %12s\n", "phase", "ms/op", "ops/s", "KB/op", "MB/s");
+    }
+
+    private static void printRow(String name, Result result) {
+        double seconds = result.time / 1e9;
+        double msPerOp = result.time / 1e6 / result.ops;
+        double opsPerSecond = result.ops / seconds;
+        double kbPerOp = result.bytes / 1024.0 / result.ops;
+        double mbPerSecond = result.bytes / 1024.0 / 1024.0 / seconds;
+        out.printf("%-12s %12.3f %12.1f %14.1f %12.1f\n", name, msPerOp, opsPerSecond, kbPerOp, mbPerSecond);
+    }
+
+    private static void printUsage() {
+        out.println("Usage: bash bench.bash [options] [files]");
+        out.println("Options:");
+        out.println("  -warmup    <n>     : warmup iterations per phase (default 5)");
+        out.println("  -iter      <n>     : measured iterations per phase (default 10)");
+        out.println("  -phase     <name>  : only measure this phase, can be repeated");
+        out.println("  -synthetic <f,s,e> : add a generated input with f functions, s statements, e-term expressions");
+        out.println("  -v                 : print the result of every input");
+        out.println("  -parse-tree        : build the whole parse tree in PARSE and the AST in AST_BUILD");
+        out.println("  -help              : print this help page");
+        out.println("Without files, all programs in testcase/final and two synthetic inputs are used.");
+        System.exit(0);
+    }
+
+    private static void parseOption(String[] args) throws Exception {
+        List<Phase> selected = new ArrayList<>();
+        List<String> files = new ArrayList<>();
+        boolean synthetic = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-warmup":
+                    warmup = Integer.parseInt(args[++i]);
+                    break;
+                case "-iter":
+                    iteration = Integer.parseInt(args[++i]);
+                    break;
+                case "-phase":
+                    selected.add(Phase.valueOf(args[++i].toUpperCase()));
+                    break;
+                case "-synthetic": {
+                    String[] para = args[++i].split(",");
+                    addSynthetic(Integer.parseInt(para[0]), Integer.parseInt(para[1]), Integer.parseInt(para[2]));
+                    synthetic = true;
+                    break;
+                }
+                case "-v":
+                    verbose = true;
+                    break;
+                case "-parse-tree":
+                    option.enableStreamingAST = false;
+                    break;
+                case "-help":
+                    printUsage();
+                    break;
+                default:
+                    files.add(args[i]);
+            }
+        }
+
+        if (!selected.isEmpty())
+            phases = selected;
+
+        if (files.isEmpty() && !synthetic) {
+            File[] all = new File("testcase/final").listFiles();
+            if (all != null) {
+                Arrays.sort(all);
+                for (File file : all) {
+                    if (file.isFile() && file.getName().endsWith(".mx"))
+                        files.add(file.getPath());
+                }
+            }
+            addSynthetic(200, 20, 20);  // many functions
+            addSynthetic(4, 200, 400);  // large functions
+        }
+
+        for (String file : files) {
+            names.add(file);
+            sources.add(new String(Files.readAllBytes(new File(file).toPath()), StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void addSynthetic(int functions, int statements, int exprLength) {
+        names.add("synthetic(" + functions + "," + statements + "," + exprLength + ")");
+        sources.add(new SyntheticSource(functions, statements, exprLength).generate());
+    }
+}
@@ -0,0 +1,112 @@
+package com.mercy.compiler.Benchmark;
+
+import com.mercy.compiler.BackEnd.*;
+import com.mercy.compiler.CompilationContext;
+import com.mercy.compiler.FrontEnd.AST;
+import com.mercy.compiler.FrontEnd.ASTBuilder;
+import com.mercy.compiler.FrontEnd.IterativeParseTreeWalker;
+import com.mercy.compiler.FrontEnd.TwoStageParser;
+import com.mercy.compiler.Option;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+
+/**
+ * The passes of Main.compile, split so that each of them can be run (and timed) on its own.
+ * A pipeline holds the state of one compilation, phases must be run in order.
+ */
+public class PhasePipeline {
+    public enum Phase {
+        PARSE, AST_BUILD, SEMANTIC, IR_BUILD, EMIT, CFG, DATAFLOW, ALLOCATE, TRANSLATE
+    }
+
+    private String source;
+    private CompilationContext context;
+    private ParseTree tree;
+    private AST ast;
+    private IRBuilder irBuilder;
+    private InstructionEmitter emitter;
+    private RegisterConfig registerConfig;
+    private String asm;
+    private int next = 0;
+
+    public PhasePipeline(String source, Option option) {
+        this.source = source;
+        this.context = new CompilationContext(option);
+    }
+
+    // run all phases before 'phase'
+    public void runUntil(Phase phase) {
+        while (next < phase.ordinal())
+            run(Phase.values()[next]);
+    }
+
+    public void run(Phase phase) {
+        if (phase.ordinal() != next)
+            throw new IllegalStateException("phase " + phase + " runs out of order");
+        next++;
+
+        switch (phase) {
+            case PARSE: {
+                if (context.option().enableStreamingAST)    // the AST is built while parsing, AST_BUILD does nothing
+                    ast = new TwoStageParser().parseAST(new ANTLRInputStream(source));
+                else
+                    tree = new TwoStageParser().parse(new ANTLRInputStream(source));
+                break;
+            }
+            case AST_BUILD: {
+                if (tree == null)
+                    break;
+                ASTBuilder listener = new ASTBuilder();
+                new IterativeParseTreeWalker().walk(listener, tree);
+                ast = listener.getAST();
+                tree = null;
+                break;
+            }
+            case SEMANTIC:
+                ast.loadLibrary(context);
+                ast.resolveSymbol();
+                ast.checkType();
+                if (context.option().enableOutputIrrelevantElimination)
+                    ast.eliminateOutputIrrelevantNode();
+                break;
+            case IR_BUILD:
+                irBuilder = new IRBuilder(ast);
+                irBuilder.generateIR();
+                break;
+            case EMIT:
+                emitter = new InstructionEmitter(irBuilder);
+                emitter.emit();
+                break;
+            case CFG:
+                new ControlFlowAnalyzer(emitter).buildControlFlow();
+                break;
+            case DATAFLOW:
+                new DataFlowAnalyzer(emitter).optimize();
+                break;
+            case ALLOCATE:
+                registerConfig = new RegisterConfig();
+                if (context.option().enableGlobalRegisterAllocation)
+                    new Allocator(emitter, registerConfig).allocate();
+                else
+                    new NaiveAllocator(emitter, registerConfig).allocate();
+                break;
+            case TRANSLATE:
+                StringWriter writer = new StringWriter();
+                try {
+                    new Translator(emitter, registerConfig).translate(writer);
+                } catch (IOException e) {  // never for a StringWriter
+                    throw new UncheckedIOException(e);
+                }
+                asm = writer.toString();
+                break;
+        }
+    }
+
+    public String asm() {
+        return asm;
+    }
+}
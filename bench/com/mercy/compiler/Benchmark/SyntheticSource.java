@@ -0,0 +1,105 @@
+package com.mercy.compiler.Benchmark;
+
+import java.util.Random;
+
+/**
+ * Generator of large M* programs, used to stress the compiler beyond the size of the test cases.
+ * The output is deterministic for the same arguments.
+ */
+public class SyntheticSource {
+    private int functions;
+    private int statements;
+    private int exprLength;
+    private Random random;
+    private StringBuilder sb;
+
+    /**
+     * @param functions  number of generated functions (besides main)
+     * @param statements number of statements (and local variables) in every function
+     * @param exprLength number of operands in the long arithmetic expressions
+     */
+    public SyntheticSource(int functions, int statements, int exprLength) {
+        this.functions = functions;
+        this.statements = statements;
+        this.exprLength = exprLength;
+    }
+
+    public String generate() {
+        random = new Random(functions * 31 + statements * 17 + exprLength);
+        sb = new StringBuilder();
+
+        sb.append("int[] data = new int[256];\n");
+        sb.append("int seed = 7;\n\n");
+        for (int i = 0; i < functions; i++)
+            genFunction(i);
+
+        sb.append("int main() {\n");
+        sb.append("    int i;\n");
+        sb.append("    for (i = 0; i < 256; i++)\n");
+        sb.append("        data[i] = (i * 37 + seed) % 101;\n");
+        sb.append("    int sum = 0;\n");
+        for (int i = 0; i < functions; i++)
+            sb.append("    sum = (sum + func_").append(i).append("(").append(i).append(", sum % 13, 3)) % 1000007;\n");
+        sb.append("    println(toString(sum));\n");
+        sb.append("    return 0;\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private void genFunction(int id) {
+        sb.append("int func_").append(id).append("(int a, int b, int c) {\n");
+
+        // many locals with overlapping live ranges
+        for (int i = 0; i < statements; i++) {
+            sb.append("    int v").append(i).append(" = ");
+            sb.append(operand(i)).append(" ").append(op()).append(" ").append(operand(i)).append(";\n");
+        }
+
+        // a loop nest over the global array
+        sb.append("    int i;\n    int j;\n    int acc = 0;\n");
+        sb.append("    for (i = 0; i < 16; i++) {\n");
+        sb.append("        for (j = 0; j < 16; j++) {\n");
+        sb.append("            acc = acc + data[i * 16 + j] * (i + j);\n");
+        sb.append("            if (acc > 100000) acc = acc - 100000;\n");
+        sb.append("        }\n");
+        sb.append("    }\n");
+
+        // a long expression
+        sb.append("    int e = ");
+        for (int i = 0; i < exprLength; i++) {
+            if (i != 0)
+                sb.append(i % 8 == 0 ? "\n        + " : " + ");
+            sb.append(operand(statements)).append(" * ").append(random.nextInt(9) + 1);
+        }
+        if (exprLength == 0)
+            sb.append("0");
+        sb.append(";\n");
+
+        // use every local, so that nothing is dead
+        sb.append("    int r = (acc + e) % 1000;\n");
+        for (int i = 0; i < statements; i++)
+            sb.append("    r = (r + v").append(i).append(") % 1000007;\n");
+        sb.append("    return r;\n");
+        sb.append("}\n\n");
+    }
+
+    private String operand(int defined) {
+        int x = random.nextInt(defined + 4);
+        switch (x) {
+            case 0: return "a";
+            case 1: return "b";
+            case 2: return "c";
+            case 3: return Integer.toString(random.nextInt(100));
+            default: return "v" + (x - 4);
+        }
+    }
+
+    private String op() {
+        switch (random.nextInt(4)) {
+            case 0:  return "+";
+            case 1:  return "-";
+            case 2:  return "*";
+            default: return "^";
+        }
+    }
+}
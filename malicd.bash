@@ -0,0 +1,57 @@
+# client of the compile server, which keeps the compiler resident to save the start-up of the JVM.
+#   bash malicd.bash start              : start a server in the background
+#   bash malicd.bash stop               : stop the server
+#   bash malicd.bash [compiler options] : compile through the server, e.g. bash malicd.bash -in a.mx -out a.asm
+# when no server is running, the options are passed to "java -jar Malic.jar" directly.
+
+DIR="$(cd "$(dirname "$0")" && pwd)"
+SERVER_FILE="$DIR/.malicd"
+
+# send a request, print the diagnostics to stderr and return the exit status of the compilation (255 for no server)
+request() {
+    [ -r "$SERVER_FILE" ] || return 255
+    read -r PORT TOKEN < "$SERVER_FILE"
+    { exec 3<>"/dev/tcp/127.0.0.1/$PORT"; } 2> /dev/null || return 255
+
+    local line="$TOKEN"$'\t'"$PWD" arg
+    for arg in "$@"; do
+        line+=$'\t'"$arg"
+    done
+    printf '%s\n' "$line" >&3
+
+    # the last line is "exit <status>"
+    local last="" first=1
+    while IFS= read -r line <&3; do
+        [ -n "$first" ] || printf '%s\n' "$last" >&2
+        last="$line"
+        first=""
+    done
+    exec 3<&-
+    [[ "$last" == "exit "* ]] || return 255
+    return "${last#exit }"
+}
+
+case "$1" in
+    start)
+        cd "$DIR"
+        rm -f "$SERVER_FILE"
+        nohup java -jar Malic.jar --server "$SERVER_FILE" > /dev/null 2> .malicd.log &
+        for i in $(seq 100); do
+            [ -s "$SERVER_FILE" ] && exit 0
+            sleep 0.1
+        done
+        echo "compile server does not start, see .malicd.log" >&2
+        exit 1
+        ;;
+    stop)
+        request --shutdown 2> /dev/null
+        exit 0
+        ;;
+esac
+
+request "$@"
+status=$?
+if [ $status -eq 255 ]; then
+    exec java -jar "$DIR/Malic.jar" "$@"
+fi
+exit $status
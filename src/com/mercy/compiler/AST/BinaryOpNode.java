@@ -4,6 +4,9 @@ import com.mercy.compiler.FrontEnd.ASTVisitor;
 import com.mercy.compiler.Type.Type;
 import com.mercy.compiler.Utility.InternalError;
 
+import java.util.LinkedList;
+import java.util.List;
+
 /**
  * Created by mercy on 17-3-18.
  */
@@ -18,12 +21,14 @@ public class BinaryOpNode extends ExprNode {
     private BinaryOp operator;
     private ExprNode left, right;
     private Type type;
+    private Location location;      // of the leftmost operand, kept here since a chain can be very deep
 
     public BinaryOpNode(ExprNode left, BinaryOp op, ExprNode right) {
         super();
         this.operator = op;
         this.left = left;
         this.right = right;
+        this.location = left.location();
     }
 
     public BinaryOpNode(Type t, ExprNode left, BinaryOp op, ExprNode right) {
@@ -32,6 +37,7 @@ public class BinaryOpNode extends ExprNode {
         this.operator = op;
         this.left = left;
         this.right = right;
+        this.location = left.location();
     }
 
     public BinaryOp operator() {
@@ -48,6 +54,7 @@ public class BinaryOpNode extends ExprNode {
 
     public void setLeft(ExprNode left) {
         this.left = left;
+        this.location = left.location();
     }
 
     public ExprNode right() {
@@ -71,7 +78,20 @@ public class BinaryOpNode extends ExprNode {
 
     @Override
     public Location location() {
-        return left.location();
+        return location;
+    }
+
+    /*
+     * The parser builds a chain like a / b / c as a left-leaning tree, as deep as the chain is long.
+     * Visitors walk it by a loop instead of by recursion : the leftmost operand first, then the right operand
+     * and the node itself for every node down the left side, from the bottom up. Those nodes are returned here,
+     * they are of the class of this one, so the chain of a LogicalAndNode is made of LogicalAndNodes.
+     */
+    public List<BinaryOpNode> leftChain() {
+        LinkedList<BinaryOpNode> ret = new LinkedList<>();
+        for (ExprNode node = this; node.getClass() == getClass(); node = ((BinaryOpNode) node).left())
+            ret.addFirst((BinaryOpNode) node);
+        return ret;
     }
 
     @Override
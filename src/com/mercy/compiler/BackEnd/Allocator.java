@@ -1,5 +1,6 @@
 package com.mercy.compiler.BackEnd;
 
+import com.mercy.compiler.CompilationContext;
 import com.mercy.compiler.Entity.FunctionEntity;
 import com.mercy.compiler.Entity.ParameterEntity;
 import com.mercy.compiler.Entity.Scope;
@@ -18,6 +19,8 @@ import static java.lang.System.err;
 
 // George, Lal; Appel, Andrew W. (May 1996). "Iterated Register Coalescing"
 public class Allocator {
+    private CompilationContext context;
+    private Option option;
     private List<FunctionEntity> functionEntities;
     private List<Register> registers;
     private List<Reference> paraRegisterRef;
@@ -31,9 +34,17 @@ public class Allocator {
     private Scope globalScope;
 
     public Allocator (InstructionEmitter emitter, RegisterConfig regConfig) {
-        functionEntities = emitter.functionEntities();
+        this(emitter.context(), emitter.functionEntities(), emitter.globalScope(), regConfig);
+    }
+
+    // precolored references and worklists are modified by the allocation, so every function gets its own Allocator
+    private Allocator(CompilationContext context, List<FunctionEntity> functionEntities, Scope globalScope,
+                      RegisterConfig regConfig) {
+        this.context = context;
+        this.option = context.option();
+        this.functionEntities = functionEntities;
         this.regConfig = regConfig;
-        globalScope = emitter.globalScope();
+        this.globalScope = globalScope;
 
         // load registers
         rbp = regConfig.rbp();
@@ -87,37 +98,63 @@ public class Allocator {
     }
 
     public void allocate() {
-        for (FunctionEntity functionEntity : functionEntities) {
-            if (functionEntity.isInlined())
-                continue;
-            init(functionEntity);
-            loadPrecolord(functionEntity);
+        List<Allocator> allocators = context.scheduler().map(functionEntities,
+                entity -> new Allocator(context, functionEntities, globalScope, regConfig).allocate(entity));
+        for (Allocator allocator : allocators) {
+            spilledCount    += allocator.spilledCount;
+            coalescedCount  += allocator.coalescedCount;
+            overBudgetCount += allocator.overBudgetCount;
+            linearScanCount += allocator.linearScanCount;
+        }
+    }
+
+    private Allocator allocate(FunctionEntity functionEntity) {
+        init(functionEntity);
+        loadPrecolord(functionEntity);
+        if (option.enableLinearScanAllocation || option.linearScanFunctions.contains(functionEntity.name()))
+            allocateLinearScan(functionEntity);
+        else
             allocateFunction(functionEntity);
 
-            // set register
-            Set<Reference> allRef = new HashSet<>();
-            Set<Register>  regUsed = new HashSet<>();
+        // set register
+        Set<Reference> allRef = new HashSet<>();
+        Set<Register>  regUsed = new HashSet<>();
 
-            for (BasicBlock basicBlock : functionEntity.bbs()) {
-                for (Instruction ins : basicBlock.ins()) {
-                    replaceRegForIns(ins, allRef, regUsed);
-                }
+        for (BasicBlock basicBlock : functionEntity.bbs()) {
+            for (Instruction ins : basicBlock.ins()) {
+                replaceRegForIns(ins, allRef, regUsed);
             }
-            functionEntity.setAllReference(allRef);
-            LinkedList<Register> listRegUse = new LinkedList<>(regUsed);
-            functionEntity.setRegUsed(listRegUse);
-            if (iter != 1) // if someone is spilled
-                functionEntity.regUsed().add(rbp);
-            functionEntity.setLocalVariableOffset(localOffset);
         }
+        functionEntity.setAllReference(allRef);
+        LinkedList<Register> listRegUse = new LinkedList<>();
+        for (Register register : registers) {   // in a fixed order, the hash order varies with threads
+            if (regUsed.contains(register))
+                listRegUse.add(register);
+        }
+        functionEntity.setRegUsed(listRegUse);
+        if (localOffset > 0) // if someone is spilled
+            functionEntity.regUsed().add(rbp);
+        functionEntity.setLocalVariableOffset(localOffset);
+        coalescedCount += coalescedMoves.size();
+        return this;
     }
 
-    private void init(FunctionEntity entity) {
-        // global
-        edgeEdgeHashMap  = new HashMap<>();
-        edgeSet          = new LinkedHashSet<>();
-        simplifiedEdge   = new LinkedHashSet<>();
+    // statistics
+    private int spilledCount = 0, coalescedCount = 0, overBudgetCount = 0, linearScanCount = 0;
+    public int spilledCount() {
+        return spilledCount;
+    }
+    public int coalescedCount() {
+        return coalescedCount;
+    }
+    public int overBudgetCount() {
+        return overBudgetCount;
+    }
+    public int linearScanCount() {
+        return linearScanCount;
+    }
 
+    private void init(FunctionEntity entity) {
         // node set (disjoint)
         simplifyWorklist = new LinkedHashSet<>();
         initial          = new LinkedHashSet<>();
@@ -136,14 +173,16 @@ public class Allocator {
         worklistMoves    = new LinkedHashSet<>();
         activeMoves      = new LinkedHashSet<>();
 
-        initLivenessAnalysis(entity);
+        liveness = new LivenessAnalyzer(entity);
         // for spilled node
         localOffset = 0;
     }
 
     // global
-    private Set<Edge> edgeSet;
-    private Set<Edge> simplifiedEdge;
+    private InterferenceGraph graph;
+    private BitSet removed;   // nodes that are simplified or coalesced
+    private int[] mark;
+    private int markStamp;
     private int K;
     private int localOffset;
 
@@ -175,7 +214,14 @@ public class Allocator {
             //err.println(" === iter " + iter + " ===");
 
             livenessAnalysis(entity);
-            build(entity);
+            if (!build(entity)) {
+                // the function is too large for graph coloring
+                if (option.printGlobalAllocationInfo)
+                    err.println("interference graph of " + entity.name() + " exceeds the budget, use linear scan");
+                overBudgetCount++;
+                allocateLinearScan(entity);
+                return;
+            }
             makeWorklist();
             do {
                 if (!simplifyWorklist.isEmpty())
@@ -190,38 +236,25 @@ public class Allocator {
             } while (!simplifyWorklist.isEmpty() || !worklistMoves.isEmpty() || !freezeWorklist.isEmpty() || !spillWorklist.isEmpty());
             assignColors(entity);
             finish = spilledNodes.isEmpty();
+            spilledCount += spilledNodes.size();
             rewriteProgram(entity);
             iter++;
         } while (!finish);
     }
 
-    private List<BasicBlock> sorted;
-    private Set<BasicBlock> visited;
-    private void dfsSort(BasicBlock bb) {
-        sorted.add(bb);
-        visited.add(bb);
-        for (BasicBlock pre : bb.predecessor()) {
-            if (!visited.contains(pre)) {
-                dfsSort(pre);
-            }
-        }
-    }
-
-    private void initLivenessAnalysis(FunctionEntity entity) {
-        // sort blocks to boost iteration, iterate in reverse
-        sorted = new LinkedList<>();
-        visited = new HashSet<>();
-        ListIterator li = entity.bbs().listIterator(entity.bbs().size());
-        while (li.hasPrevious()) {
-            BasicBlock pre = (BasicBlock) li.previous();
-            if (!visited.contains(pre))
-                dfsSort(pre);
-        }
+    private LinearScanAllocator linearScan;
+    private void allocateLinearScan(FunctionEntity entity) {
+        if (linearScan == null)
+            linearScan = new LinearScanAllocator(colors, regConfig, option);
+        linearScan.allocateFunction(entity);
+        localOffset = linearScan.localOffset();
+        linearScanCount++;
     }
 
+    private LivenessAnalyzer liveness;
     private void livenessAnalysis(FunctionEntity entity) {
         // print Def and Use
-        if (Option.printGlobalAllocationInfo) {
+        if (option.printGlobalAllocationInfo) {
             err.println("====== USE & DEF ======");
             for (BasicBlock basicBlock : entity.bbs()) {
                 for (Instruction ins : basicBlock.ins()) {
@@ -239,136 +272,108 @@ public class Allocator {
             }
         }
 
-        /***** solve dataflow equation *****/
-        // in block
-        for (BasicBlock basicBlock : entity.bbs()) {
-            Set<Reference> def = basicBlock.def();
-            Set<Reference> use = basicBlock.use();
-            basicBlock.liveIn().clear();
-            basicBlock.liveOut().clear();
-            def.clear();
-            use.clear();
-            for (Instruction ins : basicBlock.ins()) {
-                for (Reference ref : ins.use()) {
-                    if (!def.contains(ref)) {
-                        use.add(ref);
-                    }
-                }
-                for (Reference ref : ins.def()) {
-                    def.add(ref);
-                }
-
-                if (iter == 0) { // first iteration
-                    initial.addAll(ins.allref());
+        if (iter == 0) { // first iteration
+            for (BasicBlock basicBlock : entity.bbs()) {
+                for (Instruction ins : basicBlock.ins()) {
+                    initial.addAll(ins.use());
+                    initial.addAll(ins.def());
                 }
             }
         }
-        // among blocks
-        boolean modified = true;
-        while (modified) {
-            modified = false;
-            for (BasicBlock bb : sorted) {
-                Set<Reference> newIn = new HashSet<>();
-                Set<Reference> right = new HashSet<>(bb.liveOut());
-                right.removeAll(bb.def());
-                newIn.addAll(bb.use());
-                newIn.addAll(right);
-
-                Set<Reference> newOut = new HashSet<>();
-                for (BasicBlock suc : bb.successor()) {
-                    newOut.addAll(suc.liveIn());
-                }
 
-                modified |= !bb.liveIn().equals(newIn) || !bb.liveOut().equals(newOut);
-
-                bb.setLiveIn(newIn);
-                bb.setLiveOut(newOut);
-            }
-        }
+        /***** solve dataflow equation *****/
+        liveness.analyze();
     }
 
-    private void build(FunctionEntity entity) {
+    // return false if the number of edges exceeds option.allocationEdgeBudget
+    private boolean build(FunctionEntity entity) {
+        // only once for a function, spilled temporaries are always colorable
+        int budget = iter == 0 ? option.allocationEdgeBudget : 0;
+
         // init edge and degree
-        simplifiedEdge.clear();
-        edgeSet.clear();
         initial.removeAll(precolored);
         for (Reference ref : initial) {
             ref.reset();
+            liveness.index(ref);
         }
         for (Reference ref : precolored) {
             ref.reset();
+            liveness.index(ref);
         }
+        graph = new InterferenceGraph(liveness.size());
+        removed = new BitSet(liveness.size());
+        mark = new int[liveness.size()];
+        markStamp = 0;
 
         // build inference graph
+        List<String> liveInfo = new ArrayList<>();
         for (BasicBlock basicBlock : entity.bbs()) {
-            HashSet<Reference> live = new HashSet<>(basicBlock.liveOut());
+            BitSet live = (BitSet) basicBlock.liveOut().clone();
 
             // generate an iterator. Start just after the last element.
-            ListIterator li = basicBlock.ins().listIterator(basicBlock.ins().size());
+            ListIterator<Instruction> li = basicBlock.ins().listIterator(basicBlock.ins().size());
             while (li.hasPrevious()) {
-                Set<Reference> tmp;
-                Instruction ins = (Instruction) li.previous();
-
-                for (Reference ref : live) {
-                    ref.addRefTime();
-                }
+                Instruction ins = li.previous();
 
-                tmp= new HashSet<>(live);  ins.setOut(tmp);
+                if (option.printGlobalAllocationInfo)
+                    liveInfo.add(String.format("%-20s out:%s", ins.toString(), liveString(live)));
 
                 if (ins instanceof Move && ((Move) ins).isRefMove()) {
-                    live.removeAll(ins.use());
+                    for (Reference ref : ins.use())
+                        live.clear(liveness.index(ref));
                     for (Reference ref : ins.def())
                         ref.moveList.add((Move)ins);
                     for (Reference ref : ins.use())
                         ref.moveList.add((Move)ins);
                     worklistMoves.add((Move)ins);
                 }
-                live.addAll(ins.def());
+                for (Reference ref : ins.def())
+                    live.set(liveness.index(ref));
                 for (Reference d : ins.def()) {
-                    for (Reference l : live) {
-                        addEdge(d, l);
+                    for (int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1)) {
+                        addEdge(d, liveness.reference(i));
                     }
                 }
 
-                live.removeAll(ins.def());
-                live.addAll(ins.use());
+                for (Reference ref : ins.def())
+                    live.clear(liveness.index(ref));
+                for (Reference ref : ins.use())
+                    live.set(liveness.index(ref));
 
-                tmp= new HashSet<>(live); ins.setIn(tmp);
+                if (budget > 0 && graph.edgeNumber() > budget)
+                    return false;
             }
+            if (option.printGlobalAllocationInfo)
+                liveInfo.add("");
         }
 
-        if (Option.printGlobalAllocationInfo) {
+        if (option.printGlobalAllocationInfo) {
             // print Liveness Info
-            err.println("====== IN & OUT ======");
-            for (BasicBlock basicBlock : entity.bbs()) {
-                for (Instruction ins : basicBlock.ins()) {
-                    err.printf("%-20s in:", ins.toString());
-                    for (Reference reference : ins.in()) {
-                        err.print("  " + reference);
-                    }
-                    err.print("  out: ");
-                    for (Reference reference : ins.out()) {
-                        err.print("  " + reference);
-                    }
-                    err.println();
-                }
-                err.println();
-            }
-
+            err.println("====== OUT ======");
+            for (int i = liveInfo.size() - 1; i >= 0; i--)
+                err.println(liveInfo.get(i));
         }
 
-        if (Option.printGlobalAllocationInfo) {
+        if (option.printGlobalAllocationInfo) {
            /* err.println("====== EDGE ======");
             for (Reference u : initial) {
                 err.printf("%-10s:", u.name());
-                for (Reference v : u.adjList) {
-                    err.print( "  " + v.name());
+                int[] adj = graph.adjList(u.index);
+                for (int i = 0; i < graph.adjSize(u.index); i++) {
+                    err.print( "  " + liveness.reference(adj[i]).name());
                 }
                 err.println();
             }
             err.println();*/
         }
+        return true;
+    }
 
+    private String liveString(BitSet live) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1))
+            sb.append("  ").append(liveness.reference(i));
+        return sb.toString();
     }
 
     private void makeWorklist() {
@@ -388,21 +393,31 @@ public class Allocator {
 
         move(ref, simplifyWorklist, selectWorklist);
         selectStack.push(ref);
+        removed.set(ref.index);
 
-        Set<Reference> backup = new HashSet<>(ref.adjList);
-
-        for (Reference adj : backup) {
-            simplifiedEdge.add(new Edge(adj, ref));
-            simplifiedEdge.add(new Edge(ref, adj));
-            deleteEdge(ref, adj);
+        int[] adj = graph.adjList(ref.index);
+        for (int i = 0, size = graph.adjSize(ref.index); i < size; i++) {
+            Reference m = liveness.reference(adj[i]);
+            if (!isRemoved(m))
+                decreaseDegree(m);
         }
     }
 
+    // a node leaves the graph when it is simplified or coalesced, its edges are kept for assignColors
+    private boolean isRemoved(Reference ref) {
+        return removed.get(ref.index);
+    }
+
     private void decreaseDegree(Reference ref) {
         int d = ref.degree--;
         if (d == K) {
             enableMoves(ref);
-            ref.adjList.forEach(this::enableMoves);
+            int[] adj = graph.adjList(ref.index);
+            for (int i = 0, size = graph.adjSize(ref.index); i < size; i++) {
+                Reference m = liveness.reference(adj[i]);
+                if (!isRemoved(m))
+                    enableMoves(m);
+            }
 
             if (spillWorklist.contains(ref)) {
                 if (isMoveRelated(ref)) {
@@ -432,8 +447,12 @@ public class Allocator {
     }
 
     private boolean OK(Reference u, Reference v) {
-        for (Reference t : v.adjList) {
-            if (!(t.degree < K || precolored.contains(t) || edgeSet.contains(getEdge(t, u))))
+        int[] adj = graph.adjList(v.index);
+        for (int i = 0, size = graph.adjSize(v.index); i < size; i++) {
+            Reference t = liveness.reference(adj[i]);
+            if (isRemoved(t))
+                continue;
+            if (!(t.degree < K || precolored.contains(t) || graph.contains(t.index, u.index)))
                 return false;
         }
         return true;
@@ -441,21 +460,31 @@ public class Allocator {
 
     private boolean conservative(Reference u, Reference v) {
         int k = 0;
-        Set<Reference> adjs = new HashSet<>();
-        adjs.addAll(u.adjList); adjs.addAll(v.adjList);
-        for (Reference ref : adjs) {
-            if (ref.degree >= K)
-                k++;
+        markStamp++;
+        for (Reference ref : new Reference[]{u, v}) {
+            int[] adj = graph.adjList(ref.index);
+            for (int i = 0, size = graph.adjSize(ref.index); i < size; i++) {
+                if (mark[adj[i]] == markStamp)
+                    continue;
+                mark[adj[i]] = markStamp;
+                Reference t = liveness.reference(adj[i]);
+                if (!isRemoved(t) && t.degree >= K)
+                    k++;
+            }
         }
         return k < K;
     }
 
     private Reference getAlias(Reference ref) {
-        if (coalescedNodes.contains(ref)) {
-            return ref.alias = getAlias(ref.alias);
-        } else {
-            return ref;
+        Reference root = ref;
+        while (coalescedNodes.contains(root))
+            root = root.alias;
+        while (ref != root) {       // path compression, chains of coalesced moves can be long
+            Reference next = ref.alias;
+            ref.alias = root;
+            ref = next;
         }
+        return root;
     }
 
     private void addWorkList(Reference ref) {
@@ -471,15 +500,18 @@ public class Allocator {
             move(v, spillWorklist, coalescedNodes);
         }
 
+        removed.set(v.index);
         v.alias = u;
         u.moveList.addAll(v.moveList);
         enableMoves(v);
 
-        Set<Reference> backup = new HashSet<>(v.adjList);
-
-        for (Reference t : backup) {
-            deleteEdge(t, v);
-            addEdge(u, t);
+        int[] adj = graph.adjList(v.index);
+        for (int i = 0, size = graph.adjSize(v.index); i < size; i++) {
+            Reference t = liveness.reference(adj[i]);
+            if (isRemoved(t))
+                continue;
+            addEdge(t, u);
+            decreaseDegree(t);
             if (t.degree >= K && freezeWorklist.contains(t)) {
                 move(t, freezeWorklist, spillWorklist);
             }
@@ -505,7 +537,7 @@ public class Allocator {
         if (u == v) {
             coalescedMoves.add(move);
             addWorkList(u);
-        } else if (precolored.contains(v) || edgeSet.contains(getEdge(u, v))) {
+        } else if (precolored.contains(v) || graph.contains(u.index, v.index)) {
             constrainedMoves.add(move);
             addWorkList(u);
             addWorkList(v);
@@ -580,11 +612,6 @@ public class Allocator {
     }
 
     private void assignColors(FunctionEntity entity) {
-        // restore simplified edges
-        for (Edge edge : simplifiedEdge) {
-            addEdge(getAlias(edge.u), getAlias(edge.v));
-        }
-
         // begin assign
         LinkedList<Register> okColors = new LinkedList<>();
         while(!selectStack.empty()) {
@@ -594,8 +621,9 @@ public class Allocator {
                 okColors.add(color);
             }
 
-            for (Reference w : n.adjList) {
-                w = getAlias(w);
+            int[] adj = graph.adjList(n.index);
+            for (int i = 0, size = graph.adjSize(n.index); i < size; i++) {
+                Reference w = getAlias(liveness.reference(adj[i]));
                 if (coloredNodes.contains(w) || precolored.contains(w)) {
                     okColors.remove(w.color);
                 }
@@ -617,7 +645,7 @@ public class Allocator {
             node.color = getAlias(node).color;
         }
 
-        if (Option.printGlobalAllocationInfo) {
+        if (option.printGlobalAllocationInfo) {
             err.printf("=== Assign Result === (%s %d)\n", entity.name(), iter);
             err.print("colored :");
             for (Reference ref : coloredNodes) {
@@ -637,7 +665,7 @@ public class Allocator {
 
     private int spilledCounter = 0;
     private void rewriteProgram(FunctionEntity entity) {
-        Set<Reference> newTemp = new HashSet<>();
+        Set<Reference> newTemp = new LinkedHashSet<>();
         List<Instruction> newIns;
 
         // allocate memory offset for spilled nodes
@@ -653,9 +681,9 @@ public class Allocator {
         }
 
         // rewrite program
-        List<Instruction> stores = new LinkedList<>();
+        List<Instruction> stores = new ArrayList<>();
         for (BasicBlock basicBlock : entity.bbs()) {
-            newIns = new LinkedList<>();
+            newIns = new ArrayList<>(basicBlock.ins().size());
             for (Instruction ins : basicBlock.ins()) {
                 Set<Reference> insUse = ins.use();
                 Set<Reference> insDef = ins.def();
@@ -708,8 +736,7 @@ public class Allocator {
                         ins.replaceAll(ref, getAlias(ref));
                     }
                 }
-                ins.initDefAndUse();
-                ins.calcDefAndUse();
+                ins.refreshDefAndUse();
                 if (ins instanceof Move && ((Move) ins).isRefMove() && ((Move) ins).dest() == ((Move) ins).src())
                     ; // ignore redundant move
                 else
@@ -728,7 +755,7 @@ public class Allocator {
             }
         }
 
-        if (Option.printGlobalAllocationInfo) {
+        if (option.printGlobalAllocationInfo) {
             err.println("===== REWRITE =====");
             for (BasicBlock basicBlock : entity.bbs()) {
                 for (Instruction ins : basicBlock.ins()) {
@@ -752,10 +779,10 @@ public class Allocator {
     // rewrite instructions to satisfy the machine-relevant requirement
     private void loadPrecolord(FunctionEntity entity) {
         for (BasicBlock basicBlock : entity.bbs()) {
-            List<Instruction> newIns = new LinkedList<>();
+            List<Instruction> newIns = new ArrayList<>(basicBlock.ins().size());
             for (Instruction raw : basicBlock.ins()) {
                 if (raw instanceof Call) {
-                    Set<Reference> paraRegUsed = new HashSet<>();
+                    Set<Reference> paraRegUsed = new LinkedHashSet<>();
                     Call ins = (Call) raw;
                     int i = 0, pushCt = 0;
                     for (Operand operand : ins.operands()) {
@@ -773,7 +800,7 @@ public class Allocator {
                         }
                         i++;
                     }
-                    Call newCall = new Call(ins.entity(), new LinkedList<>());
+                    Call newCall = new Call(ins.entity(), new ArrayList<>());
                     newCall.setCallorsave(callerSaveRegRef);
                     newCall.setUsedParameterRegister(paraRegUsed);
                     newIns.add(newCall);
@@ -792,13 +819,18 @@ public class Allocator {
                         newIns.add(new Move(rrcx, right));
                         right = rrcx;
                     }
+                    // rdx is used by idiv, or a reload of a spilled divisor after the cqo may be colored rdx
                     if (raw instanceof Div) {
-                        newIns.add(new Div(rrax, right));
+                        Div div = new Div(rrax, right);
+                        div.setHighPart(rrdx);
+                        newIns.add(div);
                         newIns.add(new Move(rrax, rax)); // refresh
                         newIns.add(new Move(rrdx, rdx));
                         newIns.add(new Move(((Div) raw).left(), rrax));
                     } else {
-                        newIns.add(new Mod(rrax, right));
+                        Mod mod = new Mod(rrax, right);
+                        mod.setHighPart(rrdx);
+                        newIns.add(mod);
                         newIns.add(new Move(rrax, rax)); // refresh
                         newIns.add(new Move(rrdx, rdx));
                         newIns.add(new Move(((Bin) raw).left(), rrdx));
@@ -866,83 +898,21 @@ public class Allocator {
     /*
      * utility
      */
-    private class Edge {
-        Reference u, v;
-
-        Edge(Reference u, Reference v) {
-            this.u = u;
-            this.v = v;
-        }
-
-        @Override
-        public String toString() {
-            return "(" + u + "," + v + ")";
-        }
-
-        @Override
-        public int hashCode() {
-            return u.hashCode() + v.hashCode();
-        }
-        @Override
-        public boolean equals(Object o) {
-            Edge edge = (Edge)o;
-            return u == edge.u && v == edge.v;
-        }
-    }
-
     private void addEdge(Reference u, Reference v) {
         if (u == v)
             return;
-        Edge edge = getEdge(u, v);
-        if (!edgeSet.contains(edge)) {
-            // err.println("add edge " + u.name() + "  " + v.name());
-            edgeSet.add(edge);
-            edgeSet.add(getEdge(v, u));
+        if (graph.addEdge(u.index, v.index)) {
             if (!u.isPrecolored) {
-                u.adjList.add(v);
+                graph.addAdj(u.index, v.index);
                 u.degree++;
             }
             if (!v.isPrecolored) {
-                v.adjList.add(u);
+                graph.addAdj(v.index, u.index);
                 v.degree++;
             }
         }
     }
 
-    private void deleteEdge(Reference u, Reference v) {
-        Edge edge = getEdge(u, v);
-        Edge edge2 = getEdge(v, u);
-
-        if (!edgeSet.contains(edge) || !edgeSet.contains(edge2)) {
-            throw new InternalError("delete edge error");
-        }
-
-        edgeSet.remove(edge);
-        edgeSet.remove(edge2);
-
-        if (!edgeEdgeHashMap.containsKey(edge) || !edgeEdgeHashMap.containsKey(edge2)) {
-            edgeEdgeHashMap.remove(edge);
-            edgeEdgeHashMap.remove(edge2);
-        }
-
-        u.adjList.remove(v);
-        v.adjList.remove(u);
-        decreaseDegree(u);
-        decreaseDegree(v);
-    }
-
-    private HashMap<Edge, Edge> edgeEdgeHashMap;
-    private Edge getEdge(Reference u, Reference v) {
-        Edge tempEdge = new Edge(u, v);
-        Edge find = edgeEdgeHashMap.get(tempEdge);
-        if (find == null) {
-            edgeEdgeHashMap.put(tempEdge, tempEdge);
-            return tempEdge;
-        } else {
-            return find;
-        }
-    }
-
     private void replaceRegForIns(Instruction ins, Set<Reference> allRef, Set<Register> regUsed) {
         for (Reference ref : ins.allref()) {
             allRef.add(ref);
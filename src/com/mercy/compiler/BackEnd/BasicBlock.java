@@ -2,12 +2,11 @@ package com.mercy.compiler.BackEnd;
 
 import com.mercy.compiler.INS.Instruction;
 import com.mercy.compiler.INS.Label;
-import com.mercy.compiler.INS.Operand.Reference;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
 
 /**
  * Created by mercy on 17-5-23.
@@ -16,15 +15,16 @@ public class BasicBlock {
     private List<BasicBlock> predecessor = new LinkedList<>();
     private List<BasicBlock> successor = new LinkedList<>();
     private Label label;
-    private List<Instruction> ins = new LinkedList<>();
+    private List<Instruction> ins = new ArrayList<>();
     private List<Label> jumpTo = new LinkedList<>();
     private boolean layouted = false;
 
-    private Set<Reference> use = new HashSet<>();
-    private Set<Reference> def = new HashSet<>();
+    // indexed by Reference.index, see LivenessAnalyzer
+    private BitSet use = new BitSet();
+    private BitSet def = new BitSet();
 
-    private Set<Reference> liveIn = new HashSet<>();
-    private Set<Reference> liveOut = new HashSet<>();
+    private BitSet liveIn = new BitSet();
+    private BitSet liveOut = new BitSet();
 
     BasicBlock(Label label) {
         this.label = label;
@@ -62,31 +62,31 @@ public class BasicBlock {
         this.layouted = layouted;
     }
 
-    public Set<Reference> liveIn() {
+    public BitSet liveIn() {
         return liveIn;
     }
-    public void setLiveIn(Set<Reference> liveIn) {
+    public void setLiveIn(BitSet liveIn) {
         this.liveIn = liveIn;
     }
 
-    public Set<Reference> liveOut() {
+    public BitSet liveOut() {
         return liveOut;
     }
-    public void setLiveOut(Set<Reference> liveOut) {
+    public void setLiveOut(BitSet liveOut) {
         this.liveOut = liveOut;
     }
 
-    public Set<Reference> use() {
+    public BitSet use() {
         return use;
     }
-    public void setUse(Set<Reference> use) {
+    public void setUse(BitSet use) {
         this.use = use;
     }
 
-    public Set<Reference> def() {
+    public BitSet def() {
         return def;
     }
-    public void setDef(Set<Reference> def) {
+    public void setDef(BitSet def) {
         this.def = def;
     }
 
@@ -0,0 +1,453 @@
+package com.mercy.compiler.BackEnd;
+
+import com.mercy.compiler.Entity.FunctionEntity;
+import com.mercy.compiler.INS.*;
+import com.mercy.compiler.INS.Operand.Address;
+import com.mercy.compiler.INS.Operand.Immediate;
+import com.mercy.compiler.INS.Operand.Operand;
+import com.mercy.compiler.INS.Operand.Reference;
+
+import java.util.*;
+
+import static com.mercy.compiler.BackEnd.SSAForm.renamable;
+
+/**
+ * Sparse conditional constant propagation of a function in SSA form.
+ *      Wegman, Mark N.; Zadeck, F. Kenneth (1991). "Constant Propagation with Conditional Branches"
+ *
+ * The value of a reference is TOP (not known yet), a constant or BOTTOM (not a constant). Values only go down,
+ * and only the edges that can be executed under the values found so far are followed, so a constant that
+ * comes around a loop or through a branch never taken is still found. Then
+ *      a reference of constant value is replaced by an immediate where the instruction accepts one,
+ *      and its definition becomes "mov ref, constant",
+ *      a CJump whose condition is constant becomes a Jmp,
+ *      blocks that are never executed are removed.
+ * Memory, registers, loads and results of calls are BOTTOM.
+ */
+public class ConstantPropagator {
+    // a lattice value, TOP and BOTTOM are the two instances which are not constants
+    private static class Value {
+        static final Value TOP = new Value(0), BOTTOM = new Value(0);
+        final int constant;
+
+        Value(int constant) {
+            this.constant = constant;
+        }
+
+        boolean isConstant() {
+            return this != TOP && this != BOTTOM;
+        }
+    }
+
+    private SSAForm ssa;
+    private FunctionEntity entity;
+
+    private Map<Reference, Instruction> definition = new HashMap<>();
+    private Map<Reference, List<Instruction>> users = new HashMap<>();
+    private Map<Instruction, Move> copyBefore = new HashMap<>();       // two-address instruction -> copy of the old value
+    private Map<Instruction, Instruction> updateAfter = new HashMap<>(); // and the reverse
+    private Map<Instruction, BasicBlock> blockOf = new HashMap<>();
+
+    private Map<Reference, Value> values = new HashMap<>();
+    private Set<BasicBlock> executable = new HashSet<>();
+    private Map<BasicBlock, Set<BasicBlock>> executableEdges = new HashMap<>();
+    private Deque<BasicBlock[]> flowWorklist = new ArrayDeque<>();
+    private Deque<Instruction> ssaWorklist = new ArrayDeque<>();
+
+    public ConstantPropagator(SSAForm ssa) {
+        this.ssa = ssa;
+        this.entity = ssa.entity();
+    }
+
+    // return whether the control flow graph is changed
+    public boolean propagate() {
+        collect();
+
+        BasicBlock entry = entity.bbs().get(0);
+        executable.add(entry);
+        visitBlock(entry);
+        while (!flowWorklist.isEmpty() || !ssaWorklist.isEmpty()) {
+            while (!flowWorklist.isEmpty()) {
+                BasicBlock[] edge = flowWorklist.poll();
+                if (!executableEdges.computeIfAbsent(edge[0], k -> new HashSet<>()).add(edge[1]))
+                    continue;
+                if (executable.add(edge[1]))
+                    visitBlock(edge[1]);
+                else
+                    visitPhis(edge[1]);
+            }
+            while (!ssaWorklist.isEmpty()) {
+                Instruction ins = ssaWorklist.poll();
+                if (executable.contains(blockOf.get(ins)))
+                    visit(ins);
+            }
+        }
+
+        return rewrite();
+    }
+
+    /*
+     * definitions and uses. The copy before a two-address instruction belongs to it : "mov x2, x1; add x2, y"
+     * is one definition of x2, which uses x1 and y.
+     */
+    private void collect() {
+        for (BasicBlock bb : entity.bbs()) {
+            List<Instruction> ins = bb.ins();
+            for (int i = 0; i < ins.size(); i++) {
+                Instruction now = ins.get(i);
+                blockOf.put(now, bb);
+                Reference updated = SSAForm.updated(now);
+                if (updated != null && i > 0 && ins.get(i - 1) instanceof Move
+                        && ((Move) ins.get(i - 1)).dest() == updated) {
+                    Move copy = (Move) ins.get(i - 1);
+                    copyBefore.put(now, copy);
+                    updateAfter.put(copy, now);
+                    for (Reference ref : copy.use())
+                        addUser(ref, now);
+                }
+                if (!updateAfter.containsKey(now)) {
+                    for (Reference ref : now.use())
+                        addUser(ref, now);
+                    for (Reference ref : now.def()) {
+                        if (renamable(ref))
+                            definition.put(ref, now);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addUser(Reference ref, Instruction ins) {
+        if (renamable(ref))
+            users.computeIfAbsent(ref, k -> new ArrayList<>()).add(ins);
+    }
+
+    /*
+     * propagation
+     */
+    private void visitBlock(BasicBlock bb) {
+        for (Instruction ins : bb.ins())
+            visit(ins);
+        Instruction last = bb.ins().get(bb.ins().size() - 1);
+        if (!(last instanceof Jmp || last instanceof CJump)) {     // falls through
+            for (BasicBlock suc : bb.successor())
+                flowWorklist.add(new BasicBlock[]{bb, suc});
+        }
+    }
+
+    private void visitPhis(BasicBlock bb) {
+        for (Instruction ins : bb.ins()) {
+            if (ins instanceof Label)
+                continue;
+            if (!(ins instanceof Phi))
+                break;
+            visit(ins);
+        }
+    }
+
+    private void visit(Instruction ins) {
+        if (ins instanceof Phi) {
+            Phi phi = (Phi) ins;
+            BasicBlock bb = blockOf.get(phi);
+            Value value = Value.TOP;
+            for (Map.Entry<BasicBlock, Operand> arg : phi.args().entrySet()) {
+                Set<BasicBlock> edges = executableEdges.get(arg.getKey());
+                if (edges != null && edges.contains(bb))
+                    value = meet(value, valueOf(arg.getValue()));
+            }
+            lower(phi.dest(), value);
+        } else if (ins instanceof Jmp || ins instanceof CJump) {
+            BasicBlock bb = blockOf.get(ins);
+            BasicBlock taken = ins instanceof CJump ? taken((CJump) ins) : null;
+            if (ins instanceof CJump && taken == null && isUnknown((CJump) ins))
+                return;
+            for (BasicBlock suc : bb.successor()) {
+                if (taken == null || suc == taken)
+                    flowWorklist.add(new BasicBlock[]{bb, suc});
+            }
+        } else if (!updateAfter.containsKey(ins)) {
+            for (Reference ref : ins.def()) {
+                if (definition.get(ref) == ins)
+                    lower(ref, evaluate(ins));
+            }
+        }
+    }
+
+    private void lower(Reference ref, Value value) {
+        Value old = values.getOrDefault(ref, Value.TOP);
+        Value now = meet(old, value);
+        if (now == old)
+            return;
+        values.put(ref, now);
+        List<Instruction> list = users.get(ref);
+        if (list != null)
+            ssaWorklist.addAll(list);
+    }
+
+    private Value meet(Value a, Value b) {
+        if (a == Value.TOP)
+            return b;
+        if (b == Value.TOP || a == Value.BOTTOM)
+            return a;
+        if (b == Value.BOTTOM || a.constant != b.constant)
+            return Value.BOTTOM;
+        return a;
+    }
+
+    private Value valueOf(Operand operand) {
+        if (operand instanceof Immediate)
+            return operand.isConstInt() ? new Value(((Immediate) operand).value()) : Value.BOTTOM;
+        if (operand instanceof Reference && definition.containsKey(operand))
+            return values.getOrDefault(operand, Value.TOP);
+        return Value.BOTTOM;    // memory, or a reference defined out of the function (e.g. a parameter)
+    }
+
+    private Value evaluate(Instruction ins) {
+        if (ins instanceof Move)
+            return valueOf(((Move) ins).src());
+        Move copy = copyBefore.get(ins);
+        if (copy == null)
+            return Value.BOTTOM;
+        Value old = valueOf(copy.src());
+        if (ins instanceof Bin) {
+            Value right = valueOf(((Bin) ins).right());
+            if (old == Value.BOTTOM || right == Value.BOTTOM)
+                return Value.BOTTOM;
+            if (old == Value.TOP || right == Value.TOP)
+                return Value.TOP;
+            Integer ret = fold(((Bin) ins).name(), old.constant, right.constant);
+            return ret == null ? Value.BOTTOM : new Value(ret);
+        } else if (ins instanceof Cmp) {
+            Value right = valueOf(((Cmp) ins).right());
+            if (old == Value.BOTTOM || right == Value.BOTTOM)
+                return Value.BOTTOM;
+            if (old == Value.TOP || right == Value.TOP)
+                return Value.TOP;
+            CJump.Type type = CJump.Type.valueOf(((Cmp) ins).operator().name());
+            return new Value(compare(type, old.constant, right.constant) ? 1 : 0);
+        } else if (ins instanceof Neg || ins instanceof Not) {
+            if (!old.isConstant())
+                return old;
+            return new Value(ins instanceof Neg ? -old.constant : ~old.constant);
+        }
+        return Value.BOTTOM;
+    }
+
+    // the block a CJump goes to for sure, null if it is not known
+    private BasicBlock taken(CJump cjump) {
+        Boolean cond = condition(cjump);
+        if (cond == null)
+            return null;
+        return (cond ? cjump.trueLabel() : cjump.falseLabel()).basicBlock();
+    }
+
+    private Boolean condition(CJump cjump) {
+        if (cjump.type() == CJump.Type.BOOL) {
+            Value cond = valueOf(cjump.cond());
+            return cond.isConstant() ? cond.constant != 0 : null;
+        }
+        Value left = valueOf(cjump.left()), right = valueOf(cjump.right());
+        if (!left.isConstant() || !right.isConstant())
+            return null;
+        return compare(cjump.type(), left.constant, right.constant);
+    }
+
+    // no edge is executable before the condition has a value
+    private boolean isUnknown(CJump cjump) {
+        if (cjump.type() == CJump.Type.BOOL)
+            return valueOf(cjump.cond()) == Value.TOP;
+        return valueOf(cjump.left()) == Value.TOP || valueOf(cjump.right()) == Value.TOP;
+    }
+
+    /*
+     * folding, shared with the local constant propagation of DataFlowAnalyzer.
+     * null if the result is not known at compile time (division by zero, shift out of range, unknown operator)
+     */
+    public static Integer fold(String name, int left, int right) {
+        switch (name) {
+            case "sal":
+                return right < 0 || right > 31 ? null : left << right;
+            case "sar":
+                return right < 0 || right > 31 ? null : left >> right;
+            case "add":
+                return left + right;
+            case "sub":
+                return left - right;
+            case "and":
+                return left & right;
+            case "imul":
+                return left * right;
+            case "div":
+                return right == 0 || (left == Integer.MIN_VALUE && right == -1) ? null : left / right;
+            case "mod":
+                return right == 0 || (left == Integer.MIN_VALUE && right == -1) ? null : left % right;
+            case "xor":
+                return left ^ right;
+            case "or":
+                return left | right;
+            default:
+                return null;
+        }
+    }
+
+    static boolean compare(CJump.Type type, int left, int right) {
+        switch (type) {
+            case EQ: return left == right;
+            case NE: return left != right;
+            case GT: return left > right;
+            case GE: return left >= right;
+            case LT: return left < right;
+            case LE: return left <= right;
+            default:
+                return left != 0;
+        }
+    }
+
+    /*
+     * rewrite
+     */
+    private boolean rewrite() {
+        Set<Instruction> folded = new HashSet<>();     // two-address instructions whose result is constant
+        for (BasicBlock bb : entity.bbs()) {
+            if (!executable.contains(bb))
+                continue;
+            List<Instruction> newIns = new ArrayList<>(bb.ins().size());
+            List<Instruction> constantPhis = new ArrayList<>();
+            int afterPhis = 1;
+            for (Instruction ins : bb.ins()) {
+                if (folded.contains(ins))
+                    continue;
+                Instruction now = ins;
+                if (ins instanceof Phi) {
+                    Immediate constant = constantOf(((Phi) ins).dest());
+                    if (constant != null) {
+                        constantPhis.add(new Move(((Phi) ins).dest(), constant));
+                        continue;
+                    }
+                    afterPhis = newIns.size() + 1;
+                } else if (updateAfter.containsKey(ins)) {
+                    Immediate constant = constantOf(((Move) ins).dest());
+                    if (constant != null) {
+                        now = new Move(((Move) ins).dest(), constant);
+                        folded.add(updateAfter.get(ins));
+                    }
+                } else if (ins instanceof CJump) {
+                    BasicBlock taken = taken((CJump) ins);
+                    if (taken != null)
+                        now = new Jmp(taken.label());
+                }
+                if (now != ins || substitute(now))
+                    now.refreshDefAndUse();
+                newIns.add(now);
+            }
+            newIns.addAll(Math.min(afterPhis, newIns.size()), constantPhis);
+            bb.setIns(newIns);
+        }
+
+        // edges of folded branches and blocks never executed
+        boolean changed = false;
+        Set<BasicBlock> dead = new HashSet<>();
+        Map<BasicBlock, List<BasicBlock>> notTaken = new LinkedHashMap<>();   // to -> froms
+        for (BasicBlock bb : entity.bbs()) {
+            if (!executable.contains(bb)) {
+                dead.add(bb);
+                continue;
+            }
+            Set<BasicBlock> edges = executableEdges.getOrDefault(bb, Collections.emptySet());
+            for (BasicBlock suc : bb.successor()) {
+                if (!edges.contains(suc))
+                    notTaken.computeIfAbsent(suc, x -> new ArrayList<>()).add(bb);
+            }
+        }
+        if (!notTaken.isEmpty()) {
+            notTaken.forEach((to, froms) -> ssa.removeEdges(froms, to));
+            changed = true;
+        }
+        if (!dead.isEmpty()) {
+            ssa.removeBlocks(dead);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private Immediate constantOf(Operand operand) {
+        if (!(operand instanceof Reference))
+            return null;
+        Value value = valueOf(operand);
+        return value.isConstant() ? new Immediate(value.constant) : null;
+    }
+
+    // replace constant references by immediates where the instruction accepts one, return whether it is changed
+    private boolean substitute(Instruction ins) {
+        boolean changed = false;
+        Immediate constant;
+        if (ins instanceof Move) {
+            Move move = (Move) ins;
+            if (!move.dest().isAddress() && (constant = constantOf(move.src())) != null) {
+                move.setSrc(constant);
+                changed = true;
+            }
+            changed |= foldIndex(move.src()) | foldIndex(move.dest());
+        } else if (ins instanceof Bin) {
+            Bin bin = (Bin) ins;
+            if ((constant = constantOf(bin.right())) != null) {
+                bin.setRight(constant);
+                changed = true;
+            }
+            changed |= foldIndex(bin.left()) | foldIndex(bin.right());
+        } else if (ins instanceof Cmp) {
+            if ((constant = constantOf(((Cmp) ins).right())) != null) {
+                ((Cmp) ins).setRight(constant);
+                changed = true;
+            }
+        } else if (ins instanceof Lea) {
+            changed = foldIndex(((Lea) ins).addr());
+        } else if (ins instanceof CJump) {
+            CJump cjump = (CJump) ins;
+            if (cjump.type() != CJump.Type.BOOL && !(cjump.left() instanceof Immediate)
+                    && !(cjump.right() instanceof Immediate)) {
+                if ((constant = constantOf(cjump.left())) != null) {
+                    cjump.setLeft(constant);
+                    changed = true;
+                } else if ((constant = constantOf(cjump.right())) != null) {
+                    cjump.setRight(constant);
+                    changed = true;
+                }
+            }
+        } else if (ins instanceof Return) {
+            if ((constant = constantOf(((Return) ins).ret())) != null) {
+                ((Return) ins).setRet(constant);
+                changed = true;
+            }
+        } else if (ins instanceof Call) {
+            List<Operand> operands = ((Call) ins).operands();
+            for (int i = 0; i < operands.size(); i++) {
+                if ((constant = constantOf(operands.get(i))) != null) {
+                    operands.set(i, constant);
+                    changed = true;
+                }
+            }
+        } else if (ins instanceof Phi) {
+            for (Map.Entry<BasicBlock, Operand> arg : ((Phi) ins).args().entrySet()) {
+                if ((constant = constantOf(arg.getValue())) != null) {
+                    arg.setValue(constant);
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    // [base + index * mul + add] with a constant index is [base + add']
+    private boolean foldIndex(Operand operand) {
+        if (!(operand instanceof Address))
+            return false;
+        Address addr = (Address) operand;
+        Immediate index = constantOf(addr.index());
+        if (index == null || addr.base() == null)
+            return false;
+        addr.setAdd(addr.add() + addr.mul() * index.value());
+        addr.setIndex(null);
+        return true;
+    }
+}
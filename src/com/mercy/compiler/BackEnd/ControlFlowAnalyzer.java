@@ -1,5 +1,6 @@
 package com.mercy.compiler.BackEnd;
 
+import com.mercy.compiler.CompilationContext;
 import com.mercy.compiler.Entity.FunctionEntity;
 import com.mercy.compiler.INS.CJump;
 import com.mercy.compiler.INS.Instruction;
@@ -16,36 +17,59 @@ import static java.lang.System.err;
  * Created by mercy on 17-5-23.
  */
 public class ControlFlowAnalyzer {
+    private CompilationContext context;
+    private Option option;
     private List<FunctionEntity> functionEntities;
 
     public ControlFlowAnalyzer(InstructionEmitter emitter) {
+        context = emitter.context();
+        option = context.option();
         functionEntities = emitter.functionEntities();
     }
 
     public void buildControlFlow() {
-        for (FunctionEntity functionEntity : functionEntities) {
-            if (functionEntity.isInlined())
-                continue;
-            buildBasicBlock(functionEntity);
-            buildControFlowGraph(functionEntity);
-            if (Option.enableControlFlowOptimization) {
-                Optimize(functionEntity);
-            }
-            layoutBasicBlock(functionEntity);
-        }
+        context.scheduler().forEach(functionEntities, this::buildControlFlow);
 
-        if (Option.printBasicBlocks)
+        if (option.printBasicBlocks)
             printSelf(err);
     }
 
-    private int ct = 0;
+    // touches nothing but the function, so functions can be built in parallel
+    private void buildControlFlow(FunctionEntity functionEntity) {
+        buildBasicBlock(functionEntity);
+        if (option.enableControlFlowOptimization) {
+            Optimize(functionEntity);
+        }
+        layoutBasicBlock(functionEntity);
+    }
+
+    /*
+     * simplify and lay out the blocks again after the data flow optimizations changed the graph,
+     * e.g. folded branches. The jumps removed by the last layout are restored first.
+     */
+    public void rebuildControlFlow(FunctionEntity functionEntity) {
+        for (BasicBlock bb : functionEntity.bbs()) {
+            Instruction last = lastIns(bb);
+            if (last instanceof CJump)
+                ((CJump) last).setFallThrough(null);
+            else if (!(last instanceof Jmp) && !bb.successor().isEmpty())
+                bb.ins().add(new Jmp(bb.successor().get(0).label()));
+            bb.setLayouted(false);
+        }
+        if (option.enableControlFlowOptimization) {
+            Optimize(functionEntity);
+        }
+        layoutBasicBlock(functionEntity);
+    }
+
     private void buildBasicBlock(FunctionEntity entity) {
         List<BasicBlock> bbs = new LinkedList<>();
+        int ct = 0;
 
         BasicBlock bb = null;
         for (Instruction ins : entity.INS()) {
             if (bb == null && !(ins instanceof Label)) { // add new label
-                Label label = new Label("cfg_added_" + ct++);
+                Label label = new Label("cfg_added_" + entity.asmName() + "_" + ct++);
                 bb = new BasicBlock(label);
                 bb.ins().add(label);
             }
@@ -89,127 +113,160 @@ public class ControlFlowAnalyzer {
         entity.setINS(null); // disable direct instruction access, so you must access instructions by BasicBlocks
     }
 
-    private void buildControFlowGraph(FunctionEntity entity) {
-        for (BasicBlock basicBlock : entity.bbs()) {
-            // inside BB
-            List<Instruction> ins = basicBlock.ins();
-            Iterator<Instruction> iter = ins.iterator();
-            if (iter.hasNext()) {
-                Instruction pre = iter.next();
-                while(iter.hasNext()) {
-                    Instruction now = iter.next();
-                    pre.sucessor().add(now);
-                    now.predessor().add(pre);
-                    pre = now;
-                }
+    /*
+     * Simplify the control flow graph by a worklist of blocks. A block is visited again only when a change
+     * touches it, and removed blocks are only marked, so the cost is proportional to the number of changes.
+     *      fold    : a CJump whose two targets are the same block becomes a Jmp
+     *      remove  : a block without predecessor (except the entry)
+     *      thread  : a block with only a jump, its predecessors jump to its target instead
+     *      merge   : a block and its only successor, if the block is the only predecessor of it
+     * Blocks that cannot be reached from the entry (e.g. dead loops) are removed at last.
+     */
+    private void Optimize(FunctionEntity entity) {
+        BasicBlock entry = entity.bbs().get(0);
+        Set<BasicBlock> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<BasicBlock> worklist = new ArrayDeque<>(entity.bbs());
+        Set<BasicBlock> inWorklist = Collections.newSetFromMap(new IdentityHashMap<>());
+        inWorklist.addAll(entity.bbs());
+
+        while (!worklist.isEmpty()) {
+            BasicBlock bb = worklist.poll();
+            inWorklist.remove(bb);
+            if (removed.contains(bb))
+                continue;
+
+            List<BasicBlock> touched = new ArrayList<>();
+            boolean isEntry = bb == entry || bb.label() == entity.beginLabelINS();
+            if (foldCJump(bb)) {
+                touched.add(bb);
+            } else if (!isEntry && bb.predecessor().isEmpty()) {
+                removeBlock(bb, removed, touched);
+            } else if (!isEntry && threadJump(bb, touched)) {
+                // at once, or the dead blocks of a long chain of jumps are threaded again at every step
+                if (bb.predecessor().isEmpty())
+                    removeBlock(bb, removed, touched);
+                else
+                    touched.add(bb);
+            } else if (mergeSuccessor(bb, entry, entity, removed)) {
+                touched.add(bb);
+                touched.addAll(bb.successor());
             }
 
-            // between two BBs
-            Instruction first = ins.get(0);
-            for (BasicBlock pre : basicBlock.predecessor()) {
-                pre.ins().get(pre.ins().size()-1).sucessor().add(first);
+            for (BasicBlock b : touched) {
+                if (!removed.contains(b) && inWorklist.add(b))
+                    worklist.add(b);
             }
-            Instruction last = ins.get(ins.size()-1);
-            for (BasicBlock suc : basicBlock.successor()) {
-                suc.ins().get(0).predessor().add(last);
+        }
+
+        // unreachable cycles still have predecessors
+        Set<BasicBlock> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        reachable.addAll(GraphOrder.postorder(Collections.singletonList(entry), BasicBlock::successor, b -> !removed.contains(b)));
+        List<BasicBlock> bbs = new LinkedList<>();
+        for (BasicBlock bb : entity.bbs()) {
+            if (removed.contains(bb))
+                continue;
+            if (reachable.contains(bb) || bb.label() == entity.beginLabelINS()) {
+                bb.predecessor().removeIf(pre -> !reachable.contains(pre));
+                bbs.add(bb);
             }
         }
+        entity.setBbs(bbs);
     }
 
-    private void Optimize(FunctionEntity entity) {
-        boolean modified = true;
-        while(modified) {
-            modified = false;
-
-            // merge two blocks A and B such that A is the only predecessor of B and B is the only successor of A.
-            BasicBlock now;
-            for (BasicBlock basicBlock : entity.bbs()) {
-                if (basicBlock.successor().size() == 1 && basicBlock.successor().get(0).predecessor().size() == 1) {
-                    now = basicBlock;
-                    BasicBlock next = now.successor().get(0);
-                    if (next.successor().size() != 0) {
-                        modified = true;
-                        for (BasicBlock next_next : next.successor()) {
-                            //err.println("merge " + now.label() + " <- " + next.label());
-                            next_next.predecessor().remove(next);
-                            next_next.predecessor().add(now);
-                            now.successor().add(next_next);
-                        }
+    private void removeBlock(BasicBlock bb, Set<BasicBlock> removed, List<BasicBlock> touched) {
+        touched.addAll(bb.successor());
+        for (BasicBlock suc : bb.successor())
+            suc.predecessor().remove(bb);
+        bb.successor().clear();
+        removed.add(bb);
+    }
 
-                        // remove label and jmp
-                        next.ins().remove(0);
-                        now.ins().remove(now.ins().size()-1);
+    private Instruction lastIns(BasicBlock bb) {
+        List<Instruction> ins = bb.ins();
+        return ins.isEmpty() ? null : ins.get(ins.size() - 1);
+    }
 
-                        now.ins().addAll(next.ins());
-                        entity.bbs().remove(next);
-                        now.successor().remove(next);
-                        break;
-                    }
-                }
-            }
+    // replace a CJump that has the same false label and true label, by an unconditional jump
+    private boolean foldCJump(BasicBlock bb) {
+        Instruction last = lastIns(bb);
+        if (!(last instanceof CJump))
+            return false;
+        CJump cjump = (CJump) last;
+        BasicBlock target = cjump.trueLabel().basicBlock();
+        if (target != cjump.falseLabel().basicBlock())
+            return false;
 
-            // remove blocks that contain only one jump instruction
-            List<BasicBlock> uselessBasicBlock = new LinkedList<>();
-            for (BasicBlock toremove : entity.bbs()) {
-                if (toremove.ins().size() < 2)
-                    continue;
-                Instruction last = toremove.ins().get(1);
-                if (toremove.ins().size() == 2 && last instanceof Jmp) {
-                    //err.println("optimize jump " + toremove.label() + " -> " + ((Jmp) last).dest());
-                    List<BasicBlock> backup = new LinkedList<>(toremove.predecessor());
-                    for (BasicBlock pre : backup) {
-                        Instruction jump = pre.ins().get(pre.ins().size() - 1);
-                        if (jump instanceof Jmp) {
-                            modified = true;
-                            ((Jmp) jump).setDest(((Jmp) last).dest());
-                            pre.successor().remove(toremove);
-                            uselessBasicBlock.add(toremove);
-                            if (toremove.successor().size() == 1) {
-                                BasicBlock suc = toremove.successor().get(0);
-                                pre.successor().add(suc);
-                                suc.predecessor().add(pre);
-                            }
-                        } else if (jump instanceof CJump) {
-                            modified = true;
-                            if (((CJump) jump).trueLabel() == toremove.label())
-                                ((CJump) jump).setTrueLabel(((Jmp) last).dest());
-                            if (((CJump) jump).falseLabel() == toremove.label())
-                                ((CJump) jump).setFalseLabel(((Jmp) last).dest());
-
-                            pre.successor().remove(toremove);
-                            uselessBasicBlock.add(toremove);
-                            if (toremove.successor().size() == 1) {
-                                BasicBlock suc = toremove.successor().get(0);
-                                pre.successor().add(suc);
-                                suc.predecessor().add(pre);
-                            }
-                        }
-                    }
-                    if (modified)
-                        break;
-                }
-            }
+        bb.ins().set(bb.ins().size() - 1, new Jmp(cjump.trueLabel()));
+        bb.successor().remove(target);
+        target.predecessor().remove(bb);
+        return true;
+    }
 
-            // remove unreachable blocks
-            for (BasicBlock basicBlock : entity.bbs()) {
-                if (basicBlock.predecessor().size() == 0 && basicBlock.label() != entity.beginLabelINS()) {
-                    modified = true;
-                    //err.println("remove unreachable block: " + basicBlock.label());
-                    uselessBasicBlock.add(basicBlock);
-                }
+    // let predecessors of a block that contains only a jump jump to its target directly
+    private boolean threadJump(BasicBlock bb, List<BasicBlock> touched) {
+        if (bb.ins().size() != 2 || !(bb.ins().get(1) instanceof Jmp))
+            return false;
+        Label dest = ((Jmp) bb.ins().get(1)).dest();
+        BasicBlock target = dest.basicBlock();
+        if (target == bb)       // an infinite loop
+            return false;
+
+        Set<BasicBlock> threaded = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BasicBlock pre : new ArrayList<>(new LinkedHashSet<>(bb.predecessor()))) {
+            Instruction jump = lastIns(pre);
+            if (jump instanceof Jmp) {
+                ((Jmp) jump).setDest(dest);
+            } else if (jump instanceof CJump) {
+                if (((CJump) jump).trueLabel() == bb.label())
+                    ((CJump) jump).setTrueLabel(dest);
+                if (((CJump) jump).falseLabel() == bb.label())
+                    ((CJump) jump).setFalseLabel(dest);
+            } else {
+                continue;
             }
 
-            // replace CJump that has the same false label and true label, by an unconditional Jump
-            for (BasicBlock basicBlock : entity.bbs()) {
-                if (basicBlock.successor().size() == 2 && basicBlock.successor().get(0) == basicBlock.successor().get(1)) {
-                    err.println("find redundant Cjump"); // haven't write the code yet.
+            // keep the order of successors, the first one is the fall through of layout
+            for (ListIterator<BasicBlock> iter = pre.successor().listIterator(); iter.hasNext(); ) {
+                if (iter.next() == bb) {
+                    iter.set(target);
+                    target.predecessor().add(pre);
                 }
             }
-
-            entity.bbs().removeAll(uselessBasicBlock);
+            threaded.add(pre);
+            touched.add(pre);
         }
+        if (threaded.isEmpty())
+            return false;
+
+        // at once, a block like the end of a long && chain has thousands of predecessors
+        bb.predecessor().removeIf(threaded::contains);
+        touched.add(target);
+        return true;
     }
 
+    // merge a block A and its successor B such that A is the only predecessor of B and B is the only successor of A
+    private boolean mergeSuccessor(BasicBlock now, BasicBlock entry, FunctionEntity entity, Set<BasicBlock> removed) {
+        if (now.successor().size() != 1 || !(lastIns(now) instanceof Jmp))
+            return false;
+        BasicBlock next = now.successor().get(0);
+        if (next == now || next == entry || next.label() == entity.beginLabelINS()
+                || next.predecessor().size() != 1 || next.successor().isEmpty())
+            return false;
+
+        for (BasicBlock next_next : new LinkedHashSet<>(next.successor()))
+            Collections.replaceAll(next_next.predecessor(), next, now);
+        now.successor().clear();
+        now.successor().addAll(next.successor());
+
+        // remove label and jmp
+        now.ins().remove(now.ins().size() - 1);
+        now.ins().addAll(next.ins().subList(1, next.ins().size()));
+
+        next.successor().clear();
+        next.predecessor().clear();
+        removed.add(next);
+        return true;
+    }
 
     private void layoutBasicBlock(FunctionEntity entity) {
         List<BasicBlock> bbs = entity.bbs();
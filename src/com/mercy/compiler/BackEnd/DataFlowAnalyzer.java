@@ -1,5 +1,6 @@
 package com.mercy.compiler.BackEnd;
 
+import com.mercy.compiler.CompilationContext;
 import com.mercy.compiler.Entity.FunctionEntity;
 import com.mercy.compiler.INS.*;
 import com.mercy.compiler.INS.Operand.Address;
@@ -7,7 +8,6 @@ import com.mercy.compiler.INS.Operand.Immediate;
 import com.mercy.compiler.INS.Operand.Operand;
 import com.mercy.compiler.INS.Operand.Reference;
 import com.mercy.compiler.Option;
-import com.mercy.compiler.Utility.InternalError;
 import com.mercy.compiler.Utility.Pair;
 
 import java.util.*;
@@ -16,36 +16,75 @@ import java.util.*;
  * Created by mercy on 17-5-29.
  */
 public class DataFlowAnalyzer {
+    private CompilationContext context;
+    private Option option;
     private List<FunctionEntity> functionEntities;
     private FunctionEntity currentFunction;
+    private ControlFlowAnalyzer controlFlowAnalyzer;    // to simplify the graph again after branches are folded
     public DataFlowAnalyzer(InstructionEmitter emitter) {
+        context = emitter.context();
+        option = context.option();
         functionEntities = emitter.functionEntities();
+        controlFlowAnalyzer = new ControlFlowAnalyzer(emitter);
+    }
+
+    // an analyzer for one function, the tables below belong to the function being optimized
+    private DataFlowAnalyzer(DataFlowAnalyzer global) {
+        context = global.context;
+        option = global.option;
+        controlFlowAnalyzer = global.controlFlowAnalyzer;
     }
 
     public void optimize() {
-        for (FunctionEntity functionEntity : functionEntities) {
-            if (functionEntity.isInlined())
-                continue;
-            currentFunction = functionEntity;
+        context.scheduler().forEach(functionEntities, entity -> new DataFlowAnalyzer(this).optimizeFunction(entity));
+    }
 
-            if (Option.enableCommonExpressionElimination) {
-                commonSubexpressionElimination(functionEntity);
+    private void optimizeFunction(FunctionEntity functionEntity) {
+        currentFunction = functionEntity;
+
+        boolean numbered = false;
+        if (option.enableSSA) {
+            SSAForm ssa = new SSAForm(functionEntity);
+            if (ssa.construct()) {
+                boolean graphChanged = false;
+                if (option.enableConstantPropagation)
+                    graphChanged = new ConstantPropagator(ssa).propagate();
+                if (option.enableCommonExpressionElimination) {
+                    new ValueNumbering(ssa).number();
+                    numbered = true;
+                }
+                if (option.enableLoopInvariantMotion || option.enableStrengthReduction) {
+                    LoopForest loops = new LoopForest(ssa);
+                    graphChanged |= loops.insertPreheaders();
+                    if (option.enableLoopInvariantMotion)
+                        graphChanged |= new LoopInvariantMotion(ssa, loops).hoist();
+                    if (option.enableStrengthReduction)
+                        new StrengthReduction(ssa, loops).reduce();
+                }
+                ssa.destruct();
+                if (graphChanged)
+                    controlFlowAnalyzer.rebuildControlFlow(functionEntity);
             }
+        }
 
-            if (Option.enableConstantPropagation) {
-                constantPropagation(functionEntity);
-                refreshDefAndUse(functionEntity);
-            }
+        // without SSA form, only the expressions inside a block
+        if (option.enableCommonExpressionElimination && !numbered) {
+            commonSubexpressionElimination(functionEntity);
+        }
 
-            if (Option.enableDeadcodeElimination) {
-                initLivenessAnalysis(functionEntity);
-                for (int i = 0; i < 2; i++) {  // iterate for 2 times
-                    livenessAnalysis(functionEntity);
-                    for (BasicBlock basicBlock : functionEntity.bbs()) {
-                        deadCodeElimination(basicBlock);
-                    }
-                    refreshDefAndUse(functionEntity);
+        if (option.enableConstantPropagation) {
+            constantPropagation(functionEntity);
+            refreshDefAndUse(functionEntity);
+        }
+
+        if (option.enableDeadcodeElimination) {
+            LivenessAnalyzer liveness = new LivenessAnalyzer(functionEntity);
+            for (int i = 0; i < 2; i++) {  // iterate for 2 times
+                liveness.analyze();
+                for (BasicBlock basicBlock : functionEntity.bbs()) {
+                    deadCodeElimination(basicBlock, liveness);
                 }
+                refreshDefAndUse(functionEntity);
             }
         }
         //err.println("dead code : " + deadcodeCt);
@@ -54,8 +93,7 @@ public class DataFlowAnalyzer {
     private void refreshDefAndUse(FunctionEntity entity) {
         for (BasicBlock basicBlock : entity.bbs()) {
             for (Instruction ins : basicBlock.ins()) {
-                ins.initDefAndUse();
-                ins.calcDefAndUse();
+                ins.refreshDefAndUse();
             }
         }
     }
@@ -96,20 +134,31 @@ public class DataFlowAnalyzer {
         }
     }
 
-    private Map<Reference, Reference>  copyTable; // copy propagation
-    private Map<Expression, Reference> exprTable; // expression table
+    /*
+     * The tables are indexed both ways, so that a block is optimized in linear time.
+     * A value of the copy table is never a key of it (a -> a excepted), since a reference is replaced by its copy
+     * before it is put, so a reference is replaced by one lookup. Reference.replace compares by identity,
+     * and so do the tables.
+     */
+    private Map<Reference, Reference>  copyTable;       // copy propagation
+    private Map<Reference, List<Reference>> copyKeys;   // value -> keys of copy table, may be out of date
+    private Map<Expression, Reference> exprTable;       // expression table
+    private Map<Reference, Expression> exprKeys;        // value -> key of expression table, may be out of date
 
     private void commonSubexpressionElimination(FunctionEntity entity) {
         for (BasicBlock basicBlock : entity.bbs()) { // local
-            exprTable = new HashMap<>();
-            copyTable = new HashMap<>();
-            List<Instruction> newIns = new LinkedList<>();
+            exprTable = new LinkedHashMap<>();
+            exprKeys = new IdentityHashMap<>();
+            copyTable = new IdentityHashMap<>();
+            copyKeys = new IdentityHashMap<>();
+            List<Instruction> newIns = new ArrayList<>(basicBlock.ins().size());
+            List<Instruction> toadd = new ArrayList<>();
             for (Instruction ins : basicBlock.ins()) {
                 //err.println(ins.toString());
-                List<Instruction> toadd = new LinkedList<>();
+                toadd.clear();
                 if (ins instanceof Move) {
                     if (((Move) ins).dest().isAddress()) {        // store
-                        exprTable.clear(); copyTable.clear();
+                        clearTables();
                     } else if (((Move) ins).isRefMove()) {        // move ref1, ref2 (copy propagation
                         Reference dest = (Reference) ((Move) ins).dest();
                         Reference src = (Reference) ((Move) ins).src();
@@ -129,7 +178,7 @@ public class DataFlowAnalyzer {
                     }
                 } else if (ins instanceof Bin) {
                     if (((Bin) ins).left().isAddress()) {          // add [ref1], ref2
-                        exprTable.clear(); copyTable.clear();
+                        clearTables();
                     } else {                                       // add ref1, 12
                         Reference dest  = (Reference) ((Bin) ins).left();
 
@@ -160,7 +209,7 @@ public class DataFlowAnalyzer {
                 } else if (ins instanceof Label)  {
                     ; // do nothing
                 } else {
-                    exprTable.clear(); copyTable.clear();
+                    clearTables();
                 }
                 newIns.add(ins);
                 newIns.addAll(toadd);
@@ -169,42 +218,53 @@ public class DataFlowAnalyzer {
         }
     }
 
+    private void clearTables() {
+        exprTable.clear();
+        exprKeys.clear();
+        copyTable.clear();
+        copyKeys.clear();
+    }
+
     private void removeKey(Reference toremove) {
         // remove in expr table
-        for (Map.Entry<Expression, Reference> entry : exprTable.entrySet()) {
-            if (entry.getValue() == toremove) {
-                exprTable.remove(entry.getKey());
-                break;
-            }
-        }
+        Expression key = exprKeys.remove(toremove);
+        if (key != null && exprTable.get(key) == toremove)
+            exprTable.remove(key);
         // remove in copy table
         copyTable.remove(toremove);
-        List<Reference> toremoveKeys = new LinkedList<>();
-        for (Map.Entry<Reference, Reference> entry : copyTable.entrySet()) {
-            if (entry.getValue() == toremove) {
-                toremoveKeys.add(entry.getKey());
+        List<Reference> keys = copyKeys.remove(toremove);
+        if (keys != null) {
+            for (Reference copy : keys) {
+                if (copyTable.get(copy) == toremove)
+                    copyTable.remove(copy);
             }
         }
-        for (Reference toremoveKey : toremoveKeys) {
-            copyTable.remove(toremoveKey);
-        }
     }
     private int tmpCt = 0;
     private void putExpr(Reference res, Expression expr) {  // put expression into exprTable
         removeKey(res);
         exprTable.put(expr, res);
+        exprKeys.put(res, expr);
     }
     private void putCopy(Reference dest, Reference src) {
         removeKey(dest);
         copyTable.put(dest, src);
+        copyKeys.computeIfAbsent(src, k -> new ArrayList<>()).add(dest);
     }
     private Operand replaceCopy(Operand operand) {         // replace all the copies in a specific operand
-        for (Map.Entry<Reference, Reference> entry : copyTable.entrySet()) {
-            Reference from = entry.getKey();
-            Reference to = entry.getValue();
-            operand = operand.replace(from, to);
+        if (operand instanceof Address) {
+            Address addr = (Address) operand;
+            replaceCopy(addr, addr.base());
+            replaceCopy(addr, addr.index());
+            return addr;
         }
-        return operand;
+        Reference to = copyTable.get(operand);
+        return to == null ? operand : operand.replace(operand, to);
+    }
+    private void replaceCopy(Address addr, Operand from) {
+        Reference to = from == null ? null : copyTable.get(from);
+        if (to != null)
+            addr.replace(from, to);
     }
     // It's a trick here. optimize 2-address instruction into 3-address instruction
     private void transformMove(Reference dest, Reference src, List<Instruction> toadd) {
@@ -231,7 +291,7 @@ public class DataFlowAnalyzer {
     private void constantPropagation(FunctionEntity entity) {
         for (BasicBlock basicBlock : entity.bbs()) { // local
             constantTable = new HashMap<>();
-            List<Instruction> newIns = new LinkedList<>();
+            List<Instruction> newIns = new ArrayList<>(basicBlock.ins().size());
             for (Instruction ins : basicBlock.ins()) {
                 if (ins instanceof Move) {
                     Operand dest = ((Move) ins).dest();
@@ -250,43 +310,10 @@ public class DataFlowAnalyzer {
                     Pair<Boolean, Integer> left = getConstant(((Bin) ins).left());
                     Pair<Boolean, Integer> right = getConstant(((Bin) ins).right());
 
-                    if (left.first && right.first) {
-                        int value = 0;
-                        switch (((Bin) ins).name()) {
-                            case "sal":
-                                value = left.second << right.second;
-                                break;
-                            case "sar":
-                                value = left.second >> right.second;
-                                break;
-                            case "add":
-                                value = left.second + right.second;
-                                break;
-                            case "sub":
-                                value = left.second - right.second;
-                                break;
-                            case "and":
-                                value = left.second & right.second;
-                                break;
-                            case "imul":
-                                value = left.second * right.second;
-                                break;
-                            case "div":
-                                value = left.second / right.second;
-                                break;
-                            case "mod":
-                                value = left.second % right.second;
-                                break;
-                            case "xor":
-                                value = left.second ^ right.second;
-                                break;
-                            case "or":
-                                value = left.second | right.second;
-                                break;
-                            default:
-                                throw new InternalError("invalid operator in constant propagation");
-                        }
-                        constantTable.put((Reference) ((Bin) ins).left(), new Integer(value));
+                    Integer value = left.first && right.first
+                            ? ConstantPropagator.fold(((Bin) ins).name(), left.second, right.second) : null;
+                    if (value != null) {
+                        constantTable.put((Reference) ((Bin) ins).left(), value);
                         newIns.add(new Move(((Bin) ins).left(), new Immediate(value)));
                     } else {
                         if (left.first)
@@ -345,121 +372,22 @@ public class DataFlowAnalyzer {
      *  Dead Code Elimination
      */
     private int deadcodeCt = 0;
-    private void deadCodeElimination(BasicBlock basicBlock) {
-        List<Instruction> newIns = new LinkedList();
-        for (Instruction ins : basicBlock.ins()) {
-            if (ins instanceof Bin || ins instanceof Move) {
-                boolean dead = false;
-                if (ins.def().size() == 1) {
-                    dead = true;
-                    for (Reference ref : ins.def()) {
-                        if (ins.out().contains(ref))
-                            dead = false;
-                    }
-                }
-                if (!dead) {
-                    newIns.add(ins);
-                }
-                else {
-                    deadcodeCt++;
-                }
-            } else {
-                newIns.add(ins);
-            }
-        }
-        basicBlock.setIns(newIns);
-    }
-
-
-    /**
-     *  Data Flow Equation, Liveliness Analysis
-     */
-    private List<BasicBlock> sorted;
-    private Set<BasicBlock> visited;
-    private void dfsSort(BasicBlock bb) {
-        sorted.add(bb);
-        visited.add(bb);
-        for (BasicBlock pre : bb.predecessor()) {
-            if (!visited.contains(pre)) {
-                dfsSort(pre);
-            }
-        }
-    }
-
-    // following is copied from com.mercy.compiler.BackEnd.Allocator
-    private void initLivenessAnalysis(FunctionEntity entity) {
-        // sort blocks to boost iteration, iterate in reverse
-        sorted = new LinkedList<>();
-        visited = new HashSet<>();
-        ListIterator li = entity.bbs().listIterator(entity.bbs().size());
+    private void deadCodeElimination(BasicBlock basicBlock, LivenessAnalyzer liveness) {
+        // scan backward from the live-out of the block, kept instructions are collected in reverse
+        BitSet live = (BitSet) basicBlock.liveOut().clone();
+        List<Instruction> newIns = new ArrayList<>(basicBlock.ins().size());
+        ListIterator<Instruction> li = basicBlock.ins().listIterator(basicBlock.ins().size());
         while (li.hasPrevious()) {
-            BasicBlock pre = (BasicBlock) li.previous();
-            if (!visited.contains(pre))
-                dfsSort(pre);
-        }
-    }
-
-    private void livenessAnalysis(FunctionEntity entity) {
-        // inside a block, use linear scan
-        for (BasicBlock basicBlock : entity.bbs()) {
-            Set<Reference> def = basicBlock.def();
-            Set<Reference> use = basicBlock.use();
-            basicBlock.liveIn().clear();
-            basicBlock.liveOut().clear();
-            def.clear();
-            use.clear();
-            for (Instruction ins : basicBlock.ins()) {
-                for (Reference ref : ins.use()) {
-                    if (!def.contains(ref)) {
-                        use.add(ref);
-                    }
-                }
-                for (Reference ref : ins.def()) {
-                    def.add(ref);
-                }
-            }
-        }
-
-        // among blocks, use iteration to find fixed point
-        boolean modified = true;
-        while (modified) {
-            modified = false;
-            for (BasicBlock bb : sorted) {
-                Set<Reference> newIn = new HashSet<>();
-                Set<Reference> right = new HashSet<>(bb.liveOut());
-                right.removeAll(bb.def());
-                newIn.addAll(bb.use());
-                newIn.addAll(right);
-
-                Set<Reference> newOut = new HashSet<>();
-                for (BasicBlock suc : bb.successor()) {
-                    newOut.addAll(suc.liveIn());
-                }
-
-                modified |= !bb.liveIn().equals(newIn) || !bb.liveOut().equals(newOut);
-
-                bb.setLiveIn(newIn);
-                bb.setLiveOut(newOut);
-            }
-        }
-
-        // inside a block, use linear scan to build live-in and live-out for every instruction
-        Set<Reference> tmp;
-        for (BasicBlock basicBlock : entity.bbs()) {
-            HashSet<Reference> live = new HashSet<>(basicBlock.liveOut());
-
-            // generate an iterator. Start just after the last element.
-            ListIterator li = basicBlock.ins().listIterator(basicBlock.ins().size());
-            while (li.hasPrevious()) {
-                Instruction ins = (Instruction) li.previous();
-
-                tmp= new HashSet<>(); tmp.addAll(live); ins.setOut(tmp);
-
-                live.removeAll(ins.def());
-                live.addAll(ins.use());
-
-                tmp= new HashSet<>(); tmp.addAll(live); ins.setIn(tmp);
+            Instruction ins = li.previous();
+            if ((ins instanceof Bin || ins instanceof Move) && ins.def().size() == 1
+                    && !live.get(liveness.index(ins.def().iterator().next()))) {
+                deadcodeCt++;
+                continue;
             }
+            liveness.transfer(ins, live);
+            newIns.add(ins);
         }
+        Collections.reverse(newIns);
+        basicBlock.setIns(newIns);
     }
 }
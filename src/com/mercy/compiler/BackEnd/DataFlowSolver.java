@@ -0,0 +1,145 @@
+package com.mercy.compiler.BackEnd;
+
+import com.mercy.compiler.Entity.FunctionEntity;
+
+import java.util.*;
+
+/**
+ * Generic iterative solver of data flow equations on basic blocks.
+ * Blocks are numbered in reverse postorder (of the reversed graph for backward problems), and kept in
+ * a worklist which always hands out the pending block with the smallest number.
+ * Only the neighbours of a block whose value changed are visited again.
+ *
+ * For a block b,
+ *      input(b)  = meet of output(n) for every predecessor n (forward) or successor n (backward)
+ *      output(b) = transfer(b, input(b))
+ */
+abstract public class DataFlowSolver<T> {
+    public enum Direction {
+        FORWARD, BACKWARD
+    }
+
+    protected FunctionEntity entity;
+    private Direction direction;
+
+    private List<BasicBlock> order;
+    private Map<BasicBlock, Integer> number;
+    private int[][] from, to;    // neighbours by number, 'from' flows into a block, 'to' is affected by a block
+    private List<T> input, output;
+
+    public DataFlowSolver(FunctionEntity entity, Direction direction) {
+        this.entity = entity;
+        this.direction = direction;
+        initOrder();
+    }
+
+    // a new value, used as initial value of every block
+    abstract protected T newValue();
+    // value of input for a block that has no predecessor (forward) or successor (backward)
+    protected T boundary(BasicBlock bb) {
+        return newValue();
+    }
+    // result <- result meet value
+    abstract protected void meet(T result, T value);
+    // output <- transfer(input), return true if output is changed
+    abstract protected boolean transfer(BasicBlock bb, T input, T output);
+
+    public void solve() {
+        int n = order.size();
+        input = new ArrayList<>(n);
+        output = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            input.add(newValue());
+            output.add(newValue());
+        }
+
+        BitSet worklist = new BitSet(n);
+        worklist.set(0, n);
+        for (int i = worklist.nextSetBit(0); i >= 0; i = worklist.nextSetBit(0)) {
+            worklist.clear(i);
+            BasicBlock bb = order.get(i);
+
+            T in;
+            if (from[i].length == 0) {
+                in = boundary(bb);
+            } else {
+                in = newValue();
+                for (int pre : from[i])
+                    meet(in, output.get(pre));
+            }
+            input.set(i, in);
+
+            if (transfer(bb, in, output.get(i))) {
+                for (int suc : to[i])
+                    worklist.set(suc);
+            }
+        }
+    }
+
+    public T input(BasicBlock bb) {
+        return input.get(number.get(bb));
+    }
+
+    public T output(BasicBlock bb) {
+        return output.get(number.get(bb));
+    }
+
+    // blocks in the order of iteration
+    public List<BasicBlock> order() {
+        return order;
+    }
+
+    /*
+     * reverse postorder, starts from the entry (forward) or the exits (backward).
+     * Blocks that cannot be reached in this way (e.g. an infinite loop for backward) are appended.
+     */
+    private void initOrder() {
+        // blocks removed from the function can still stay in the predecessor list of others, ignore them
+        List<BasicBlock> bbs = entity.bbs();
+        Set<BasicBlock> inFunction = new HashSet<>(bbs);
+        List<BasicBlock> roots = new ArrayList<>();
+        if (direction == Direction.FORWARD) {
+            if (!bbs.isEmpty())
+                roots.add(bbs.get(0));
+        } else {
+            for (BasicBlock bb : bbs) {
+                if (bb.successor().isEmpty())
+                    roots.add(bb);
+            }
+        }
+        roots.addAll(bbs);
+
+        order = GraphOrder.reversePostorder(roots, this::next, inFunction::contains);
+        number = new HashMap<>();
+        for (int i = 0; i < order.size(); i++)
+            number.put(order.get(i), i);
+
+        from = new int[order.size()][];
+        to = new int[order.size()][];
+        for (int i = 0; i < order.size(); i++) {
+            BasicBlock bb = order.get(i);
+            if (direction == Direction.FORWARD) {
+                from[i] = numbers(bb.predecessor());
+                to[i] = numbers(bb.successor());
+            } else {
+                from[i] = numbers(bb.successor());
+                to[i] = numbers(bb.predecessor());
+            }
+        }
+    }
+
+    private int[] numbers(List<BasicBlock> bbs) {
+        int[] ret = new int[bbs.size()];
+        int ct = 0;
+        for (BasicBlock bb : bbs) {
+            Integer x = number.get(bb);
+            if (x != null)
+                ret[ct++] = x;
+        }
+        return Arrays.copyOf(ret, ct);
+    }
+
+    private List<BasicBlock> next(BasicBlock bb) {
+        return direction == Direction.FORWARD ? bb.successor() : bb.predecessor();
+    }
+}
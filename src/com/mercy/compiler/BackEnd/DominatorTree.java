@@ -0,0 +1,184 @@
+package com.mercy.compiler.BackEnd;
+
+import com.mercy.compiler.Entity.FunctionEntity;
+
+import java.util.*;
+
+/**
+ * Dominator tree and dominance frontiers of the blocks of a function.
+ *      Cooper, Keith D.; Harvey, Timothy J.; Kennedy, Ken (2001). "A Simple, Fast Dominance Algorithm"
+ *
+ * The entry is the first block of entity.bbs(). Blocks which cannot be reached from it are not in the tree.
+ * Blocks are numbered in reverse postorder, a block is always numbered after its immediate dominator.
+ */
+public class DominatorTree {
+    private List<BasicBlock> order;             // reverse postorder
+    private Map<BasicBlock, Integer> number = new HashMap<>();
+    private int[] idom;
+    private List<List<BasicBlock>> children;
+    private int[] enter, exit;                  // interval of a block in the preorder of the tree
+    private List<List<BasicBlock>> frontier;
+
+    public DominatorTree(FunctionEntity entity) {
+        List<BasicBlock> bbs = entity.bbs();
+        Set<BasicBlock> inFunction = new HashSet<>(bbs);
+        order = bbs.isEmpty() ? new ArrayList<>()
+                : GraphOrder.reversePostorder(Collections.singletonList(bbs.get(0)), BasicBlock::successor, inFunction::contains);
+        for (int i = 0; i < order.size(); i++)
+            number.put(order.get(i), i);
+
+        computeIdom();
+        computeTree();
+    }
+
+    // iterate until the dominators are stable, a predecessor not processed yet is skipped
+    private void computeIdom() {
+        int n = order.size();
+        idom = new int[n];
+        Arrays.fill(idom, -1);
+        if (n == 0)
+            return;
+        idom[0] = 0;
+
+        // the deepest predecessor first, so the finger of intersect only moves up. The join after
+        // a long && chain has a predecessor at every depth of it, in any other order this is quadratic
+        int[][] pres = new int[n][];
+        for (int i = 1; i < n; i++)
+            pres[i] = reachablePredecessors(i).stream().sorted(Comparator.reverseOrder()).mapToInt(x -> x).toArray();
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < n; i++) {
+                int newIdom = -1;
+                for (int p : pres[i]) {
+                    if (idom[p] < 0)
+                        continue;
+                    newIdom = newIdom < 0 ? p : intersect(p, newIdom);
+                }
+                if (newIdom != idom[i]) {
+                    idom[i] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private Set<Integer> reachablePredecessors(int i) {
+        Set<Integer> pres = new LinkedHashSet<>();
+        for (BasicBlock pre : order.get(i).predecessor()) {
+            Integer p = number.get(pre);
+            if (p != null)
+                pres.add(p);
+        }
+        return pres;
+    }
+
+    private int intersect(int a, int b) {
+        while (a != b) {
+            while (a > b)
+                a = idom[a];
+            while (b > a)
+                b = idom[b];
+        }
+        return a;
+    }
+
+    private void computeTree() {
+        int n = order.size();
+        children = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            children.add(new ArrayList<>());
+        for (int i = 1; i < n; i++)
+            children.get(idom[i]).add(order.get(i));
+
+        enter = new int[n];
+        exit = new int[n];
+        int counter = 0;
+        for (BasicBlock bb : preorder())
+            enter[number.get(bb)] = counter++;
+        // the last block in preorder of the subtree of a block, children come after their parent in reverse postorder
+        for (int i = n - 1; i >= 0; i--) {
+            exit[i] = enter[i];
+            for (BasicBlock child : children.get(i))
+                exit[i] = Math.max(exit[i], exit[number.get(child)]);
+        }
+    }
+
+    /*
+     * query
+     */
+    public boolean contains(BasicBlock bb) {
+        return number.containsKey(bb);
+    }
+
+    public BasicBlock entry() {
+        return order.get(0);
+    }
+
+    // reachable blocks in reverse postorder
+    public List<BasicBlock> blocks() {
+        return order;
+    }
+
+    // null for the entry
+    public BasicBlock idom(BasicBlock bb) {
+        int x = number.get(bb);
+        return x == 0 ? null : order.get(idom[x]);
+    }
+
+    public List<BasicBlock> children(BasicBlock bb) {
+        return children.get(number.get(bb));
+    }
+
+    // a dominates b, every block dominates itself
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        int x = number.get(a), y = number.get(b);
+        return enter[x] <= enter[y] && enter[y] <= exit[x];
+    }
+
+    // blocks of the tree, a parent before its children
+    public List<BasicBlock> preorder() {
+        List<BasicBlock> ret = new ArrayList<>(order.size());
+        if (order.isEmpty())
+            return ret;
+        Deque<BasicBlock> stack = new ArrayDeque<>();
+        stack.push(order.get(0));
+        while (!stack.isEmpty()) {
+            BasicBlock bb = stack.pop();
+            ret.add(bb);
+            List<BasicBlock> list = children.get(number.get(bb));
+            for (int i = list.size() - 1; i >= 0; i--)
+                stack.push(list.get(i));
+        }
+        return ret;
+    }
+
+    // blocks where the dominance of bb ends
+    public List<BasicBlock> frontier(BasicBlock bb) {
+        if (frontier == null)
+            computeFrontier();
+        return frontier.get(number.get(bb));
+    }
+
+    private void computeFrontier() {
+        int n = order.size();
+        frontier = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            frontier.add(new ArrayList<>());
+        for (int i = 0; i < n; i++) {
+            Set<Integer> pres = reachablePredecessors(i);
+            if (pres.size() < 2)
+                continue;
+            for (int p : pres) {
+                for (int runner = p; runner != idom[i]; runner = idom[runner]) {
+                    List<BasicBlock> list = frontier.get(runner);
+                    // an earlier runner got here and went on up to idom[i]
+                    if (!list.isEmpty() && list.get(list.size() - 1) == order.get(i))
+                        break;
+                    list.add(order.get(i));
+                }
+            }
+        }
+    }
+}
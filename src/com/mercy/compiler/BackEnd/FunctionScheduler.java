@@ -0,0 +1,122 @@
+package com.mercy.compiler.BackEnd;
+
+import com.mercy.compiler.Entity.FunctionEntity;
+import com.mercy.compiler.Utility.PassStatistics;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs a backend pass on every function that is not inlined, one task per function.
+ * Tasks run on a ForkJoinPool of Option.backendThreads workers, or in order on the calling thread for 1 worker.
+ * Every compilation has its own scheduler, the pools are shared by compilations with the same number of workers.
+ * Results and errors are reported in the order of the function list, so the output does not depend on scheduling.
+ * A task must not touch the state of other functions, passes keep their per-function state in their own instance.
+ */
+public class FunctionScheduler {
+    private static final Map<Integer, ForkJoinPool> pools = new HashMap<>();
+
+    private static ForkJoinPool pool(int threads) {
+        synchronized (pools) {
+            return pools.computeIfAbsent(threads, ForkJoinPool::new);
+        }
+    }
+
+    private int threads;
+    private boolean countAllocation;
+    private AtomicLong workerBytes = new AtomicLong();
+
+    public FunctionScheduler(int threads) {
+        this.threads = threads;
+    }
+
+    // sum the bytes allocated by the tasks run on the workers of the pool, for PassStatistics
+    public void countAllocation() {
+        countAllocation = true;
+    }
+
+    public long workerAllocatedBytes() {
+        return workerBytes.get();
+    }
+
+    public void forEach(List<FunctionEntity> functionEntities, Consumer<FunctionEntity> task) {
+        map(functionEntities, entity -> {
+            task.accept(entity);
+            return null;
+        });
+    }
+
+    public <T> List<T> map(List<FunctionEntity> functionEntities, Function<FunctionEntity, T> task) {
+        List<T> ret = new ArrayList<>();
+        forEachOrdered(functionEntities, task, ret::add);
+        return ret;
+    }
+
+    /*
+     * Hand the result of every function to 'consumer' on the calling thread, in the order of the function list,
+     * as soon as it and all results before it are ready. At most WINDOW tasks per worker are ahead of the consumer,
+     * so the results waiting for consumption do not grow with the number of functions.
+     */
+    private static final int WINDOW = 4;
+
+    public <T> void forEachOrdered(List<FunctionEntity> functionEntities, Function<FunctionEntity, T> task,
+                                          Consumer<T> consumer) {
+        List<FunctionEntity> functions = new ArrayList<>();
+        for (FunctionEntity entity : functionEntities) {
+            if (!entity.isInlined())
+                functions.add(entity);
+        }
+
+        if (threads <= 1 || functions.size() <= 1) {
+            for (FunctionEntity entity : functions)
+                consumer.accept(task.apply(entity));
+            return;
+        }
+
+        ForkJoinPool pool = pool(threads);
+        Thread caller = Thread.currentThread();
+        Deque<ForkJoinTask<Outcome<T>>> pending = new ArrayDeque<>();
+        Iterator<FunctionEntity> iter = functions.iterator();
+        try {
+            while (iter.hasNext() || !pending.isEmpty()) {
+                while (iter.hasNext() && pending.size() < WINDOW * threads) {
+                    FunctionEntity entity = iter.next();
+                    pending.add(pool.submit(() -> {
+                        // join() may run a task on the caller, whose bytes are counted by PassStatistics itself
+                        long startBytes = countAllocation && Thread.currentThread() != caller
+                                ? PassStatistics.currentThreadAllocatedBytes() : -1;
+                        Outcome<T> outcome = new Outcome<>();
+                        try {
+                            outcome.value = task.apply(entity);
+                        } catch (RuntimeException | Error e) {  // rethrow it as it is, join() may wrap it
+                            outcome.error = e;
+                        }
+                        if (startBytes >= 0)
+                            workerBytes.addAndGet(PassStatistics.currentThreadAllocatedBytes() - startBytes);
+                        return outcome;
+                    }));
+                }
+
+                // report the error of the first function, as a sequential backend does
+                Outcome<T> outcome = pending.remove().join();
+                if (outcome.error instanceof RuntimeException)
+                    throw (RuntimeException) outcome.error;
+                if (outcome.error instanceof Error)
+                    throw (Error) outcome.error;
+                consumer.accept(outcome.value);
+            }
+        } finally {
+            for (ForkJoinTask<Outcome<T>> t : pending)
+                t.cancel(false);
+        }
+    }
+
+    private static class Outcome<T> {
+        T value;
+        Throwable error;
+    }
+}
@@ -0,0 +1,117 @@
+package com.mercy.compiler.BackEnd;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Orders of the nodes of a directed graph : postorder, reverse postorder and strongly connected components.
+ * The graph is given by a function from a node to its successors, e.g. the control flow graph of a function
+ * or the call graph. All traversals use explicit stacks, so graphs of any size and depth are safe.
+ * Successors are visited in the order they are listed, so the result is deterministic.
+ */
+public class GraphOrder {
+    private GraphOrder() {
+    }
+
+    /*
+     * postorder of a depth first search from the roots, in their order. A root already visited is skipped.
+     * successors which are not in the graph ('inGraph' is false) are not visited.
+     */
+    public static <N> List<N> postorder(Iterable<N> roots, Function<N, ? extends Iterable<N>> next, Predicate<N> inGraph) {
+        Set<N> visited = new HashSet<>();
+        List<N> postorder = new ArrayList<>();
+        Deque<N> stack = new ArrayDeque<>();
+        Deque<Iterator<N>> iters = new ArrayDeque<>();
+        for (N root : roots) {
+            if (visited.contains(root))
+                continue;
+            visited.add(root);
+            stack.push(root);
+            iters.push(next.apply(root).iterator());
+            while (!stack.isEmpty()) {
+                Iterator<N> iter = iters.peek();
+                if (iter.hasNext()) {
+                    N suc = iter.next();
+                    if (!visited.contains(suc) && inGraph.test(suc)) {
+                        visited.add(suc);
+                        stack.push(suc);
+                        iters.push(next.apply(suc).iterator());
+                    }
+                } else {
+                    postorder.add(stack.pop());
+                    iters.pop();
+                }
+            }
+        }
+        return postorder;
+    }
+
+    public static <N> List<N> reversePostorder(Iterable<N> roots, Function<N, ? extends Iterable<N>> next, Predicate<N> inGraph) {
+        List<N> order = postorder(roots, next, inGraph);
+        Collections.reverse(order);
+        return order;
+    }
+
+    /*
+     * strongly connected components of the nodes reachable from the roots (Tarjan's algorithm).
+     * components are in reverse topological order : a component comes after every component it reaches.
+     */
+    public static <N> List<List<N>> stronglyConnectedComponents(Iterable<N> roots, Function<N, ? extends Iterable<N>> next) {
+        Map<N, Integer> index = new HashMap<>();
+        Map<N, Integer> lowlink = new HashMap<>();
+        Set<N> onStack = new HashSet<>();
+        Deque<N> component = new ArrayDeque<>();    // nodes whose component is not finished
+        Deque<N> stack = new ArrayDeque<>();        // path of the search
+        Deque<Iterator<N>> iters = new ArrayDeque<>();
+        List<List<N>> components = new ArrayList<>();
+
+        for (N root : roots) {
+            if (index.containsKey(root))
+                continue;
+            visit(root, index, lowlink, onStack, component, stack, iters, next);
+            while (!stack.isEmpty()) {
+                N node = stack.peek();
+                Iterator<N> iter = iters.peek();
+                if (iter.hasNext()) {
+                    N suc = iter.next();
+                    if (!index.containsKey(suc)) {
+                        visit(suc, index, lowlink, onStack, component, stack, iters, next);
+                    } else if (onStack.contains(suc)) {
+                        lowlink.put(node, Math.min(lowlink.get(node), index.get(suc)));
+                    }
+                    continue;
+                }
+
+                stack.pop();
+                iters.pop();
+                if (!stack.isEmpty()) {
+                    N parent = stack.peek();
+                    lowlink.put(parent, Math.min(lowlink.get(parent), lowlink.get(node)));
+                }
+                if (lowlink.get(node).equals(index.get(node))) {
+                    List<N> scc = new ArrayList<>();
+                    N member;
+                    do {
+                        member = component.pop();
+                        onStack.remove(member);
+                        scc.add(member);
+                    } while (member != node);
+                    components.add(scc);
+                }
+            }
+        }
+        return components;
+    }
+
+    private static <N> void visit(N node, Map<N, Integer> index, Map<N, Integer> lowlink, Set<N> onStack,
+                                  Deque<N> component, Deque<N> stack, Deque<Iterator<N>> iters,
+                                  Function<N, ? extends Iterable<N>> next) {
+        index.put(node, index.size());
+        lowlink.put(node, index.get(node));
+        onStack.add(node);
+        component.push(node);
+        stack.push(node);
+        iters.push(next.apply(node).iterator());
+    }
+}
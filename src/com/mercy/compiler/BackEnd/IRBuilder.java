@@ -1,6 +1,7 @@
 package com.mercy.compiler.BackEnd;
 
 import com.mercy.compiler.AST.*;
+import com.mercy.compiler.CompilationContext;
 import com.mercy.compiler.Entity.*;
 import com.mercy.compiler.FrontEnd.AST;
 import com.mercy.compiler.FrontEnd.ASTVisitor;
@@ -24,6 +25,8 @@ import static java.lang.System.err;
 public class IRBuilder implements ASTVisitor<Void, Expr> {
     private List<IR> stmts = new LinkedList<>();
 
+    private CompilationContext context;
+    private Option option;
     private AST ast;
     private int exprDepth = 0;
 
@@ -42,6 +45,8 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
 
     public IRBuilder(AST abstractSemanticTree) {
         this.ast = abstractSemanticTree;
+        this.context = ast.context();
+        this.option = context.option();
         mallocFunc = (FunctionEntity) ast.scope().lookupCurrentLevel(LIB_PREFIX + "malloc");
         printIntFunc = (FunctionEntity) ast.scope().lookupCurrentLevel(LIB_PREFIX + "printInt");
         printlnIntFunc = (FunctionEntity) ast.scope().lookupCurrentLevel(LIB_PREFIX + "printlnInt");
@@ -57,9 +62,12 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
         }
 
         // check all functions whether inlined
-        if (Option.enableFunctionInline) {
+        if (option.enableFunctionInline) {
+            Set<FunctionEntity> recursive = recursiveFunctions(ast.functionEntities());
             for (FunctionEntity entity : ast.functionEntities()) {
-                entity.checkInlinable();
+                entity.checkInlinable(recursive.contains(entity));
+                if (entity.isInlined() && option.printInlineInfo)
+                    err.println(entity.name() + " is inlined");
             }
             for (ClassEntity entity : ast.classEntitsies()) {
                 for (FunctionDefNode node : entity.memberFuncs()) {
@@ -97,6 +105,17 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
         }
     }
 
+    // functions on a cycle of the call graph : a component of several functions, or one calling itself
+    private Set<FunctionEntity> recursiveFunctions(List<FunctionEntity> functions) {
+        Set<FunctionEntity> ret = new HashSet<>();
+        for (List<FunctionEntity> component : GraphOrder.stronglyConnectedComponents(functions, FunctionEntity::calls)) {
+            FunctionEntity first = component.get(0);
+            if (component.size() > 1 || first.calls().contains(first))
+                ret.addAll(component);
+        }
+        return ret;
+    }
+
     private void compileFunction(FunctionEntity entity) {
         if (entity.isInlined())
             return;
@@ -136,8 +155,8 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
     public Void visit(VariableDefNode node) {
         ExprNode init = node.entity().initializer();
         if (init != null) {
-            if (Option.enableOutputIrrelevantElimination && node.entity().outputIrrelevant()) {
-                if (Option.printRemoveInfo)
+            if (option.enableOutputIrrelevantElimination && node.entity().outputIrrelevant()) {
+                if (option.printRemoveInfo)
                     err.println("! remove init " + node.location());
             }
             else {
@@ -260,8 +279,8 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
 
     @Override
     public Void visit(WhileNode node) {
-        if (Option.enableOutputIrrelevantElimination && node.outputIrrelevant()) {
-            if (Option.printRemoveInfo)
+        if (option.enableOutputIrrelevantElimination && node.outputIrrelevant()) {
+            if (option.printRemoveInfo)
                 System.out.println("! remove while " + node.location());
             return null;
         }
@@ -271,8 +290,8 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
 
     @Override
     public Void visit(ForNode node) {
-        if (Option.enableOutputIrrelevantElimination && node.outputIrrelevant()) {
-            if (Option.printRemoveInfo)
+        if (option.enableOutputIrrelevantElimination && node.outputIrrelevant()) {
+            if (option.printRemoveInfo)
                 err.println("! remove for " + node.location());
             return null;
         }
@@ -323,17 +342,21 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
     }
 
     private Pair<Boolean, Integer> ExprHashing(ExprNode node) {
-        if (node instanceof BinaryOpNode) {
-            Pair<Boolean, Integer> left = ExprHashing(((BinaryOpNode) node).left());
-            Pair<Boolean, Integer> right = ExprHashing(((BinaryOpNode) node).right());
-            if (left.first && right.first) {
-                int hash = ((BinaryOpNode) node).operator().hashCode();  // DANGEROUS
-                hash += left.second;
-                hash += right.second ^ 0x5D;
-                return new Pair<>(true, hash);
-            } else {
-                return new Pair<>(false, 0);
+        if (node instanceof BinaryOpNode) {     // a chain like a / b / c by a loop, see BinaryOpNode.leftChain
+            List<BinaryOpNode> chain = ((BinaryOpNode) node).leftChain();
+            Pair<Boolean, Integer> left = ExprHashing(chain.get(0).left());
+            for (BinaryOpNode now : chain) {
+                Pair<Boolean, Integer> right = ExprHashing(now.right());
+                if (left.first && right.first) {
+                    int hash = now.operator().hashCode();  // DANGEROUS
+                    hash += left.second;
+                    hash += right.second ^ 0x5D;
+                    left = new Pair<>(true, hash);
+                } else {
+                    left = new Pair<>(false, 0);
+                }
             }
+            return left;
         } else if (node instanceof VariableNode) {
             return new Pair<>(true, ((VariableNode) node).entity().hashCode());
         } else if (node instanceof IntegerLiteralNode) {
@@ -345,11 +368,16 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
 
     private Set<Entity> getDependency(ExprNode node) {
         Set<Entity> ret = new HashSet<>();
-        if (node instanceof BinaryOpNode) {
-            ret.addAll(getDependency(((BinaryOpNode)node).left()));
-            ret.addAll(getDependency(((BinaryOpNode)node).right()));
-        } else if (node instanceof VariableNode) {
-            ret.add(((VariableNode) node).entity());
+        Deque<ExprNode> stack = new ArrayDeque<>();     // not by recursion, a chain can be very deep
+        stack.push(node);
+        while (!stack.isEmpty()) {
+            ExprNode now = stack.pop();
+            if (now instanceof BinaryOpNode) {
+                stack.push(((BinaryOpNode) now).right());
+                stack.push(((BinaryOpNode) now).left());
+            } else if (now instanceof VariableNode) {
+                ret.add(((VariableNode) now).entity());
+            }
         }
         return ret;
     }
@@ -369,14 +397,14 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
 
         /***** OPTIMIZATION BEGIN *****/
         // output irrelevant elimination
-        if (!needReturn() && Option.enableOutputIrrelevantElimination && node.outputIrrelevant()) {
-            if (Option.printRemoveInfo)
+        if (!needReturn() && option.enableOutputIrrelevantElimination && node.outputIrrelevant()) {
+            if (option.printRemoveInfo)
                 err.println("! remove assign " + node.location());
             return null;
         }
 
         // common assign elimination (this is a data-oriented optimization)
-        if (Option.enableCommonAssignElimination && lhs instanceof  Var) {
+        if (option.enableCommonAssignElimination && lhs instanceof  Var) {
             Entity entity = ((Var) lhs).entity();
 
             Pair<Boolean, Integer> ret = ExprHashing(node.rhs());
@@ -405,14 +433,22 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
         return lhs;
     }
 
+    // a chain like a / b / c is built by a loop, see BinaryOpNode.leftChain.
+    // the nodes below the top are operands, so their values are always needed
     @Override
     public Expr visit(BinaryOpNode node) {
-        Expr lhs = visitExpr(node.left()), rhs = visitExpr(node.right());
-
-        if (!needReturn()) {
-            return null;
+        List<BinaryOpNode> chain = node.leftChain();
+        Expr lhs = visitExpr(chain.get(0).left());
+        for (BinaryOpNode now : chain) {
+            Expr rhs = visitExpr(now.right());
+            if (now == node && !needReturn())
+                return null;
+            lhs = binary(now, lhs, rhs);
         }
+        return lhs;
+    }
 
+    private Expr binary(BinaryOpNode node, Expr lhs, Expr rhs) {
         // simple constant folding for integer
         if (lhs instanceof IntConst && rhs instanceof IntConst) {
             int lvalue = ((IntConst)lhs).value(), rvalue = ((IntConst)rhs).value();
@@ -474,24 +510,10 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
         // convert string operator to function call
         if (node.left().type().isString()) {
             Expr right = rhs;
-            switch (node.operator()) {   // can be optimized here (use inline call)
-                case ADD:
-                    return new Call(StringType.operatorADD, new LinkedList<Expr>(){{ add(lhs); add(right); }});
-                case EQ:
-                    return new Call(StringType.operatorEQ, new LinkedList<Expr>(){{ add(lhs); add(right); }});
-                case NE:
-                    return new Call(StringType.operatorNE, new LinkedList<Expr>(){{ add(lhs); add(right); }});
-                case GT:
-                    return new Call(StringType.operatorGT, new LinkedList<Expr>(){{ add(lhs); add(right); }});
-                case LT:
-                    return new Call(StringType.operatorLT, new LinkedList<Expr>(){{ add(lhs); add(right); }});
-                case LE:
-                    return new Call(StringType.operatorLE, new LinkedList<Expr>(){{ add(lhs); add(right); }});
-                case GE:
-                    return new Call(StringType.operatorGE, new LinkedList<Expr>(){{ add(lhs); add(right); }});
-                default:
-                    throw new InternalError(node.location(), "invalid operator " + node.operator());
-            }
+            FunctionEntity operator = context.stringOperator(node.operator());  // can be optimized here (use inline call)
+            if (operator == null)
+                throw new InternalError(node.location(), "invalid operator " + node.operator());
+            return new Call(operator, new LinkedList<Expr>(){{ add(lhs); add(right); }});
         } else {  // convert the type of operator (AST.BinaryOp -> IR.BinaryOP)
             Binary.BinaryOp op;
             switch (node.operator()) {
@@ -556,7 +578,7 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
         FunctionEntity entity = node.functionType().entity();
 
         // expand print (optimization)
-        if (Option.enablePrintExpanding) {
+        if (option.enablePrintExpanding) {
             if (entity.name().equals("print")) {
                 expandPrint(node.args().get(0), false, true);
                 return null;
@@ -572,9 +594,9 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
             args.add(visitExpr(exprNode));
 
         // make call
-        if (Option.enableFunctionInline && entity.isInlined() ||
-                (Option.enableSelfInline && entity == currentFunction && entity.canbeSelfInline(inlineMode))) {
-            if (Option.printInlineInfo && entity == currentFunction)
+        if (option.enableFunctionInline && entity.isInlined() ||
+                (option.enableSelfInline && entity == currentFunction && entity.canbeSelfInline(inlineMode))) {
+            if (option.printInlineInfo && entity == currentFunction)
                 err.println(entity.name() + " is self expanded");
             if (needReturn()) {
                 Var tmp = newIntTemp();
@@ -842,7 +864,7 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
     }
 
     private void addAssign(Expr lhs, Expr rhs) {
-        if (Option.enableCommonAssignElimination && lhs instanceof Var) {
+        if (option.enableCommonAssignElimination && lhs instanceof Var) {
             if (inDependency.contains(((Var) lhs).entity())) {
                 clearAssignTable();
             }
@@ -857,7 +879,7 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
     }
 
     private void addCJump(ExprNode cond, Label trueLabel, Label falseLabel) {
-        if (Option.enableCJumpOptimization) {
+        if (option.enableCJumpOptimization) {
             if (cond instanceof BinaryOpNode) {
                 BinaryOpNode node = (BinaryOpNode) cond;
                 Label goon = new Label();
@@ -902,7 +924,7 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
     private List<Var> tmpStack = new LinkedList<>();
     private int tmpTop = 0, newIntTempCounter = 0;
     private Var newIntTemp() {
-        if (Option.enableGlobalRegisterAllocation) {
+        if (option.enableGlobalRegisterAllocation) {
             VariableEntity tmp = new VariableEntity(null, new IntegerType(),
                     "tmp" + newIntTempCounter++, null);
             currentFunction.scope().insert(tmp);
@@ -996,4 +1018,8 @@ public class IRBuilder implements ASTVisitor<Void, Expr> {
     public AST ast() {
         return ast;
     }
+
+    public CompilationContext context() {
+        return context;
+    }
 }
\ No newline at end of file
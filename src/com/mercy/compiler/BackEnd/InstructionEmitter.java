@@ -1,6 +1,7 @@
 package com.mercy.compiler.BackEnd;
 
 import com.mercy.compiler.AST.FunctionDefNode;
+import com.mercy.compiler.CompilationContext;
 import com.mercy.compiler.Entity.*;
 import com.mercy.compiler.INS.*;
 import com.mercy.compiler.INS.CJump;
@@ -26,6 +27,8 @@ import static java.lang.System.err;
  * Created by mercy on 17-4-25.
  */
 public class InstructionEmitter {
+    private CompilationContext context;
+    private Option option;
     private List<FunctionEntity> functionEntities;
     private Scope globalScope;
     private List<IR> globalInitializer;
@@ -35,6 +38,8 @@ public class InstructionEmitter {
     private boolean isInLeaf;
 
     public InstructionEmitter(IRBuilder irBuilder) {
+        this.context = irBuilder.context();
+        this.option = context.option();
         this.globalScope = irBuilder.globalScope();
         this.functionEntities = new LinkedList<>(irBuilder.functionEntities());
         for (ClassEntity entity : irBuilder.ast().classEntitsies()) {
@@ -45,6 +50,15 @@ public class InstructionEmitter {
         this.globalInitializer = irBuilder.globalInitializer();
     }
 
+    // an emitter for one function, the visitor keeps the state of the function it is emitting
+    private InstructionEmitter(InstructionEmitter global) {
+        this.context = global.context;
+        this.option = global.option;
+        this.globalScope = global.globalScope;
+        this.functionEntities = global.functionEntities;
+        this.globalInitializer = global.globalInitializer;
+    }
+
     public void emit() {
         int stringCounter = 1;
 
@@ -59,17 +73,20 @@ public class InstructionEmitter {
         }
 
         // emit functions
-        for (FunctionEntity functionEntity : functionEntities) {
-            currentFunction = functionEntity;
-            tmpStack = new ArrayList<>();
-            functionEntity.setINS(emitFunction(functionEntity));
-            functionEntity.setTmpStack(tmpStack);
-        }
+        context.scheduler().forEach(functionEntities, entity -> new InstructionEmitter(this).emitFunction(entity));
+    }
+
+    private void emitFunction(FunctionEntity functionEntity) {
+        currentFunction = functionEntity;
+        tmpStack = new ArrayList<>();
+        functionEntity.setINS(emitInstructions(functionEntity));
+        functionEntity.setTmpStack(tmpStack);
     }
+
     private Map<Entity, Entity> globalLocalMap = new HashMap<>();
     private Set<Entity> usedGlobal;
 
-    private List<Instruction> emitFunction(FunctionEntity entity) {
+    private List<Instruction> emitInstructions(FunctionEntity entity) {
         if (entity.isInlined())
             return null;
 
@@ -80,10 +97,10 @@ public class InstructionEmitter {
                 callSize--;
         }
 
-        if (Option.enableLeafFunctionOptimization && callSize == 0) {
+        if (option.enableLeafFunctionOptimization && callSize == 0) {
             isInLeaf = true;
             err.println(entity.name() + " is leaf");
-            usedGlobal = new HashSet<>();
+            usedGlobal = new LinkedHashSet<>();
             // make copy to local
             for (Entity global : globalScope.entities().values()) {
                 if (global instanceof  VariableEntity) {
@@ -106,7 +123,7 @@ public class InstructionEmitter {
 
         // emit instructions
         entity.setLabelINS(getLabel(entity.beginLabelIR().name()), getLabel(entity.endLabelIR().name()));
-        ins = new LinkedList<>();
+        ins = new ArrayList<>();
         for (IR ir : entity.IR()) {
             tmpTop = exprDepth = 0;
             ir.accept(this);
@@ -114,10 +131,14 @@ public class InstructionEmitter {
 
         // if is in leaf, add move instruction for copy global to local
         if (isInLeaf) {
+            List<Instruction> load = new ArrayList<>(), store = new ArrayList<>();
             for (Entity global : usedGlobal) {
-                ins.add(1, new Move(transEntity(global).reference(), global.reference()));
-                ins.add(ins.size(), new Move(global.reference(), transEntity(global).reference()));
+                load.add(new Move(transEntity(global).reference(), global.reference()));
+                store.add(new Move(global.reference(), transEntity(global).reference()));
             }
+            Collections.reverse(load);  // the same order as inserting them one by one after the begin label
+            ins.addAll(1, load);
+            ins.addAll(store);
         }
         return ins;
     }
@@ -195,7 +216,7 @@ public class InstructionEmitter {
     // match all types of address [base + index * mul + offset]
     // two step : 1.match offset 2. match [base + index * mul]
     private AddressTuple matchAddress(Expr expr) {
-        if (!Option.enableInstructionSelection)
+        if (!option.enableInstructionSelection)
             return null;
 
         if (!(expr instanceof Binary))
@@ -345,32 +366,48 @@ public class InstructionEmitter {
         return left;
     }
 
+    /*
+     * a chain like a / b / c is as deep as it is long, so the binary operators down its left side are collected
+     * by a loop, and emitted from the bottom up after the leftmost operand. A left operand which visitExpr would
+     * select as an address ends the chain, it is visited as an operand.
+     */
     public Operand visit(com.mercy.compiler.IR.Binary ir) {
-        Operand ret;
-        Expr left = ir.left(), right = ir.right();
-        Binary.BinaryOp op = ir.operator();
-
-        if (isCommutative(op) && left instanceof IntConst) {
-            Expr t = left; left = right; right = t;
-        }
-
-        // use shift to boost multiplication and division
-        if (op == MUL) {
-            if (right instanceof IntConst && log2(((IntConst) right).value()) != -1) {
-                op = LSHIFT;
-                right = new IntConst(log2(((IntConst) right).value()));
+        LinkedList<Binary.BinaryOp> ops = new LinkedList<>();
+        LinkedList<Expr> rights = new LinkedList<>();
+        Expr now = ir;
+        do {
+            Binary bin = (Binary) now;
+            Expr left = bin.left(), right = bin.right();
+            Binary.BinaryOp op = bin.operator();
+
+            if (isCommutative(op) && left instanceof IntConst) {
+                Expr t = left; left = right; right = t;
             }
-        } else if (op == Binary.BinaryOp.DIV) {
-            if (right instanceof IntConst && log2(((IntConst) right).value()) != -1) {
-                op = RSHIFT;
-                right = new IntConst(log2(((IntConst) right).value()));
+
+            // use shift to boost multiplication and division
+            if (op == MUL) {
+                if (right instanceof IntConst && log2(((IntConst) right).value()) != -1) {
+                    op = LSHIFT;
+                    right = new IntConst(log2(((IntConst) right).value()));
+                }
+            } else if (op == Binary.BinaryOp.DIV) {
+                if (right instanceof IntConst && log2(((IntConst) right).value()) != -1) {
+                    op = RSHIFT;
+                    right = new IntConst(log2(((IntConst) right).value()));
+                }
             }
-        }
 
-        ret = visitExpr(left);
-        Operand rrr = visitExpr(right);
-        ret = addBinary(op, ret, rrr);
+            ops.addFirst(op);
+            rights.addFirst(right);
+            now = left;
+        } while (now instanceof Binary && matchAddress(now) == null);
 
+        Operand ret = visitExpr(now);
+        Iterator<Expr> right = rights.iterator();
+        for (Binary.BinaryOp op : ops) {
+            Operand rrr = visitExpr(right.next());
+            ret = addBinary(op, ret, rrr);
+        }
         return ret;
     }
 
@@ -576,7 +613,7 @@ public class InstructionEmitter {
     private int tmpTop = 0;
     private int tmpCounter = 0;
     public Reference getTmp() {
-        if (Option.enableGlobalRegisterAllocation) {
+        if (option.enableGlobalRegisterAllocation) {
             return new Reference("ref_" + tmpCounter++, UNKNOWN);
         } else {
             // reuse temp register
@@ -610,6 +647,10 @@ public class InstructionEmitter {
     }
 
     // getter
+    public CompilationContext context() {
+        return context;
+    }
+
     public List<FunctionEntity> functionEntities() {
         return functionEntities;
     }
@@ -0,0 +1,119 @@
+package com.mercy.compiler.BackEnd;
+
+import java.util.Arrays;
+
+/**
+ * Interference graph for Allocator, in the layout of George & Appel.
+ * Nodes are the dense indices given by LivenessAnalyzer.
+ *      adjSet  : triangular bit matrix, tests whether (u, v) interfere in O(1).
+ *                For more than MATRIX_LIMIT nodes the matrix is too large, a hash set of edges is used instead
+ *      adjList : neighbours of every node as an int array, only kept for nodes that are not precolored
+ * Edges are never deleted, the allocator skips removed nodes when it walks adjList.
+ */
+public class InterferenceGraph {
+    private static final int[] EMPTY = new int[0];
+    private static final int MATRIX_LIMIT = 8192;  // 4MB matrix
+
+    private int size;
+    private long[] adjSet;       // bit matrix
+    private long[] edgeTable;    // or open addressing hash set of (bit + 1), 0 for empty slot
+    private int edgeNumber;
+    private int[][] adjList;
+    private int[] adjSize;
+
+    public InterferenceGraph(int size) {
+        this.size = size;
+        if (size <= MATRIX_LIMIT) {
+            long bits = (long) size * (size - 1) / 2;
+            adjSet = new long[(int) ((bits + 63) >>> 6)];
+        } else {
+            edgeTable = new long[1 << 16];
+        }
+        adjList = new int[size][];
+        adjSize = new int[size];
+        Arrays.fill(adjList, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // number of edges
+    public int edgeNumber() {
+        return edgeNumber;
+    }
+
+    // position of (u, v) in the lower triangle, without diagonal
+    private long bit(int u, int v) {
+        if (u < v) {
+            int t = u; u = v; v = t;
+        }
+        return (long) u * (u - 1) / 2 + v;
+    }
+
+    public boolean contains(int u, int v) {
+        if (u == v)
+            return false;
+        long bit = bit(u, v);
+        if (adjSet == null)
+            return edgeTable[find(bit)] != 0;
+        return (adjSet[(int) (bit >>> 6)] & (1L << bit)) != 0;
+    }
+
+    // add (u, v) into adjSet, return false if it is already there
+    public boolean addEdge(int u, int v) {
+        long bit = bit(u, v);
+        if (adjSet == null) {
+            int slot = find(bit);
+            if (edgeTable[slot] != 0)
+                return false;
+            edgeTable[slot] = bit + 1;
+            if (++edgeNumber * 2 > edgeTable.length)
+                rehash();
+            return true;
+        }
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        if ((adjSet[word] & mask) != 0)
+            return false;
+        adjSet[word] |= mask;
+        edgeNumber++;
+        return true;
+    }
+
+    // slot of the bit in edgeTable, or the empty slot where it should be inserted
+    private int find(long bit) {
+        int mask = edgeTable.length - 1;
+        long hash = (bit + 1) * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash >>> 32) & mask;
+        while (edgeTable[slot] != 0 && edgeTable[slot] != bit + 1)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash() {
+        long[] old = edgeTable;
+        edgeTable = new long[old.length * 2];
+        for (long key : old) {
+            if (key != 0)
+                edgeTable[find(key - 1)] = key;
+        }
+    }
+
+    // append v to the adjList of u
+    public void addAdj(int u, int v) {
+        int[] list = adjList[u];
+        if (adjSize[u] == list.length)
+            list = adjList[u] = Arrays.copyOf(list, Math.max(4, list.length * 2));
+        list[adjSize[u]++] = v;
+    }
+
+    // only the first adjSize(u) elements are valid
+    public int[] adjList(int u) {
+        return adjList[u];
+    }
+
+    public int adjSize(int u) {
+        return adjSize[u];
+    }
+}
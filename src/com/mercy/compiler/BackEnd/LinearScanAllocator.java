@@ -0,0 +1,780 @@
+package com.mercy.compiler.BackEnd;
+
+import com.mercy.compiler.Entity.FunctionEntity;
+import com.mercy.compiler.INS.*;
+import com.mercy.compiler.INS.Operand.Address;
+import com.mercy.compiler.INS.Operand.Operand;
+import com.mercy.compiler.INS.Operand.Reference;
+import com.mercy.compiler.INS.Operand.Register;
+import com.mercy.compiler.Option;
+import com.mercy.compiler.Utility.InternalError;
+
+import java.util.*;
+
+import static java.lang.System.err;
+
+/**
+ * Linear scan register allocation, a fast alternative of Allocator for large functions.
+ *      Wimmer, Christian; Moessenboeck, Hanspeter (2005). "Optimized Interval Splitting in a Linear Scan Register Allocator"
+ *
+ * The position of an instruction is twice its index in the order of entity.bbs(), odd positions are the gaps where
+ * moves can be inserted. The lifetime interval of a reference is a list of ranges, with holes where it is dead.
+ * An interval that cannot get a register for its whole lifetime is split at odd positions, the pieces get
+ * different registers or a stack slot. Moves among pieces are inserted at the split positions and on the edges
+ * of the control flow graph (resolution).
+ * Precolored references get fixed intervals, which block their registers around calls, div, shift and so on.
+ */
+public class LinearScanAllocator {
+    private static final int MAX = Integer.MAX_VALUE;
+
+    private Register[] regs;
+    private Map<Register, Integer> regIndex = new HashMap<>();
+    private Register rbp, rdx;
+
+    private Option option;
+    private FunctionEntity entity;
+    private LivenessAnalyzer liveness;
+    private int localOffset;
+    private int edgeCounter;   // labels of edge blocks are numbered in each function
+
+    public LinearScanAllocator(List<Register> colors, RegisterConfig regConfig, Option option) {
+        this.option = option;
+        this.regs = colors.toArray(new Register[colors.size()]);
+        for (int i = 0; i < regs.length; i++)
+            regIndex.put(regs[i], i);
+        rbp = regConfig.rbp();
+        rdx = regConfig.rdx();
+    }
+
+    // size of the stack slots used by the last allocated function
+    public int localOffset() {
+        return localOffset;
+    }
+
+    public void allocateFunction(FunctionEntity entity) {
+        this.entity = entity;
+        localOffset = 0;
+        edgeCounter = 0;
+        slots = new HashMap<>();
+        pieces = new LinkedHashMap<>();
+        serial = 0;
+
+        entity.unshareAddress();
+        liveness = new LivenessAnalyzer(entity);
+        liveness.analyze();
+        numberInstructions();
+        buildIntervals();
+        walkIntervals();
+        assignPieces();
+        resolveAndRewrite();
+
+        if (option.printGlobalAllocationInfo) {
+            err.println("===== LINEAR SCAN " + entity.name() + " =====");
+            for (BasicBlock basicBlock : entity.bbs()) {
+                for (Instruction ins : basicBlock.ins())
+                    err.println(ins);
+            }
+        }
+    }
+
+    /*
+     * lifetime interval
+     */
+    private int serial;
+    private class Interval {
+        Reference ref;          // the reference in instructions before allocation
+        Reference piece;        // the reference in instructions after allocation, colored with reg
+        Register reg;           // null for stack
+        boolean fixed;
+        int key = Integer.MIN_VALUE;    // split position, key in pieces
+        int id = serial++;              // for a deterministic order
+
+        // ranges [from, to), sorted
+        int[] from = new int[2], to = new int[2];
+        int rangeSize;
+        // positions of def and use, sorted
+        int[] uses = new int[2];
+        int useSize;
+        int defCount, defPos;
+
+        // prefer a register: a precolored one, or the register of another reference at a move
+        Register hintReg;
+        Reference hintRef;
+        int hintPos;
+
+        Interval(Reference ref) {
+            this.ref = ref;
+        }
+
+        int start() {
+            return from[0];
+        }
+
+        int end() {
+            return to[rangeSize - 1];
+        }
+
+        // intervals are built backward, so ranges and uses are appended in descending order, then reversed
+        void addRange(int f, int t) {
+            int last = rangeSize - 1;
+            if (rangeSize > 0 && t >= from[last]) {
+                from[last] = Math.min(from[last], f);
+                to[last] = Math.max(to[last], t);
+                return;
+            }
+            if (rangeSize == from.length) {
+                from = Arrays.copyOf(from, rangeSize * 2);
+                to = Arrays.copyOf(to, rangeSize * 2);
+            }
+            from[rangeSize] = f;
+            to[rangeSize++] = t;
+        }
+
+        // shorten the first range at a definition, or add a short range for a dead definition
+        void setFrom(int pos) {
+            int last = rangeSize - 1;
+            if (rangeSize > 0 && from[last] <= pos && pos < to[last])
+                from[last] = pos;
+            else
+                addRange(pos, pos + 1);
+        }
+
+        void addUse(int pos) {
+            if (useSize > 0 && uses[useSize - 1] == pos)
+                return;
+            if (useSize == uses.length)
+                uses = Arrays.copyOf(uses, useSize * 2);
+            uses[useSize++] = pos;
+        }
+
+        void finishBuild() {
+            reverse(from, rangeSize);
+            reverse(to, rangeSize);
+            reverse(uses, useSize);
+        }
+
+        // index of the first range that ends after pos
+        int findRange(int pos) {
+            int lo = 0, hi = rangeSize;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (to[mid] > pos)
+                    hi = mid;
+                else
+                    lo = mid + 1;
+            }
+            return lo;
+        }
+
+        boolean covers(int pos) {
+            int i = findRange(pos);
+            return i < rangeSize && from[i] <= pos;
+        }
+
+        // first use at or after pos
+        int nextUse(int pos) {
+            int lo = 0, hi = useSize;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (uses[mid] >= pos)
+                    hi = mid;
+                else
+                    lo = mid + 1;
+            }
+            return lo < useSize ? uses[lo] : MAX;
+        }
+
+        // first position covered by both intervals
+        int intersect(Interval other) {
+            int pos = Math.max(start(), other.start());
+            int i = findRange(pos), j = other.findRange(pos);
+            while (i < rangeSize && j < other.rangeSize) {
+                int lo = Math.max(from[i], other.from[j]);
+                int hi = Math.min(to[i], other.to[j]);
+                if (lo < hi)
+                    return lo;
+                if (to[i] < other.to[j])
+                    i++;
+                else
+                    j++;
+            }
+            return MAX;
+        }
+
+        // split at an odd position, this keeps [start, pos), the returned child gets [pos, end)
+        Interval split(int pos) {
+            if ((pos & 1) == 0 || pos <= start() || pos >= end())
+                throw new InternalError("invalid split of " + ref.name() + " at " + pos);
+            Interval child = new Interval(ref);
+            child.fixed = fixed;
+            child.key = pos;
+
+            int i = findRange(pos);
+            int n = rangeSize - i;
+            child.from = Arrays.copyOfRange(from, i, rangeSize);
+            child.to = Arrays.copyOfRange(to, i, rangeSize);
+            child.rangeSize = n;
+            if (from[i] < pos) {
+                child.from[0] = pos;
+                to[i] = pos;
+                rangeSize = i + 1;
+            } else {
+                rangeSize = i;
+            }
+
+            int k = useSize;
+            while (k > 0 && uses[k - 1] > pos)
+                k--;
+            child.uses = Arrays.copyOfRange(uses, k, useSize);
+            child.useSize = useSize - k;
+            useSize = k;
+
+            pieces.get(ref).put(pos, child);
+            return child;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder((ref == null ? "" : ref.name()) + (reg == null ? "(stack)" : "(" + reg.name() + ")"));
+            for (int i = 0; i < rangeSize; i++)
+                sb.append(" [").append(from[i]).append(", ").append(to[i]).append(")");
+            return sb.toString();
+        }
+    }
+
+    private static void reverse(int[] a, int n) {
+        for (int i = 0, j = n - 1; i < j; i++, j--) {
+            int t = a[i]; a[i] = a[j]; a[j] = t;
+        }
+    }
+
+    /*
+     * number instructions
+     */
+    private List<BasicBlock> blocks;
+    private Map<BasicBlock, Integer> blockFrom, blockTo;    // block covers [from, to)
+    private BitSet blockBoundary;                           // odd positions between two blocks
+
+    private void numberInstructions() {
+        blocks = new ArrayList<>(entity.bbs());
+        blockFrom = new HashMap<>();
+        blockTo = new HashMap<>();
+        blockBoundary = new BitSet();
+        entity.numberInstructions();
+        for (BasicBlock basicBlock : blocks) {
+            List<Instruction> ins = basicBlock.ins();
+            int to = position(ins.get(ins.size() - 1)) + 2;
+            blockFrom.put(basicBlock, position(ins.get(0)));
+            blockTo.put(basicBlock, to);
+            blockBoundary.set(to - 1);
+        }
+    }
+
+    private int position(Instruction ins) {
+        return 2 * ins.index();
+    }
+
+    /*
+     * build intervals, backward over blocks and instructions
+     */
+    private Interval[] intervals;
+    private Interval division;
+    private Map<Reference, TreeMap<Integer, Interval>> pieces;
+
+    private Interval interval(Reference ref) {
+        int x = liveness.index(ref);
+        if (x >= intervals.length)
+            intervals = Arrays.copyOf(intervals, Math.max(x + 1, intervals.length * 2));
+        if (intervals[x] == null) {
+            Interval it = new Interval(ref);
+            if (ref.isPrecolored) {
+                it.fixed = true;
+                it.reg = ref.color;
+            }
+            intervals[x] = it;
+        }
+        return intervals[x];
+    }
+
+    private void buildIntervals() {
+        intervals = new Interval[liveness.size()];
+        // cdq of div and mod clobbers rdx before the divisor is read,
+        // so rdx cannot be used for a reload just before them
+        division = new Interval(null);
+        division.fixed = true;
+        division.reg = rdx;
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            BasicBlock basicBlock = blocks.get(i);
+            int from = blockFrom.get(basicBlock), to = blockTo.get(basicBlock);
+
+            BitSet liveOut = basicBlock.liveOut();
+            for (int x = liveOut.nextSetBit(0); x >= 0; x = liveOut.nextSetBit(x + 1))
+                interval(liveness.reference(x)).addRange(from, to);
+
+            ListIterator<Instruction> li = basicBlock.ins().listIterator(basicBlock.ins().size());
+            while (li.hasPrevious()) {
+                Instruction ins = li.previous();
+                int pos = position(ins);
+                for (Reference ref : ins.def()) {
+                    Interval it = interval(ref);
+                    it.setFrom(pos);
+                    it.addUse(pos);
+                    it.defCount++;
+                    it.defPos = pos;
+                }
+                for (Reference ref : ins.use()) {
+                    Interval it = interval(ref);
+                    it.addRange(from, pos);
+                    it.addUse(pos);
+                }
+                if (ins instanceof Div || ins instanceof Mod)
+                    division.addRange(pos - 1, pos + 1);
+                if (ins instanceof Move && ((Move) ins).isRefMove())
+                    addHint((Reference) ((Move) ins).dest(), (Reference) ((Move) ins).src(), pos);
+            }
+        }
+        for (Interval it : intervals) {
+            if (it != null)
+                it.finishBuild();
+        }
+        division.finishBuild();
+    }
+
+    private void addHint(Reference dest, Reference src, int pos) {
+        if (dest.isPrecolored && src.isPrecolored)
+            return;
+        if (dest.isPrecolored) {
+            interval(src).hintReg = dest.color;
+        } else if (src.isPrecolored) {
+            interval(dest).hintReg = src.color;
+        } else {
+            Interval it = interval(dest);
+            it.hintRef = src;
+            it.hintPos = pos;
+        }
+    }
+
+    private Register hint(Interval current) {
+        if (current.hintReg != null)
+            return current.hintReg;
+        if (current.key != Integer.MIN_VALUE)        // split child, stay in the register of its parent
+            return pieces.get(current.ref).lowerEntry(current.key).getValue().reg;
+        if (current.hintRef != null && pieces.containsKey(current.hintRef))
+            return pieceAt(current.hintRef, current.hintPos).reg;
+        return null;
+    }
+
+    private Interval pieceAt(Reference ref, int pos) {
+        return pieces.get(ref).floorEntry(pos).getValue();
+    }
+
+    /*
+     * linear scan
+     */
+    private PriorityQueue<Interval> unhandled;
+    private List<Interval> active, inactive;
+    private int[] freeUntil, nextUse, blockPos;
+
+    private void walkIntervals() {
+        unhandled = new PriorityQueue<>((a, b) -> a.start() != b.start() ? Integer.compare(a.start(), b.start())
+                                                                         : Integer.compare(a.id, b.id));
+        active = new ArrayList<>();
+        inactive = new ArrayList<>();
+        freeUntil = new int[regs.length];
+        nextUse = new int[regs.length];
+        blockPos = new int[regs.length];
+
+        if (division.rangeSize > 0)
+            inactive.add(division);
+        for (Interval it : intervals) {
+            if (it == null || it.rangeSize == 0)
+                continue;
+            if (it.fixed) {
+                if (regIndex.containsKey(it.reg))
+                    inactive.add(it);
+            } else {
+                TreeMap<Integer, Interval> map = new TreeMap<>();
+                map.put(it.key, it);
+                pieces.put(it.ref, map);
+                unhandled.add(it);
+            }
+        }
+
+        while (!unhandled.isEmpty()) {
+            Interval current = unhandled.poll();
+            int position = current.start();
+
+            List<Interval> newActive = new ArrayList<>(), newInactive = new ArrayList<>();
+            for (Interval it : active) {
+                if (it.end() > position)
+                    (it.covers(position) ? newActive : newInactive).add(it);
+            }
+            for (Interval it : inactive) {
+                if (it.end() > position)
+                    (it.covers(position) ? newActive : newInactive).add(it);
+            }
+            active = newActive;
+            inactive = newInactive;
+
+            if (!tryAllocateFreeReg(current))
+                allocateBlockedReg(current);
+            if (current.reg != null)
+                active.add(current);
+        }
+    }
+
+    private boolean tryAllocateFreeReg(Interval current) {
+        Arrays.fill(freeUntil, MAX);
+        for (Interval it : active)
+            freeUntil[regIndex.get(it.reg)] = 0;
+        for (Interval it : inactive) {
+            int r = regIndex.get(it.reg);
+            if (freeUntil[r] > current.start())
+                freeUntil[r] = Math.min(freeUntil[r], it.intersect(current));
+        }
+
+        int reg = -1;
+        Register hint = hint(current);
+        if (hint != null && regIndex.containsKey(hint) && freeUntil[regIndex.get(hint)] >= current.end())
+            reg = regIndex.get(hint);
+        if (reg == -1) {
+            reg = 0;
+            for (int i = 1; i < regs.length; i++) {
+                if (freeUntil[i] > freeUntil[reg])
+                    reg = i;
+            }
+        }
+
+        int pos = freeUntil[reg];
+        if (pos >= current.end()) {     // available for the whole interval
+            current.reg = regs[reg];
+            return true;
+        }
+        int splitPos = (pos & 1) == 1 ? pos : pos - 1;
+        if (splitPos <= current.start())
+            return false;
+
+        // available for the first part
+        current.reg = regs[reg];
+        unhandled.add(current.split(splitPos));
+        return true;
+    }
+
+    private void allocateBlockedReg(Interval current) {
+        int start = current.start();
+        Arrays.fill(nextUse, MAX);
+        Arrays.fill(blockPos, MAX);
+        for (Interval it : active) {
+            int r = regIndex.get(it.reg);
+            if (it.fixed)
+                nextUse[r] = blockPos[r] = 0;
+            else
+                nextUse[r] = Math.min(nextUse[r], it.nextUse(start));
+        }
+        for (Interval it : inactive) {
+            int r = regIndex.get(it.reg);
+            int x = it.intersect(current);
+            if (x == MAX)
+                continue;
+            if (it.fixed) {
+                blockPos[r] = Math.min(blockPos[r], x);
+                nextUse[r] = Math.min(nextUse[r], x);
+            } else {
+                nextUse[r] = Math.min(nextUse[r], it.nextUse(start));
+            }
+        }
+
+        int reg = 0;
+        for (int i = 1; i < regs.length; i++) {
+            if (nextUse[i] > nextUse[reg])
+                reg = i;
+        }
+
+        int firstUse = current.nextUse(start);
+        if (nextUse[reg] <= firstUse) {
+            // all other intervals are used before current, spill current until its first use
+            if (firstUse == start)
+                throw new InternalError("no register for " + current + " at " + start);
+            current.reg = null;
+            if (firstUse != MAX)
+                unhandled.add(current.split(firstUse - 1));
+            return;
+        }
+
+        // spill intervals that currently block the register
+        current.reg = regs[reg];
+        if (blockPos[reg] < current.end()) {
+            int splitPos = (blockPos[reg] & 1) == 1 ? blockPos[reg] : blockPos[reg] - 1;
+            unhandled.add(current.split(splitPos));
+        }
+        List<Interval> evicted = new ArrayList<>();
+        for (Interval it : active) {
+            if (!it.fixed && it.reg == regs[reg])
+                evicted.add(it);
+        }
+        for (Interval it : inactive) {
+            if (!it.fixed && it.reg == regs[reg] && it.intersect(current) != MAX)
+                evicted.add(it);
+        }
+        for (Interval it : evicted)
+            splitAndSpill(it, start);
+    }
+
+    // move the part of the interval after pos to the stack, and reload it before the next use
+    private void splitAndSpill(Interval it, int pos) {
+        int splitPos = (pos & 1) == 1 ? pos : pos - 1;
+        Interval spilled;
+        if (splitPos <= it.start()) {
+            spilled = it;
+            active.remove(it);
+            inactive.remove(it);
+        } else {
+            spilled = it.split(splitPos);
+        }
+        spilled.reg = null;
+
+        int use = spilled.nextUse(spilled.start());
+        if (use == MAX)
+            return;
+        if (use - 1 <= spilled.start())     // split in a lifetime hole, the rest starts with a definition
+            unhandled.add(spilled);
+        else
+            unhandled.add(spilled.split(use - 1));
+    }
+
+    // register pieces are represented by references, the first one is the original reference
+    private void assignPieces() {
+        for (TreeMap<Integer, Interval> map : pieces.values()) {
+            int ct = 0;
+            for (Interval it : map.values()) {
+                if (it.reg == null)
+                    continue;
+                it.piece = ct++ == 0 ? it.ref : new Reference(it.ref.name() + "_" + ct, Reference.Type.UNKNOWN);
+                it.piece.color = it.reg;
+            }
+        }
+    }
+
+    /*
+     * resolution and rewrite
+     */
+    private Map<Reference, Integer> slots;
+
+    private Address slot(Reference ref) {
+        Integer offset = slots.get(ref);
+        if (offset == null) {
+            localOffset += Option.REG_SIZE;
+            offset = -localOffset;
+            slots.put(ref, offset);
+        }
+        return new Address(rbp, null, 1, offset);
+    }
+
+    private Operand location(Interval it) {
+        return it.reg != null ? it.piece : slot(it.ref);
+    }
+
+    // a move between two pieces of a reference
+    private class PieceMove {
+        Reference ref;
+        Operand dest, src;
+
+        PieceMove(Interval dest, Interval src) {
+            this.ref = dest.ref;
+            this.dest = location(dest);
+            this.src = location(src);
+        }
+    }
+
+    private boolean sameLocation(Interval a, Interval b) {
+        return a.reg == b.reg;      // a reference has only one stack slot
+    }
+
+    /*
+     * A reference with only one definition is stored to its stack slot right after the definition,
+     * then the slot is always up to date and moves from a register to the stack can be omitted.
+     */
+    private Set<Reference> storeAtDefinition(Map<Integer, List<PieceMove>> splitMoves) {
+        Set<Reference> ret = new LinkedHashSet<>();
+        for (TreeMap<Integer, Interval> map : pieces.values()) {
+            Interval first = map.firstEntry().getValue();
+            if (first.defCount != 1 || blockBoundary.get(first.defPos + 1))
+                continue;
+            for (Interval it : map.values()) {
+                if (it.reg == null) {
+                    ret.add(it.ref);
+                    splitMoves.computeIfAbsent(first.defPos + 1, k -> new ArrayList<>())
+                            .add(new PieceMove(it, pieceAt(it.ref, first.defPos)));
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    private void resolveAndRewrite() {
+        // moves inside blocks, at split positions
+        Map<Integer, List<PieceMove>> splitMoves = new HashMap<>();
+        Set<Reference> stored = storeAtDefinition(splitMoves);
+        for (TreeMap<Integer, Interval> map : pieces.values()) {
+            Interval prev = null;
+            for (Interval it : map.values()) {
+                if (prev != null && it.start() == it.key && !blockBoundary.get(it.key) && !sameLocation(prev, it)
+                        && !(it.reg == null && stored.contains(it.ref)))
+                    splitMoves.computeIfAbsent(it.key, k -> new ArrayList<>()).add(new PieceMove(it, prev));
+                prev = it;
+            }
+        }
+
+        // moves on control flow edges, count predecessors before any edge is split
+        Set<BasicBlock> inFunction = new HashSet<>(blocks);
+        Map<BasicBlock, List<BasicBlock>> successorMap = new HashMap<>();
+        Map<BasicBlock, Integer> predecessorNumber = new HashMap<>();
+        for (BasicBlock basicBlock : blocks) {
+            List<BasicBlock> successors = distinct(basicBlock.successor(), inFunction);
+            successorMap.put(basicBlock, successors);
+            for (BasicBlock suc : successors)
+                predecessorNumber.merge(suc, 1, Integer::sum);
+        }
+        Map<BasicBlock, List<PieceMove>> endMoves = new HashMap<>(), beginMoves = new HashMap<>();
+        for (BasicBlock basicBlock : blocks) {
+            List<BasicBlock> successors = successorMap.get(basicBlock);
+            for (BasicBlock suc : successors) {
+                List<PieceMove> moves = new ArrayList<>();
+                BitSet liveIn = suc.liveIn();
+                for (int x = liveIn.nextSetBit(0); x >= 0; x = liveIn.nextSetBit(x + 1)) {
+                    Reference ref = liveness.reference(x);
+                    if (ref.isPrecolored)
+                        continue;
+                    Interval src = pieceAt(ref, blockTo.get(basicBlock) - 2);
+                    Interval dest = pieceAt(ref, blockFrom.get(suc));
+                    if (!sameLocation(src, dest) && !(dest.reg == null && stored.contains(ref)))
+                        moves.add(new PieceMove(dest, src));
+                }
+                if (moves.isEmpty())
+                    continue;
+
+                List<Instruction> ins = basicBlock.ins();
+                if (successors.size() == 1 && !(ins.get(ins.size() - 1) instanceof CJump)) {
+                    endMoves.put(basicBlock, moves);
+                } else if (suc != blocks.get(0) && predecessorNumber.get(suc) == 1) {
+                    beginMoves.put(suc, moves);
+                } else {
+                    splitEdge(basicBlock, suc, moves);
+                }
+            }
+        }
+
+        // rewrite
+        for (BasicBlock basicBlock : blocks) {
+            int last = basicBlock.ins().size() - 1, ct = 0;
+            List<Instruction> newIns = new ArrayList<>(basicBlock.ins().size());
+            for (Instruction ins : basicBlock.ins()) {
+                int pos = position(ins);
+                if (splitMoves.containsKey(pos - 1) && !blockBoundary.get(pos - 1))
+                    sequentialize(splitMoves.get(pos - 1), newIns);
+                if (ct == last && ins instanceof Jmp && endMoves.containsKey(basicBlock))
+                    sequentialize(endMoves.remove(basicBlock), newIns);
+
+                rewrite(ins, pos);
+                if (!(ins instanceof Move && isRedundant((Move) ins)))
+                    newIns.add(ins);
+
+                if (ct == 0 && beginMoves.containsKey(basicBlock))
+                    sequentialize(beginMoves.get(basicBlock), newIns);
+                ct++;
+            }
+            if (endMoves.containsKey(basicBlock))
+                sequentialize(endMoves.get(basicBlock), newIns);
+            basicBlock.setIns(newIns);
+        }
+    }
+
+    private List<BasicBlock> distinct(List<BasicBlock> list, Set<BasicBlock> inFunction) {
+        List<BasicBlock> ret = new ArrayList<>();
+        for (BasicBlock basicBlock : list) {
+            if (inFunction.contains(basicBlock) && !ret.contains(basicBlock))
+                ret.add(basicBlock);
+        }
+        return ret;
+    }
+
+    // insert a new block on the edge from -> to, for the moves of resolution
+    private void splitEdge(BasicBlock from, BasicBlock to, List<PieceMove> moves) {
+        Label label = new Label("lsra_edge_" + entity.asmName() + "_" + edgeCounter++);
+        BasicBlock edge = new BasicBlock(label);
+        List<Instruction> ins = new ArrayList<>();
+        ins.add(label);
+        sequentialize(moves, ins);
+        ins.add(new Jmp(to.label()));
+        edge.setIns(ins);
+
+        CJump cjump = (CJump) from.ins().get(from.ins().size() - 1);
+        if (cjump.trueLabel() == to.label())
+            cjump.setTrueLabel(label);
+        if (cjump.falseLabel() == to.label())
+            cjump.setFalseLabel(label);
+
+        Collections.replaceAll(from.successor(), to, edge);
+        Collections.replaceAll(to.predecessor(), from, edge);
+        edge.predecessor().add(from);
+        edge.successor().add(to);
+        entity.bbs().add(edge);
+    }
+
+    // emit parallel moves one by one, a cycle among registers is broken by the stack slot of a reference
+    private void sequentialize(List<PieceMove> moves, List<Instruction> newIns) {
+        List<PieceMove> pending = new LinkedList<>(moves);
+        while (!pending.isEmpty()) {
+            boolean progress = false;
+            Iterator<PieceMove> iter = pending.iterator();
+            while (iter.hasNext()) {
+                PieceMove move = iter.next();
+                if (!isPendingSource(move.dest, pending)) {
+                    newIns.add(new Move(move.dest, move.src));
+                    iter.remove();
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                PieceMove move = pending.get(0);
+                newIns.add(new Move(slot(move.ref), move.src));
+                move.src = slot(move.ref);
+            }
+        }
+    }
+
+    private boolean isPendingSource(Operand dest, List<PieceMove> pending) {
+        if (!(dest instanceof Reference))
+            return false;
+        for (PieceMove move : pending) {
+            if (move.src instanceof Reference && move.dest != dest
+                    && ((Reference) move.src).color == ((Reference) dest).color)
+                return true;
+        }
+        return false;
+    }
+
+    // replace references by the pieces at pos
+    private void rewrite(Instruction ins, int pos) {
+        boolean changed = false;
+        for (Reference ref : ins.allref()) {      // a new set, not changed by replaceAll
+            if (ref.isPrecolored)
+                continue;
+            Interval it = pieceAt(ref, pos);
+            if (it.reg == null)
+                throw new InternalError("reference " + ref.name() + " is on the stack at " + pos);
+            if (it.piece != ref) {
+                ins.replaceAll(ref, it.piece);
+                changed = true;
+            }
+        }
+        if (changed) {
+            ins.refreshDefAndUse();
+        }
+    }
+
+    private boolean isRedundant(Move move) {
+        return move.isRefMove() && ((Reference) move.dest()).color == ((Reference) move.src()).color;
+    }
+}
@@ -0,0 +1,146 @@
+package com.mercy.compiler.BackEnd;
+
+import com.mercy.compiler.Entity.FunctionEntity;
+import com.mercy.compiler.INS.Instruction;
+import com.mercy.compiler.INS.Label;
+import com.mercy.compiler.INS.Phi;
+import com.mercy.compiler.INS.Operand.Operand;
+import com.mercy.compiler.INS.Operand.Reference;
+
+import java.util.*;
+
+/**
+ * Liveness analysis on basic blocks, shared by DataFlowAnalyzer and Allocator.
+ * Every reference of the function gets a dense index (Reference.index), and use, def, live-in and live-out
+ * of blocks are BitSets over these indices. Solved as a backward problem by DataFlowSolver.
+ * In SSA form, the arguments of a phi function are used at the end of the predecessors, not in its block.
+ */
+public class LivenessAnalyzer extends DataFlowSolver<BitSet> {
+    private List<Reference> refs = new ArrayList<>();
+
+    public LivenessAnalyzer(FunctionEntity entity) {
+        super(entity, Direction.BACKWARD);
+    }
+
+    /*
+     * reference index
+     */
+    // get the index of a reference, give it a new one if it is not numbered yet
+    public int index(Reference ref) {
+        if (ref.index < refs.size() && ref.index >= 0 && refs.get(ref.index) == ref)
+            return ref.index;
+        ref.index = refs.size();
+        refs.add(ref);
+        return ref.index;
+    }
+
+    public Reference reference(int index) {
+        return refs.get(index);
+    }
+
+    public int size() {
+        return refs.size();
+    }
+
+    public BitSet toBitSet(Set<Reference> set) {
+        BitSet ret = new BitSet(refs.size());
+        for (Reference ref : set)
+            ret.set(index(ref));
+        return ret;
+    }
+
+    /*
+     * liveness of instructions, the users scan a block backward from its live-out with transfer,
+     * so that no set is kept per instruction
+     */
+    // live-in of an instruction from its live-out, in place
+    public void transfer(Instruction ins, BitSet live) {
+        for (Reference ref : ins.def())
+            live.clear(index(ref));
+        if (ins instanceof Phi)
+            return;
+        for (Reference ref : ins.use())
+            live.set(index(ref));
+    }
+
+    /*
+     * solve data flow equation
+     */
+    public void analyze() {
+        refs.clear();
+
+        // in block
+        for (BasicBlock basicBlock : entity.bbs()) {
+            BitSet use = new BitSet(), def = new BitSet();
+            for (Instruction ins : basicBlock.ins()) {
+                if (ins instanceof Phi) {
+                    def.set(index(((Phi) ins).dest()));
+                    continue;
+                }
+                for (Reference ref : ins.use()) {
+                    int x = index(ref);
+                    if (!def.get(x))
+                        use.set(x);
+                }
+                for (Reference ref : ins.def())
+                    def.set(index(ref));
+            }
+            for (Reference ref : phiArguments(basicBlock)) {
+                int x = index(ref);
+                if (!def.get(x))
+                    use.set(x);
+            }
+            basicBlock.setUse(use);
+            basicBlock.setDef(def);
+        }
+
+        // among blocks
+        solve();
+        for (BasicBlock basicBlock : entity.bbs()) {
+            basicBlock.setLiveOut(input(basicBlock));
+            for (Reference ref : phiArguments(basicBlock))
+                basicBlock.liveOut().set(index(ref));
+            basicBlock.setLiveIn(output(basicBlock));
+        }
+    }
+
+    // references used by the phi functions of the successors when the control comes from a block
+    private List<Reference> phiArguments(BasicBlock basicBlock) {
+        List<Reference> ret = new ArrayList<>();
+        for (BasicBlock suc : new LinkedHashSet<>(basicBlock.successor())) {
+            for (Instruction ins : suc.ins()) {
+                if (ins instanceof Label)
+                    continue;
+                if (!(ins instanceof Phi))
+                    break;
+                Operand arg = ((Phi) ins).args().get(basicBlock);
+                if (arg != null)
+                    ret.addAll(arg.getAllRef());
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    protected BitSet newValue() {
+        return new BitSet();
+    }
+
+    @Override
+    protected void meet(BitSet result, BitSet value) {
+        result.or(value);
+    }
+
+    // live-in = use + (live-out - def)
+    @Override
+    protected boolean transfer(BasicBlock bb, BitSet liveOut, BitSet liveIn) {
+        BitSet newIn = (BitSet) liveOut.clone();
+        newIn.andNot(bb.def());
+        newIn.or(bb.use());
+        if (newIn.equals(liveIn))
+            return false;
+        liveIn.clear();
+        liveIn.or(newIn);
+        return true;
+    }
+}
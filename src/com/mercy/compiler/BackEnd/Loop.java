@@ -0,0 +1,86 @@
+package com.mercy.compiler.BackEnd;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A natural loop of a function : its header and the blocks which reach a back edge to the header without
+ * passing it. Loops with the same header are one loop. Found by LoopForest.
+ */
+public class Loop {
+    private BasicBlock header;
+    private BasicBlock preheader;
+    private Set<BasicBlock> blocks = new LinkedHashSet<>();
+    private List<BasicBlock> latches = new ArrayList<>();      // sources of the back edges
+    private Loop parent;
+    private List<Loop> children = new ArrayList<>();
+
+    public Loop(BasicBlock header) {
+        this.header = header;
+        blocks.add(header);
+    }
+
+    public BasicBlock header() {
+        return header;
+    }
+
+    // the only predecessor of the header out of the loop, null if there is none yet
+    public BasicBlock preheader() {
+        return preheader;
+    }
+    public void setPreheader(BasicBlock preheader) {
+        this.preheader = preheader;
+    }
+
+    public Set<BasicBlock> blocks() {
+        return blocks;
+    }
+
+    public boolean contains(BasicBlock bb) {
+        return blocks.contains(bb);
+    }
+
+    public List<BasicBlock> latches() {
+        return latches;
+    }
+
+    // blocks of the loop with a successor out of it
+    public List<BasicBlock> exitingBlocks() {
+        List<BasicBlock> ret = new ArrayList<>();
+        for (BasicBlock bb : blocks) {
+            for (BasicBlock suc : bb.successor()) {
+                if (!blocks.contains(suc)) {
+                    ret.add(bb);
+                    break;
+                }
+            }
+        }
+        return ret;
+    }
+
+    // the innermost loop containing this one, null for an outermost loop
+    public Loop parent() {
+        return parent;
+    }
+    public void setParent(Loop parent) {
+        this.parent = parent;
+    }
+
+    public List<Loop> children() {
+        return children;
+    }
+
+    public int depth() {
+        int depth = 1;
+        for (Loop loop = parent; loop != null; loop = loop.parent)
+            depth++;
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        return "loop " + header;
+    }
+}
@@ -0,0 +1,117 @@
+package com.mercy.compiler.BackEnd;
+
+import java.util.*;
+
+/**
+ * Natural loops of a function in SSA form and their nesting.
+ *      Aho, Alfred V.; Lam, Monica S.; Sethi, Ravi; Ullman, Jeffrey D. (2006). "Compilers: Principles, Techniques, and Tools"
+ *
+ * An edge is a back edge if its target dominates its source, the target is the header of a loop. The body of
+ * the loop is found by a backward search from the sources of its back edges which stops at the header.
+ * Two natural loops are either disjoint or nested unless they have the same header, then they are merged.
+ *
+ * insertPreheaders gives every loop a preheader, a block out of the loop whose only successor is the header
+ * and through which the loop is always entered. Code hoisted out of the loop is put there.
+ */
+public class LoopForest {
+    private SSAForm ssa;
+    private List<Loop> loops = new ArrayList<>();                   // inner loops before outer ones
+    private Map<BasicBlock, Loop> innermost = new HashMap<>();
+
+    public LoopForest(SSAForm ssa) {
+        this.ssa = ssa;
+        findLoops();
+    }
+
+    private void findLoops() {
+        DominatorTree domTree = ssa.dominatorTree();
+        Map<BasicBlock, Loop> byHeader = new LinkedHashMap<>();
+        for (BasicBlock bb : domTree.blocks()) {
+            for (BasicBlock suc : bb.successor()) {
+                if (!domTree.contains(suc) || !domTree.dominates(suc, bb))
+                    continue;
+                Loop loop = byHeader.computeIfAbsent(suc, Loop::new);
+                if (!loop.latches().contains(bb))
+                    loop.latches().add(bb);
+            }
+        }
+
+        for (Loop loop : byHeader.values()) {
+            Deque<BasicBlock> stack = new ArrayDeque<>();
+            for (BasicBlock latch : loop.latches()) {
+                if (loop.blocks().add(latch))
+                    stack.push(latch);
+            }
+            while (!stack.isEmpty()) {
+                for (BasicBlock pre : stack.pop().predecessor()) {
+                    if (domTree.contains(pre) && loop.blocks().add(pre))
+                        stack.push(pre);
+                }
+            }
+        }
+
+        // a loop is nested in the smallest larger loop which contains its header
+        loops.addAll(byHeader.values());
+        loops.sort(Comparator.comparingInt(loop -> loop.blocks().size()));
+        for (int i = 0; i < loops.size(); i++) {
+            Loop inner = loops.get(i);
+            for (int j = i + 1; j < loops.size(); j++) {
+                if (loops.get(j).contains(inner.header())) {
+                    inner.setParent(loops.get(j));
+                    loops.get(j).children().add(inner);
+                    break;
+                }
+            }
+            for (BasicBlock bb : inner.blocks())
+                innermost.putIfAbsent(bb, inner);
+        }
+    }
+
+    /*
+     * query
+     */
+    public List<Loop> loops() {
+        return loops;
+    }
+
+    // the innermost loop containing a block, null if it is in no loop
+    public Loop loopOf(BasicBlock bb) {
+        return innermost.get(bb);
+    }
+
+    // a block added into a loop (null for none), it is in the loops containing that one too
+    public void addBlock(BasicBlock bb, Loop loop) {
+        if (loop != null)
+            innermost.put(bb, loop);
+        for (; loop != null; loop = loop.parent())
+            loop.blocks().add(bb);
+    }
+
+    /*
+     * return true if a block is added
+     */
+    public boolean insertPreheaders() {
+        boolean changed = false;
+        for (Loop loop : loops) {
+            BasicBlock header = loop.header();
+            List<BasicBlock> entering = new ArrayList<>();
+            for (BasicBlock pre : header.predecessor()) {
+                if (!loop.contains(pre) && !entering.contains(pre))
+                    entering.add(pre);
+            }
+            if (entering.isEmpty())
+                continue;
+
+            BasicBlock only = entering.get(0);
+            if (entering.size() == 1 && only.successor().stream().allMatch(suc -> suc == header)) {
+                loop.setPreheader(only);
+            } else {
+                BasicBlock preheader = ssa.splitEdges(entering, header, "loop_preheader");
+                addBlock(preheader, loop.parent());
+                loop.setPreheader(preheader);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
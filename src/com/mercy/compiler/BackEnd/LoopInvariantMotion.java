@@ -0,0 +1,401 @@
+package com.mercy.compiler.BackEnd;
+
+import com.mercy.compiler.INS.*;
+import com.mercy.compiler.INS.Operand.Address;
+import com.mercy.compiler.INS.Operand.Immediate;
+import com.mercy.compiler.INS.Operand.Operand;
+import com.mercy.compiler.INS.Operand.Reference;
+
+import java.util.*;
+
+import static com.mercy.compiler.BackEnd.SSAForm.renamable;
+
+/**
+ * Loop invariant code motion on SSA form, out of the loops of a LoopForest with preheaders.
+ *      Muchnick, Steven S. (1997). "Advanced Compiler Design and Implementation", 13.2
+ *
+ * An instruction is invariant in a loop if the references it uses are defined out of the loop, or by invariant
+ * instructions. Loops are visited from the inner ones to the outer ones, so an instruction hoisted into the
+ * preheader of an inner loop may be hoisted out of the outer loop later.
+ *
+ * In SSA form an invariant instruction can always be moved to the preheader, but it is executed there even if
+ * the loop would not execute it. That is fine for arithmetic, lea and copies, not for a division by a variable
+ * or a load, which can fail. They are hoisted only if their block is executed in every iteration, and the loop is
+ * known to be entered : the header is the only block which may leave the loop before, and its test is done in
+ * the preheader too, with the values the phi functions get at the entry. The hoisted instructions are put in a
+ * new block on the edge from the preheader to the header then, which is executed only if the loop is entered.
+ * A load is invariant only in a loop without store or call.
+ *
+ * A hoisted value is live in the whole loop. Nothing more is hoisted out of a loop when the references live at
+ * once in one of its blocks would be more than the registers, since spilling in the loop costs more.
+ */
+public class LoopInvariantMotion {
+    private static final int NOT_INVARIANT = 0, SAFE = 1, UNSAFE = 2;
+    static final int REGISTER_LIMIT = 12;              // of the 14 colors of Allocator, division and calls need some
+
+    private SSAForm ssa;
+    private LoopForest forest;
+
+    // blocks where a phi function of a loop header is used, the block of the argument for a phi function
+    private Map<Reference, Set<BasicBlock>> phiUses = new HashMap<>();
+    // the most references live at once in a block, with the values hoisted out of the loops containing it
+    private Map<BasicBlock, Integer> pressure;
+
+    public LoopInvariantMotion(SSAForm ssa, LoopForest forest) {
+        this.ssa = ssa;
+        this.forest = forest;
+    }
+
+    /*
+     * return true if the control flow graph is changed
+     */
+    public boolean hoist() {
+        findPhiUses();
+        pressure = pressure(ssa);
+        boolean changed = false;
+        for (Loop loop : forest.loops()) {
+            if (loop.preheader() != null)
+                changed |= hoist(loop);
+        }
+        return changed;
+    }
+
+    private void findPhiUses() {
+        for (Loop loop : forest.loops()) {
+            for (Phi phi : phis(loop.header()))
+                phiUses.put(phi.dest(), new HashSet<>());
+        }
+        for (BasicBlock bb : ssa.entity().bbs()) {
+            for (Instruction ins : bb.ins()) {
+                if (ins instanceof Phi) {
+                    for (Map.Entry<BasicBlock, Operand> arg : ((Phi) ins).args().entrySet()) {
+                        Set<BasicBlock> uses = phiUses.get(arg.getValue());
+                        if (uses != null)
+                            uses.add(arg.getKey());
+                    }
+                    continue;
+                }
+                for (Reference ref : ins.use()) {
+                    Set<BasicBlock> uses = phiUses.get(ref);
+                    if (uses != null)
+                        uses.add(bb);
+                }
+            }
+        }
+    }
+
+    // the most references live at once in each block, see REGISTER_LIMIT
+    static Map<BasicBlock, Integer> pressure(SSAForm ssa) {
+        Map<BasicBlock, Integer> pressure = new HashMap<>();
+        LivenessAnalyzer liveness = new LivenessAnalyzer(ssa.entity());
+        liveness.analyze();
+        BitSet renamable = new BitSet();
+        for (int i = 0; i < liveness.size(); i++) {
+            if (renamable(liveness.reference(i)))
+                renamable.set(i);
+        }
+        for (BasicBlock bb : ssa.entity().bbs()) {
+            BitSet live = (BitSet) bb.liveOut().clone();
+            live.and(renamable);
+            int max = live.cardinality();
+            for (int i = bb.ins().size() - 1; i >= 0; i--) {
+                liveness.transfer(bb.ins().get(i), live);
+                live.and(renamable);
+                max = Math.max(max, live.cardinality());
+            }
+            pressure.put(bb, max);
+        }
+        return pressure;
+    }
+
+    static List<Phi> phis(BasicBlock bb) {
+        List<Phi> ret = new ArrayList<>();
+        for (Instruction ins : bb.ins()) {
+            if (ins instanceof Label)
+                continue;
+            if (!(ins instanceof Phi))
+                break;
+            ret.add((Phi) ins);
+        }
+        return ret;
+    }
+
+    private boolean hoist(Loop loop) {
+        DominatorTree domTree = ssa.dominatorTree();
+        Set<Reference> defined = Collections.newSetFromMap(new IdentityHashMap<>());
+        boolean writes = false;
+        for (BasicBlock bb : loop.blocks()) {
+            for (Instruction ins : bb.ins()) {
+                for (Reference ref : ins.def()) {
+                    if (renamable(ref))
+                        defined.add(ref);
+                }
+                writes |= ValueNumbering.writesMemory(ins);
+            }
+        }
+        List<BasicBlock> exiting = loop.exitingBlocks();
+        BasicBlock header = loop.header();
+        int free = REGISTER_LIMIT, hoisted = 0;
+        for (BasicBlock bb : loop.blocks())
+            free = Math.min(free, REGISTER_LIMIT - pressure.getOrDefault(bb, 0));
+        Guard guard = guard(loop, domTree, defined);
+
+        List<Instruction> toPreheader = new ArrayList<>(), toGuarded = new ArrayList<>();
+        Set<Reference> guarded = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BasicBlock bb : domTree.blocks()) {
+            if (!loop.contains(bb))
+                continue;
+            List<Instruction> ins = bb.ins();
+            List<Instruction> kept = new ArrayList<>(ins.size());
+            for (int i = 0; i < ins.size(); i++) {
+                List<Instruction> group = new ArrayList<>(2);
+                group.add(ins.get(i));
+                Reference updated = i + 1 < ins.size() ? SSAForm.updated(ins.get(i + 1)) : null;
+                if (updated != null && ins.get(i) instanceof Move && ((Move) ins.get(i)).dest() == updated)
+                    group.add(ins.get(++i));    // "mov x2, x1; add x2, y" is moved together
+
+                int kind = hoisted < free ? classify(group, defined, writes) : NOT_INVARIANT;
+                boolean needGuard = false;
+                if (kind == NOT_INVARIANT) {
+                    kept.addAll(group);
+                    continue;
+                } else if (kind == UNSAFE) {
+                    if (!dominatesAll(domTree, bb, loop.latches(), null) || !dominatesAll(domTree, bb, exiting, header)) {
+                        kept.addAll(group);
+                        continue;
+                    }
+                    needGuard = bb != header && exiting.contains(header) && !(guard != null && guard.entered);
+                    if (needGuard && guard == null) {
+                        kept.addAll(group);
+                        continue;
+                    }
+                }
+                for (Instruction now : group) {
+                    for (Reference ref : now.use())
+                        needGuard |= guarded.contains(ref);
+                }
+                for (Instruction now : group) {
+                    defined.removeAll(now.def());
+                    if (needGuard)
+                        guarded.addAll(now.def());
+                }
+                (needGuard ? toGuarded : toPreheader).addAll(group);
+                hoisted++;
+            }
+            if (kept.size() != ins.size())
+                bb.setIns(kept);
+        }
+
+        for (BasicBlock bb : loop.blocks())
+            pressure.merge(bb, hoisted, Integer::sum);
+
+        append(loop.preheader(), toPreheader);
+        if (toGuarded.isEmpty())
+            return false;
+        BasicBlock landing = insertGuard(loop, guard);
+        append(landing, toGuarded);
+        loop.setPreheader(landing);     // the loop is entered only through it now
+        return true;
+    }
+
+    // the kind of a single instruction, or of a copy and the two-address instruction which updates it
+    private int classify(List<Instruction> group, Set<Reference> defined, boolean writes) {
+        Instruction first = group.get(0), last = group.get(group.size() - 1);
+        Reference updated = group.size() == 2 ? SSAForm.updated(last) : null;
+        for (Instruction ins : group) {
+            if (ins.def().isEmpty())
+                return NOT_INVARIANT;
+            for (Reference ref : ins.def()) {
+                if (!renamable(ref))
+                    return NOT_INVARIANT;
+            }
+            for (Reference ref : ins.use()) {
+                if (ref == updated || (renamable(ref) && !defined.contains(ref)))
+                    continue;
+                if (!(isLoad(ins) && ((Move) ins).src() == ref))   // a global variable
+                    return NOT_INVARIANT;
+            }
+        }
+
+        if (group.size() == 2) {
+            Operand old = ((Move) first).src();
+            if (!(old instanceof Immediate) && !(old instanceof Reference))
+                return NOT_INVARIANT;
+            if (last instanceof Div || last instanceof Mod) {
+                Operand divisor = ((Bin) last).right();
+                boolean constant = divisor instanceof Immediate && ((Immediate) divisor).isConstInt()
+                        && ((Immediate) divisor).value() != 0 && ((Immediate) divisor).value() != -1;
+                return constant ? SAFE : UNSAFE;
+            }
+            return SAFE;
+        }
+        if (first instanceof Lea)
+            return SAFE;
+        if (first instanceof Move && ((Move) first).dest() instanceof Reference) {
+            if (isLoad(first))
+                return writes ? NOT_INVARIANT : UNSAFE;
+            return SAFE;
+        }
+        return NOT_INVARIANT;
+    }
+
+    private static boolean isLoad(Instruction ins) {
+        if (!(ins instanceof Move))
+            return false;
+        Operand src = ((Move) ins).src();
+        return src instanceof Address || (src instanceof Reference && ((Reference) src).type() == Reference.Type.GLOBAL);
+    }
+
+    private static boolean dominatesAll(DominatorTree domTree, BasicBlock bb, List<BasicBlock> blocks, BasicBlock except) {
+        for (BasicBlock other : blocks) {
+            if (other != except && !domTree.dominates(bb, other))
+                return false;
+        }
+        return true;
+    }
+
+    // instructions put at the end of a block, before its jump
+    static void append(BasicBlock bb, List<Instruction> moved) {
+        if (moved.isEmpty())
+            return;
+        List<Instruction> ins = bb.ins();
+        Instruction last = ins.get(ins.size() - 1);
+        int at = last instanceof Jmp || last instanceof CJump ? ins.size() - 1 : ins.size();
+        ins.addAll(at, moved);
+    }
+
+    /*
+     * the test of the header at the entry of the loop
+     */
+    private static class Guard {
+        boolean entered;        // the loop is always entered
+        Operand left, right;    // the operands of the test in the preheader, left is the condition of a BOOL test
+        BasicBlock exit;        // the successor of the header out of the loop
+    }
+
+    // null if the header does more than testing phi functions and invariants, or the test is false at the entry
+    private Guard guard(Loop loop, DominatorTree domTree, Set<Reference> defined) {
+        BasicBlock header = loop.header(), preheader = loop.preheader();
+        List<Phi> phis = phis(header);
+        if (header.ins().size() != phis.size() + 2 || !(header.ins().get(header.ins().size() - 1) instanceof CJump))
+            return null;
+        CJump cjump = (CJump) header.ins().get(header.ins().size() - 1);
+        BasicBlock trueBlock = cjump.trueLabel().basicBlock(), falseBlock = cjump.falseLabel().basicBlock();
+        if (loop.contains(trueBlock) == loop.contains(falseBlock))
+            return null;
+
+        Guard guard = new Guard();
+        guard.exit = loop.contains(trueBlock) ? falseBlock : trueBlock;
+        boolean bool = cjump.type() == CJump.Type.BOOL;
+        guard.left = atEntry(bool ? cjump.cond() : cjump.left(), header, preheader, defined);
+        guard.right = bool ? new Immediate(0) : atEntry(cjump.right(), header, preheader, defined);
+        if (guard.left == null || guard.right == null)
+            return null;
+        // a phi function of the header used out of the loop gets a phi function in the exit, see insertGuard
+        if (!guard.exit.predecessor().stream().allMatch(pre -> pre == header))
+            return null;
+        for (Phi phi : phis) {
+            for (BasicBlock use : phiUses.get(phi.dest())) {
+                if (!loop.contains(use) && !domTree.dominates(guard.exit, use))
+                    return null;
+            }
+        }
+
+        if (guard.left instanceof Immediate && guard.right instanceof Immediate) {
+            Immediate left = (Immediate) guard.left, right = (Immediate) guard.right;
+            if (!left.isConstInt() || !right.isConstInt())
+                return null;
+            boolean taken = bool ? left.value() != 0 : ConstantPropagator.compare(cjump.type(), left.value(), right.value());
+            if (loop.contains(taken ? trueBlock : falseBlock)) {
+                guard.entered = true;
+                return guard;
+            }
+            return null;
+        }
+        if (bool && guard.left instanceof Immediate)
+            return null;
+        return guard;
+    }
+
+    // the value of an operand of the header when the loop is entered, null if it is not known in the preheader
+    private static Operand atEntry(Operand operand, BasicBlock header, BasicBlock preheader, Set<Reference> defined) {
+        if (operand instanceof Immediate)
+            return operand;
+        if (!(operand instanceof Reference) || !renamable((Reference) operand))
+            return null;
+        for (Phi phi : phis(header)) {
+            if (phi.dest() == operand)
+                return phi.args().get(preheader);
+        }
+        return defined.contains(operand) ? null : operand;
+    }
+
+    // test in the preheader, which goes to a new block before the header or leaves the loop, return the new block
+    private BasicBlock insertGuard(Loop loop, Guard guard) {
+        BasicBlock header = loop.header(), preheader = loop.preheader();
+        CJump test = (CJump) header.ins().get(header.ins().size() - 1);
+        BasicBlock landing = ssa.splitEdges(Collections.singletonList(preheader), header, "loop_guarded");
+        forest.addBlock(landing, loop.parent());
+
+        Label trueLabel = test.trueLabel(), falseLabel = test.falseLabel();
+        if (loop.contains(trueLabel.basicBlock()))
+            trueLabel = landing.label();
+        else
+            falseLabel = landing.label();
+        CJump cjump = test.type() == CJump.Type.BOOL ? new CJump(guard.left, trueLabel, falseLabel)
+                : new CJump(guard.left, guard.right, test.type(), trueLabel, falseLabel);
+        List<Instruction> ins = preheader.ins();
+        ins.set(ins.size() - 1, cjump);     // the jump to the new block
+
+        // the exit is reached without passing the header now, the values of its phi functions are joined there
+        for (Phi phi : phis(header)) {
+            Set<BasicBlock> uses = phiUses.get(phi.dest()), outside = new HashSet<>();
+            for (BasicBlock use : uses) {
+                if (!loop.contains(use))
+                    outside.add(use);
+            }
+            if (outside.isEmpty())
+                continue;
+            Phi join = ssa.insertPhi(guard.exit, phi.dest());
+            join.args().put(header, phi.dest());
+            join.refreshDefAndUse();
+            replaceUses(phi.dest(), join.dest(), outside);
+            uses.removeAll(outside);
+            uses.add(header);
+        }
+        // the phi functions of the header get their arguments from the new block now
+        ssa.addEdge(preheader, guard.exit, phi -> atEntry(phi.args().get(header), header, landing, Collections.emptySet()));
+        if (trueLabel != landing.label())
+            Collections.reverse(preheader.successor());
+
+        List<Operand> used = new ArrayList<>(Arrays.asList(guard.left, guard.right));
+        for (Phi phi : phis(guard.exit))
+            used.add(phi.args().get(preheader));
+        for (Operand operand : used) {
+            Set<BasicBlock> uses = phiUses.get(operand);
+            if (uses != null)
+                uses.add(preheader);
+        }
+        return landing;
+    }
+
+    // uses of a reference in blocks, for a phi function the use is in the block of the argument
+    private static void replaceUses(Reference from, Reference to, Set<BasicBlock> blocks) {
+        for (BasicBlock bb : blocks) {
+            for (Instruction ins : bb.ins()) {
+                if (!(ins instanceof Phi) && ins.use().contains(from)) {
+                    ins.replaceUse(from, to);
+                    ins.refreshDefAndUse();
+                }
+            }
+            for (BasicBlock suc : new HashSet<>(bb.successor())) {
+                for (Phi phi : phis(suc)) {
+                    if (phi.args().get(bb) == from) {
+                        phi.args().put(bb, to);
+                        phi.refreshDefAndUse();
+                    }
+                }
+            }
+        }
+    }
+}
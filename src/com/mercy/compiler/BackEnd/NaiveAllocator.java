@@ -1,5 +1,6 @@
 package com.mercy.compiler.BackEnd;
 
+import com.mercy.compiler.CompilationContext;
 import com.mercy.compiler.Entity.FunctionEntity;
 import com.mercy.compiler.Entity.ParameterEntity;
 import com.mercy.compiler.Entity.VariableEntity;
@@ -20,12 +21,16 @@ import static java.lang.System.err;
  * Created by mercy on 17-5-24.
  */
 public class NaiveAllocator  {
+    private CompilationContext context;
+    private Option option;
     private List<FunctionEntity> functionEntities;
 
     private Register rax, rcx, rdx, rbx, rsp, rbp, rsi, rdi;
     private List<Register> registers;
     private List<Register> paraRegister;
     public NaiveAllocator(InstructionEmitter emitter, RegisterConfig registerConfig) {
+        context = emitter.context();
+        option = context.option();
         functionEntities = emitter.functionEntities();
 
         // load registers
@@ -39,9 +44,7 @@ public class NaiveAllocator  {
     }
 
     public void allocate() {
-        for (FunctionEntity functionEntity : functionEntities) {
-            allocateFunction(functionEntity);
-        }
+        context.scheduler().forEach(functionEntities, this::allocateFunction);
     }
 
     private void allocateFunction(FunctionEntity entity){
@@ -74,7 +77,7 @@ public class NaiveAllocator  {
         // allocate register
         int[] toAllocate = {1, 12, 13, 14, 15};
 
-        if (Option.printNaiveAllocatorInfo)
+        if (option.printNaiveAllocatorInfo)
             err.println("naive allocator : " + entity.name());
         for (int i = 0; i < tosort.size(); i++) {
             if (i < toAllocate.length) {
@@ -85,7 +88,7 @@ public class NaiveAllocator  {
                 ref.setRegister(registers.get(toAllocate[i]));
                 entity.regUsed().add(registers.get(toAllocate[i]));
 
-                if (Option.printNaiveAllocatorInfo)
+                if (option.printNaiveAllocatorInfo)
                     err.printf("%-8s -> %s\n", ref.name(), ref.reg());
             }
         }
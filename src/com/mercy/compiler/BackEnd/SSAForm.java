@@ -0,0 +1,623 @@
+package com.mercy.compiler.BackEnd;
+
+import com.mercy.compiler.Entity.FunctionEntity;
+import com.mercy.compiler.Entity.ParameterEntity;
+import com.mercy.compiler.INS.*;
+import com.mercy.compiler.INS.Operand.Operand;
+import com.mercy.compiler.INS.Operand.Reference;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * SSA form of a function on its basic blocks, for the global optimizations of DataFlowAnalyzer.
+ *      Cytron, Ron; et al. (1991). "Efficiently Computing Static Single Assignment Form and the Control Dependence Graph"
+ *      Sreedhar, Vugranam C.; et al. (1999). "Translating Out of Static Single Assignment Form"
+ *
+ * construct : phi functions are placed on the iterated dominance frontiers of the definitions of a reference,
+ *             only where it is live (pruned SSA). Then references are renamed by a walk of the dominator tree.
+ *             The value of a reference at the entry is the reference itself, so parameters keep their references.
+ * destruct  : a phi becomes copies into a new reference at the end of its predecessors and a copy from it
+ *             after the label, then the references related by copies are coalesced unless they interfere.
+ *
+ * An instruction of two-address form (add x, y) uses and defines the same operand. In SSA form it is preceded by
+ * a copy of the old value into a new reference, "mov x2, x1; add x2, y", and updates the new one in place.
+ * So a reference is defined by a phi, by one instruction, or by a copy and the update right after it.
+ * Only references of type UNKNOWN are renamed, the others are memory or fixed.
+ */
+public class SSAForm {
+    private FunctionEntity entity;
+    private DominatorTree domTree;
+    private Set<Reference> created = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int versionCounter = 0, labelCounter = 0;
+
+    public SSAForm(FunctionEntity entity) {
+        this.entity = entity;
+    }
+
+    // computed again after the control flow graph is changed
+    public DominatorTree dominatorTree() {
+        if (domTree == null)
+            domTree = new DominatorTree(entity);
+        return domTree;
+    }
+
+    public FunctionEntity entity() {
+        return entity;
+    }
+
+    public static boolean renamable(Reference ref) {
+        return ref.type() == Reference.Type.UNKNOWN && !ref.isPrecolored;
+    }
+
+    // the reference updated in place by a two-address instruction, null for other instructions
+    public static Reference updated(Instruction ins) {
+        Operand operand = null;
+        if (ins instanceof Bin)
+            operand = ((Bin) ins).left();
+        else if (ins instanceof Cmp)
+            operand = ((Cmp) ins).left();
+        else if (ins instanceof Neg)
+            operand = ((Neg) ins).operand();
+        else if (ins instanceof Not)
+            operand = ((Not) ins).operand();
+        if (operand instanceof Reference && renamable((Reference) operand))
+            return (Reference) operand;
+        return null;
+    }
+
+    public Reference newVersion(Reference ref) {
+        Reference version = new Reference(ref.name() + "_" + versionCounter++, Reference.Type.UNKNOWN);
+        created.add(version);
+        entity.tmpStack().add(version);
+        return version;
+    }
+
+    /*
+     * construction, return false if the function cannot be in SSA form (the entry is in a loop)
+     */
+    public boolean construct() {
+        List<BasicBlock> bbs = entity.bbs();
+        if (bbs.isEmpty() || !bbs.get(0).predecessor().isEmpty())
+            return false;
+
+        domTree = new DominatorTree(entity);
+        removeUnreachable();
+        entity.unshareAddress();
+        splitUpdates();
+        insertPhis();
+        rename();
+        return true;
+    }
+
+    // unreachable blocks would define references out of the dominator tree
+    private void removeUnreachable() {
+        Set<BasicBlock> unreachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BasicBlock bb : entity.bbs()) {
+            if (!domTree.contains(bb))
+                unreachable.add(bb);
+        }
+        DominatorTree tree = domTree;   // which has no unreachable block, so it is still valid
+        if (!unreachable.isEmpty())
+            removeBlocks(unreachable);
+        domTree = tree;
+    }
+
+    /*
+     * changes of the control flow graph, which keep the arguments of phi functions consistent
+     */
+    // removes every edge from one of froms to a block at once, the join of a long && chain has thousands of predecessors
+    public void removeEdges(Collection<BasicBlock> froms, BasicBlock to) {
+        Set<BasicBlock> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        set.addAll(froms);
+        for (BasicBlock from : set)
+            from.successor().removeIf(b -> b == to);
+        to.predecessor().removeIf(set::contains);
+        for (Instruction ins : to.ins()) {
+            if (ins instanceof Label)
+                continue;
+            if (!(ins instanceof Phi))
+                break;
+            ((Phi) ins).args().keySet().removeAll(set);
+            ins.refreshDefAndUse();
+        }
+        domTree = null;
+    }
+
+    public void removeBlocks(Set<BasicBlock> blocks) {
+        List<BasicBlock> bbs = new ArrayList<>(entity.bbs().size());
+        Map<BasicBlock, List<BasicBlock>> edges = new LinkedHashMap<>();     // to -> froms
+        for (BasicBlock bb : entity.bbs()) {
+            if (!blocks.contains(bb)) {
+                bbs.add(bb);
+                continue;
+            }
+            for (BasicBlock suc : bb.successor())
+                edges.computeIfAbsent(suc, x -> new ArrayList<>()).add(bb);
+            if (!bb.predecessor().isEmpty())
+                edges.computeIfAbsent(bb, x -> new ArrayList<>()).addAll(bb.predecessor());
+        }
+        edges.forEach((to, froms) -> removeEdges(froms, to));
+        entity.setBbs(bbs);
+        domTree = null;
+    }
+
+    // a new block on the edges from froms to a block, which gets the arguments of the phi functions from them
+    public BasicBlock splitEdges(List<BasicBlock> froms, BasicBlock to, String name) {
+        Label label = new Label(name + "_" + entity.asmName() + "_" + labelCounter++);
+        BasicBlock split = new BasicBlock(label);
+        split.ins().add(label);
+        split.ins().add(new Jmp(to.label()));
+
+        for (Instruction ins : to.ins()) {
+            if (ins instanceof Label)
+                continue;
+            if (!(ins instanceof Phi))
+                break;
+            Phi phi = (Phi) ins;
+            Set<Operand> args = new LinkedHashSet<>();
+            for (BasicBlock from : froms)
+                args.add(phi.args().get(from));
+            Operand arg = args.iterator().next();
+            if (args.size() > 1) {
+                Phi join = insertPhi(split, phi.dest());
+                for (BasicBlock from : froms)
+                    join.args().put(from, phi.args().get(from));
+                join.refreshDefAndUse();
+                arg = join.dest();
+            }
+            for (BasicBlock from : froms)
+                phi.args().remove(from);
+            phi.args().put(split, arg);
+            phi.refreshDefAndUse();
+        }
+
+        for (BasicBlock from : froms) {
+            List<Instruction> ins = from.ins();
+            Instruction last = ins.get(ins.size() - 1);
+            if (last instanceof Jmp) {
+                ((Jmp) last).setDest(label);
+            } else if (last instanceof CJump) {
+                CJump cjump = (CJump) last;
+                if (cjump.trueLabel() == to.label())
+                    cjump.setTrueLabel(label);
+                if (cjump.falseLabel() == to.label())
+                    cjump.setFalseLabel(label);
+            } else {
+                ins.add(new Jmp(label));    // it fell through to the block
+            }
+            Collections.replaceAll(from.successor(), to, split);
+            to.predecessor().removeIf(pre -> pre == from);
+            for (BasicBlock suc : from.successor()) {
+                if (suc == split)
+                    split.predecessor().add(from);
+            }
+        }
+        split.successor().add(to);
+        to.predecessor().add(split);
+
+        List<BasicBlock> bbs = entity.bbs();
+        bbs.add(bbs.indexOf(to), split);
+        domTree = null;
+        return split;
+    }
+
+    // a phi function for a new version of a reference, after the other ones of the block
+    public Phi insertPhi(BasicBlock bb, Reference ref) {
+        Phi phi = new Phi(newVersion(ref));
+        int at = 1;
+        while (at < bb.ins().size() && bb.ins().get(at) instanceof Phi)
+            at++;
+        bb.ins().add(at, phi);
+        return phi;
+    }
+
+    // a new edge, the phi functions of the target get their arguments from it by argument
+    public void addEdge(BasicBlock from, BasicBlock to, Function<Phi, Operand> argument) {
+        for (Instruction ins : to.ins()) {
+            if (ins instanceof Label)
+                continue;
+            if (!(ins instanceof Phi))
+                break;
+            ((Phi) ins).args().put(from, argument.apply((Phi) ins));
+            ins.refreshDefAndUse();
+        }
+        from.successor().add(to);
+        to.predecessor().add(from);
+        domTree = null;
+    }
+
+    private void splitUpdates() {
+        for (BasicBlock bb : entity.bbs()) {
+            List<Instruction> newIns = null;
+            List<Instruction> ins = bb.ins();
+            for (int i = 0; i < ins.size(); i++) {
+                Reference ref = updated(ins.get(i));
+                if (ref != null && newIns == null) {
+                    newIns = new ArrayList<>(ins.size() * 2);
+                    newIns.addAll(ins.subList(0, i));
+                }
+                if (ref != null)
+                    newIns.add(new Move(ref, ref));
+                if (newIns != null)
+                    newIns.add(ins.get(i));
+            }
+            if (newIns != null)
+                bb.setIns(newIns);
+        }
+    }
+
+    private Map<Phi, Reference> phiVariable = new HashMap<>();
+
+    private void insertPhis() {
+        LivenessAnalyzer liveness = new LivenessAnalyzer(entity);
+        liveness.analyze();
+
+        // blocks which define a reference, in order of the first definition for a deterministic output
+        Map<Reference, List<BasicBlock>> defBlocks = new LinkedHashMap<>();
+        for (BasicBlock bb : entity.bbs()) {
+            for (Instruction ins : bb.ins()) {
+                for (Reference ref : ins.def()) {
+                    if (!renamable(ref))
+                        continue;
+                    List<BasicBlock> list = defBlocks.computeIfAbsent(ref, k -> new ArrayList<>());
+                    if (list.isEmpty() || list.get(list.size() - 1) != bb)
+                        list.add(bb);
+                }
+            }
+        }
+
+        Map<BasicBlock, List<Phi>> phis = new HashMap<>();
+        Map<BasicBlock, Reference> hasPhi = new HashMap<>(), inWorklist = new HashMap<>();
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        for (Map.Entry<Reference, List<BasicBlock>> entry : defBlocks.entrySet()) {
+            Reference ref = entry.getKey();
+            int x = liveness.index(ref);
+            for (BasicBlock bb : entry.getValue()) {
+                inWorklist.put(bb, ref);
+                worklist.add(bb);
+            }
+            while (!worklist.isEmpty()) {
+                BasicBlock bb = worklist.remove();
+                for (BasicBlock join : domTree.frontier(bb)) {
+                    if (hasPhi.get(join) == ref || !join.liveIn().get(x))
+                        continue;
+                    Phi phi = new Phi(ref);
+                    phis.computeIfAbsent(join, k -> new ArrayList<>()).add(phi);
+                    phiVariable.put(phi, ref);
+                    hasPhi.put(join, ref);
+                    if (inWorklist.get(join) != ref) {
+                        inWorklist.put(join, ref);
+                        worklist.add(join);
+                    }
+                }
+            }
+        }
+
+        for (BasicBlock bb : entity.bbs()) {
+            List<Phi> list = phis.get(bb);
+            if (list == null)
+                continue;
+            List<Instruction> newIns = new ArrayList<>(bb.ins().size() + list.size());
+            newIns.add(bb.ins().get(0));    // label
+            newIns.addAll(list);
+            newIns.addAll(bb.ins().subList(1, bb.ins().size()));
+            bb.setIns(newIns);
+        }
+    }
+
+    private Map<Reference, Deque<Reference>> versions = new HashMap<>();
+
+    private Reference current(Reference ref) {
+        Deque<Reference> stack = versions.get(ref);
+        return stack == null || stack.isEmpty() ? ref : stack.peek();
+    }
+
+    private Reference define(Reference ref, List<Reference> pushed) {
+        Reference version = newVersion(ref);
+        versions.computeIfAbsent(ref, k -> new ArrayDeque<>()).push(version);
+        pushed.add(ref);
+        return version;
+    }
+
+    // walk the dominator tree by an explicit stack, the versions defined in a block are popped after its subtree
+    private void rename() {
+        Deque<BasicBlock> stack = new ArrayDeque<>();
+        Deque<List<Reference>> pushedStack = new ArrayDeque<>();
+        Deque<Iterator<BasicBlock>> iters = new ArrayDeque<>();
+
+        BasicBlock entry = domTree.entry();
+        stack.push(entry);
+        pushedStack.push(renameBlock(entry));
+        iters.push(domTree.children(entry).iterator());
+        while (!stack.isEmpty()) {
+            Iterator<BasicBlock> iter = iters.peek();
+            if (iter.hasNext()) {
+                BasicBlock child = iter.next();
+                stack.push(child);
+                pushedStack.push(renameBlock(child));
+                iters.push(domTree.children(child).iterator());
+            } else {
+                for (Reference ref : pushedStack.pop())
+                    versions.get(ref).pop();
+                stack.pop();
+                iters.pop();
+            }
+        }
+    }
+
+    private List<Reference> renameBlock(BasicBlock bb) {
+        List<Reference> pushed = new ArrayList<>();
+        for (Instruction ins : bb.ins()) {
+            if (ins instanceof Phi) {
+                Phi phi = (Phi) ins;
+                phi.replaceDef(phi.dest(), define(phiVariable.get(phi), pushed));
+            } else {
+                Reference updated = updated(ins);
+                for (Reference ref : ins.use()) {
+                    if (renamable(ref) && ref != updated)
+                        ins.replaceUse(ref, current(ref));
+                }
+                if (updated != null) {
+                    ins.replaceAll(updated, current(updated));
+                } else {
+                    for (Reference ref : ins.def()) {
+                        if (renamable(ref))
+                            ins.replaceDef(ref, define(ref, pushed));
+                    }
+                }
+            }
+            ins.refreshDefAndUse();
+        }
+
+        Set<BasicBlock> visited = new HashSet<>();
+        for (BasicBlock suc : bb.successor()) {
+            if (!visited.add(suc) || !domTree.contains(suc))
+                continue;
+            for (Instruction ins : suc.ins()) {
+                if (ins instanceof Label)
+                    continue;
+                if (!(ins instanceof Phi))
+                    break;
+                Phi phi = (Phi) ins;
+                phi.args().put(bb, current(phiVariable.get(phi)));
+                phi.refreshDefAndUse();
+            }
+        }
+        return pushed;
+    }
+
+    /*
+     * destruction
+     */
+    public void destruct() {
+        List<Move> copies = eliminatePhis();
+        coalesce(copies);
+        phiVariable.clear();
+        versions.clear();
+    }
+
+    // the copies added, they are coalesced first
+    private List<Move> eliminatePhis() {
+        List<Move> copies = new ArrayList<>();
+        Map<BasicBlock, List<Instruction>> atEnd = new HashMap<>();
+        for (BasicBlock bb : entity.bbs()) {
+            List<Instruction> newIns = null;
+            List<Instruction> ins = bb.ins();
+            for (int i = 0; i < ins.size(); i++) {
+                Instruction now = ins.get(i);
+                if (now instanceof Phi && newIns == null) {
+                    newIns = new ArrayList<>(ins.size());
+                    newIns.addAll(ins.subList(0, i));
+                }
+                if (now instanceof Phi) {
+                    Phi phi = (Phi) now;
+                    Reference joined = newVersion(phi.dest());
+                    for (Map.Entry<BasicBlock, Operand> arg : phi.args().entrySet()) {
+                        Move move = new Move(joined, arg.getValue());
+                        atEnd.computeIfAbsent(arg.getKey(), k -> new ArrayList<>()).add(move);
+                        copies.add(move);
+                    }
+                    Move move = new Move(phi.dest(), joined);
+                    newIns.add(move);
+                    copies.add(move);
+                } else if (newIns != null) {
+                    newIns.add(now);
+                }
+            }
+            if (newIns != null)
+                bb.setIns(newIns);
+        }
+
+        // before the jump, or at the end of a block which falls through
+        for (BasicBlock bb : entity.bbs()) {
+            List<Instruction> moves = atEnd.get(bb);
+            if (moves == null)
+                continue;
+            List<Instruction> ins = bb.ins();
+            Instruction last = ins.get(ins.size() - 1);
+            int at = last instanceof Jmp || last instanceof CJump ? ins.size() - 1 : ins.size();
+            ins.addAll(at, moves);
+        }
+        return copies;
+    }
+
+    private LivenessAnalyzer liveness;
+    private int[] parent;
+    private List<Set<Integer>> adjacent;    // of the root of a class, indices of references, not always roots
+
+    private void coalesce(List<Move> phiCopies) {
+        liveness = new LivenessAnalyzer(entity);
+        liveness.analyze();
+
+        List<Move> copies = new ArrayList<>(phiCopies);
+        Set<Move> isPhiCopy = Collections.newSetFromMap(new IdentityHashMap<>());
+        isPhiCopy.addAll(phiCopies);
+        for (BasicBlock bb : entity.bbs()) {
+            for (Instruction ins : bb.ins()) {
+                if (isCopy(ins) && !isPhiCopy.contains(ins))
+                    copies.add((Move) ins);
+            }
+        }
+        BitSet candidates = new BitSet();
+        for (Move move : copies) {
+            if (isCopy(move)) {
+                candidates.set(liveness.index((Reference) move.dest()));
+                candidates.set(liveness.index((Reference) move.src()));
+            }
+        }
+
+        int n = liveness.size();
+        parent = new int[n];
+        adjacent = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+            adjacent.add(null);
+        }
+        buildInterference(candidates);
+
+        for (Move move : copies) {
+            if (!isCopy(move))
+                continue;
+            int a = find(liveness.index((Reference) move.dest()));
+            int b = find(liveness.index((Reference) move.src()));
+            if (a != b && !interfere(a, b) && !(rank(a) == 2 && rank(b) == 2))
+                union(a, b);
+        }
+
+        rewrite();
+        liveness = null;
+        parent = null;
+        adjacent = null;
+    }
+
+    private boolean isCopy(Instruction ins) {
+        if (!(ins instanceof Move) || !((Move) ins).isRefMove())
+            return false;
+        Move move = (Move) ins;
+        return renamable((Reference) move.dest()) && renamable((Reference) move.src());
+    }
+
+    // interference among candidates : a candidate defined where another one is live, except the source of a copy
+    private void buildInterference(BitSet candidates) {
+        for (BasicBlock bb : entity.bbs()) {
+            BitSet live = (BitSet) bb.liveOut().clone();
+            List<Instruction> ins = bb.ins();
+            for (int i = ins.size() - 1; i >= 0; i--) {
+                Instruction now = ins.get(i);
+                Reference src = isCopy(now) ? (Reference) ((Move) now).src() : null;
+                for (Reference def : now.def()) {
+                    int d = liveness.index(def);
+                    if (!candidates.get(d))
+                        continue;
+                    BitSet others = (BitSet) live.clone();
+                    others.and(candidates);
+                    for (int x = others.nextSetBit(0); x >= 0; x = others.nextSetBit(x + 1)) {
+                        if (x != d && liveness.reference(x) != src)
+                            addEdge(d, x);
+                    }
+                }
+                liveness.transfer(now, live);
+            }
+        }
+
+        // defined at the entry together, e.g. parameters
+        BitSet entryLive = (BitSet) entity.bbs().get(0).liveIn().clone();
+        entryLive.and(candidates);
+        for (int x = entryLive.nextSetBit(0); x >= 0; x = entryLive.nextSetBit(x + 1)) {
+            for (int y = entryLive.nextSetBit(x + 1); y >= 0; y = entryLive.nextSetBit(y + 1))
+                addEdge(x, y);
+        }
+    }
+
+    private void addEdge(int u, int v) {
+        adjacentOf(u).add(v);
+        adjacentOf(v).add(u);
+    }
+
+    private Set<Integer> adjacentOf(int x) {
+        Set<Integer> set = adjacent.get(x);
+        if (set == null) {
+            set = new HashSet<>();
+            adjacent.set(x, set);
+        }
+        return set;
+    }
+
+    private int find(int x) {
+        int root = x;
+        while (parent[root] != root)
+            root = parent[root];
+        while (parent[x] != root) {
+            int next = parent[x];
+            parent[x] = root;
+            x = next;
+        }
+        return root;
+    }
+
+    private boolean interfere(int a, int b) {
+        Set<Integer> setA = adjacentOf(a), setB = adjacentOf(b);
+        if (setA.size() > setB.size()) {
+            Set<Integer> t = setA; setA = setB; setB = t;
+            int u = a; a = b; b = u;
+        }
+        for (int x : setA) {
+            if (find(x) == b)
+                return true;
+        }
+        return false;
+    }
+
+    // a parameter is defined by the prologue, it must keep its reference
+    private int rank(int x) {
+        Reference ref = liveness.reference(x);
+        if (ref.entity() instanceof ParameterEntity)
+            return 2;
+        return ref.entity() != null ? 1 : 0;
+    }
+
+    private void union(int a, int b) {
+        if (rank(b) > rank(a)) {
+            int t = a; a = b; b = t;
+        }
+        Set<Integer> setA = adjacentOf(a), setB = adjacentOf(b);
+        if (setA.size() < setB.size()) {
+            setB.addAll(setA);
+            adjacent.set(a, setB);
+        } else {
+            setA.addAll(setB);
+        }
+        adjacent.set(b, null);
+        parent[b] = a;
+    }
+
+    private void rewrite() {
+        Set<Reference> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BasicBlock bb : entity.bbs()) {
+            List<Instruction> newIns = new ArrayList<>(bb.ins().size());
+            for (Instruction ins : bb.ins()) {
+                boolean changed = false;
+                for (Reference ref : ins.allref()) {
+                    if (ref.index < 0 || liveness.reference(ref.index) != ref)
+                        continue;
+                    Reference root = liveness.reference(find(ref.index));
+                    if (root != ref) {
+                        ins.replaceAll(ref, root);
+                        changed = true;
+                    }
+                }
+                if (changed)
+                    ins.refreshDefAndUse();
+                if (ins instanceof Move && ((Move) ins).isRefMove() && ((Move) ins).dest() == ((Move) ins).src())
+                    continue;
+                used.addAll(ins.use());
+                used.addAll(ins.def());
+                newIns.add(ins);
+            }
+            bb.setIns(newIns);
+        }
+        entity.tmpStack().removeIf(ref -> created.contains(ref) && !used.contains(ref));
+        created.clear();
+    }
+}
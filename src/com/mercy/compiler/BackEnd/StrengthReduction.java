@@ -0,0 +1,843 @@
+package com.mercy.compiler.BackEnd;
+
+import com.mercy.compiler.INS.*;
+import com.mercy.compiler.INS.Operand.Address;
+import com.mercy.compiler.INS.Operand.Immediate;
+import com.mercy.compiler.INS.Operand.Operand;
+import com.mercy.compiler.INS.Operand.Reference;
+
+import java.util.*;
+
+import static com.mercy.compiler.BackEnd.SSAForm.renamable;
+
+/**
+ * Strength reduction of induction variables and linear function test replacement on SSA form, in the loops of a
+ * LoopForest with preheaders.
+ *      Muchnick, Steven S. (1997). "Advanced Compiler Design and Implementation", 14.1
+ *      Cooper, Keith D.; Simpson, L. Taylor; Vick, Christopher A. (2001). "Operator Strength Reduction"
+ *
+ * A basic induction variable is a phi function of a header whose argument from every back edge is itself plus a
+ * constant step. Its family are the references computed from it in the loop by add, sub, mul, sal, neg, lea and
+ * copies with invariant operands, each one is a linear function scale * i + base + offset. Reducing a member gives
+ * it a phi function of its own : the value at the entry is computed in the preheader, and scale * step is added
+ * to it at the end of the latches. Then its uses read the phi function and its old instructions are dead.
+ *
+ * A member is reduced if it is computed by a multiplication or by more instructions than the addition. An address
+ * [base + i * 8] costs nothing, x86 scales and adds the index in the load, but a pointer increased by 8 instead
+ * makes the basic variable dead when the test of the header is its only other use. The test is replaced by one
+ * of a reduced member against the same function of the bound, computed in the preheader, and the family is
+ * removed. That is done if the loop gets no more additions than the instructions removed from it.
+ */
+public class StrengthReduction {
+    private static final int MAX_SCALE = 1 << 16, MAX_STEP = 1 << 8;      // the values must fit in an int
+    private static final int COLORS = 14;                                   // of Allocator
+
+    private SSAForm ssa;
+    private LoopForest forest;
+    private Map<BasicBlock, Integer> pressure;
+
+    // uses of the renamable references, the update of a two-address instruction is not a use of its operand
+    private Map<Reference, List<Use>> uses;
+
+    public StrengthReduction(SSAForm ssa, LoopForest forest) {
+        this.ssa = ssa;
+        this.forest = forest;
+    }
+
+    private static class Use {
+        Instruction ins;
+        BasicBlock bb;          // for a phi function, the block of the argument
+        Use(Instruction ins, BasicBlock bb) {
+            this.ins = ins;
+            this.bb = bb;
+        }
+    }
+
+    // a reference of the family, its value is scale * factor * i + base + offset if known
+    private static class Member {
+        Reference ref;
+        List<Instruction> group;            // the copy and the two-address instruction, or one instruction
+        List<Member> operands = new ArrayList<>(2);
+        long scale = 1, offset = 0;
+        Reference factor, base;             // invariants, null for 1 and 0
+        boolean known = true;
+
+        Member(Reference ref, List<Instruction> group) {
+            this.ref = ref;
+            this.group = group;
+        }
+    }
+
+    // a basic induction variable and the family computed from it
+    private static class Family {
+        Phi phi;
+        Operand init;                       // the argument from the preheader
+        long step;
+        Member root, next;                  // the phi function and its value in the next iteration
+        Map<Reference, Member> members = new LinkedHashMap<>();        // in the order of definitions
+        Map<Instruction, Member> definedBy = new HashMap<>();
+    }
+
+    public void reduce() {
+        for (Loop loop : forest.loops()) {
+            if (loop.preheader() != null)
+                reduce(loop);
+        }
+    }
+
+    private void findUses() {
+        uses = new HashMap<>();
+        for (BasicBlock bb : ssa.entity().bbs()) {
+            for (Instruction ins : bb.ins()) {
+                if (ins instanceof Phi) {
+                    for (Map.Entry<BasicBlock, Operand> arg : ((Phi) ins).args().entrySet()) {
+                        if (arg.getValue() instanceof Reference)
+                            uses.computeIfAbsent((Reference) arg.getValue(), k -> new ArrayList<>()).add(new Use(ins, arg.getKey()));
+                    }
+                    continue;
+                }
+                Reference updated = SSAForm.updated(ins);
+                for (Reference ref : ins.use()) {
+                    if (ref != updated && renamable(ref))
+                        uses.computeIfAbsent(ref, k -> new ArrayList<>()).add(new Use(ins, bb));
+                }
+            }
+        }
+    }
+
+    private List<Use> usesOf(Reference ref) {
+        return uses.getOrDefault(ref, Collections.emptyList());
+    }
+
+    private void reduce(Loop loop) {
+        Set<Reference> defined = null;
+        for (Phi phi : LoopInvariantMotion.phis(loop.header())) {
+            if (uses == null)
+                findUses();
+            if (pressure == null)
+                pressure = LoopInvariantMotion.pressure(ssa);
+            if (defined == null)
+                defined = definedIn(loop);
+            Family family = family(loop, phi, defined);
+            if (family != null && reduce(loop, family, defined)) {
+                uses = null;
+                defined = null;
+            }
+        }
+    }
+
+    private static Set<Reference> definedIn(Loop loop) {
+        Set<Reference> defined = new HashSet<>();
+        for (BasicBlock bb : loop.blocks()) {
+            for (Instruction ins : bb.ins()) {
+                for (Reference ref : ins.def()) {
+                    if (renamable(ref))
+                        defined.add(ref);
+                }
+            }
+        }
+        return defined;
+    }
+
+    private static boolean invariant(Operand operand, Set<Reference> defined) {
+        if (operand instanceof Immediate)
+            return ((Immediate) operand).isConstInt();
+        return operand instanceof Reference && renamable((Reference) operand) && !defined.contains(operand);
+    }
+
+    private static Long constant(Operand operand) {
+        if (operand instanceof Immediate && ((Immediate) operand).isConstInt())
+            return (long) ((Immediate) operand).value();
+        return null;
+    }
+
+    /*
+     * induction variable analysis, null if the phi function is not a basic induction variable
+     */
+    private Family family(Loop loop, Phi phi, Set<Reference> defined) {
+        BasicBlock preheader = loop.preheader();
+        Operand init = phi.args().get(preheader), next = null;
+        for (Map.Entry<BasicBlock, Operand> arg : phi.args().entrySet()) {
+            if (arg.getKey() == preheader)
+                continue;
+            if (!loop.contains(arg.getKey()) || (next != null && arg.getValue() != next))
+                return null;
+            next = arg.getValue();
+        }
+        if (init == null || next == null || !invariant(init, defined))
+            return null;
+
+        Family family = new Family();
+        family.phi = phi;
+        family.init = init;
+        family.root = new Member(phi.dest(), Collections.emptyList());
+        family.members.put(phi.dest(), family.root);
+
+        DominatorTree domTree = ssa.dominatorTree();
+        for (BasicBlock bb : domTree.blocks()) {
+            if (!loop.contains(bb))
+                continue;
+            List<Instruction> ins = bb.ins();
+            for (int i = 0; i < ins.size(); i++) {
+                List<Instruction> group = new ArrayList<>(2);
+                group.add(ins.get(i));
+                Reference updated = i + 1 < ins.size() ? SSAForm.updated(ins.get(i + 1)) : null;
+                if (updated != null && ins.get(i) instanceof Move && ((Move) ins.get(i)).dest() == updated)
+                    group.add(ins.get(++i));
+                Member member = member(group, family, defined);
+                if (member == null)
+                    continue;
+                family.members.put(member.ref, member);
+                for (Instruction now : group)
+                    family.definedBy.put(now, member);
+            }
+        }
+
+        Member nextMember = family.members.get(next);
+        if (nextMember == null || nextMember.operands.size() != 1 || nextMember.operands.get(0) != family.root
+                || nextMember.scale != 1 || !nextMember.known || nextMember.base != null || nextMember.offset == 0
+                || Math.abs(nextMember.offset) > MAX_STEP)
+            return null;
+        family.next = nextMember;
+        family.step = nextMember.offset;
+        return family;
+    }
+
+    // the member computed by a group, null if it is not one
+    private Member member(List<Instruction> group, Family family, Set<Reference> defined) {
+        Instruction first = group.get(0), last = group.get(group.size() - 1);
+        if (group.size() == 2) {
+            Reference ref = SSAForm.updated(last);
+            Operand old = ((Move) first).src();
+            Member member = new Member(ref, group);
+            Member from = family.members.get(old);
+            if (last instanceof Neg) {
+                if (from == null)
+                    return null;
+                member.operands.add(from);
+                copyFunction(member, from);
+                member.scale = -from.scale;
+                member.known &= from.base == null;
+                member.offset = -from.offset;
+                return checked(member);
+            }
+            if (!(last instanceof Add || last instanceof Sub || last instanceof Mul || last instanceof Sal))
+                return null;
+            Operand right = ((Bin) last).right();
+            Operand other = right;
+            boolean negated = false;        // invariant - member
+            if (from == null && !(last instanceof Sal)) {
+                from = family.members.get(right);
+                other = old;
+                negated = last instanceof Sub;
+            }
+            if (from == null || !invariant(other, defined))
+                return null;
+            member.operands.add(from);
+            copyFunction(member, from);
+            if (negated) {
+                member.scale = -member.scale;
+                member.known &= member.base == null;
+                member.offset = -member.offset;
+            }
+            Long c = constant(other);
+            if (last instanceof Add || last instanceof Sub) {
+                boolean plus = last instanceof Add || negated;
+                if (c != null) {
+                    member.offset += plus ? c : -c;
+                } else if (plus && member.base == null) {
+                    member.base = (Reference) other;
+                } else {
+                    member.known = false;
+                }
+            } else {
+                if (last instanceof Sal && (c == null || c < 0 || c > 30))
+                    return null;
+                if (c != null) {
+                    long times = last instanceof Sal ? 1L << c : c;
+                    member.scale *= times;
+                    member.offset *= times;
+                    member.known &= member.base == null;
+                } else if (member.factor == null) {
+                    member.factor = (Reference) other;
+                    member.known &= member.base == null && member.offset == 0;
+                } else {
+                    return null;
+                }
+            }
+            return checked(member);
+        }
+
+        if (first instanceof Lea) {
+            Address addr = ((Lea) first).addr();
+            Member base = family.members.get(addr.base()), index = family.members.get(addr.index());
+            Member member = new Member(((Lea) first).dest(), group);
+            if (!renamable(member.ref))
+                return null;
+            if (index != null && base == null && (addr.base() == null || invariant(addr.base(), defined))) {
+                member.operands.add(index);
+                copyFunction(member, index);
+                member.scale *= addr.mul();
+                member.known &= index.base == null;
+                member.offset = index.offset * addr.mul() + addr.add();
+                member.base = (Reference) addr.base();
+                return checked(member);
+            }
+            if (base != null && index == null && (addr.index() == null || invariant(addr.index(), defined))) {
+                member.operands.add(base);
+                copyFunction(member, base);
+                member.offset += addr.add();
+                if (addr.index() != null) {
+                    if (member.base == null && addr.mul() == 1)
+                        member.base = (Reference) addr.index();
+                    else
+                        member.known = false;
+                }
+                return checked(member);
+            }
+            return null;
+        }
+
+        if (first instanceof Move && ((Move) first).dest() instanceof Reference) {
+            Member from = family.members.get(((Move) first).src());
+            Member member = new Member((Reference) ((Move) first).dest(), group);
+            if (from == null || !renamable(member.ref))
+                return null;
+            member.operands.add(from);
+            copyFunction(member, from);
+            return member;
+        }
+        return null;
+    }
+
+    private static boolean isCopy(Member member) {
+        return member.group.size() == 1 && member.group.get(0) instanceof Move;
+    }
+
+    private static void copyFunction(Member to, Member from) {
+        to.scale = from.scale;
+        to.factor = from.factor;
+        to.base = from.base;
+        to.offset = from.offset;
+        to.known = from.known;
+    }
+
+    private static Member checked(Member member) {
+        if (Math.abs(member.scale) > MAX_SCALE || member.scale == 0)
+            return null;
+        if (Math.abs(member.offset) > Integer.MAX_VALUE / 2)
+            member.known = false;
+        return member;
+    }
+
+    /*
+     * strength reduction, return true if the loop is changed
+     */
+    private static final int FAMILY = 0, TEST = 1, ADDRESS = 2, VALUE = 3, OUTSIDE = 4;
+
+    private boolean reduce(Loop loop, Family family, Set<Reference> defined) {
+        CJump test = test(loop, family, defined);
+        Map<Member, List<Use>> inLoop = new HashMap<>(), addressUses = new LinkedHashMap<>();
+        Set<Member> used = new LinkedHashSet<>(), escaping = new HashSet<>();    // used out of the family, out of the loop
+        for (Member member : family.members.values()) {
+            for (Use use : usesOf(member.ref)) {
+                int kind = classify(use, member, family, test, loop, defined);
+                if (kind == OUTSIDE) {
+                    escaping.add(member);
+                    continue;
+                }
+                inLoop.computeIfAbsent(member, k -> new ArrayList<>()).add(use);
+                if (kind == ADDRESS)
+                    addressUses.computeIfAbsent(member, k -> new ArrayList<>()).add(use);
+                else if (kind == VALUE)
+                    used.add(member);
+            }
+        }
+
+        // all the colors are free in a loop without division. A value live across a call needs one of the few
+        // callee-save registers, no more of them in such a loop
+        int limit = COLORS, free = COLORS;
+        for (BasicBlock bb : loop.blocks()) {
+            for (Instruction ins : bb.ins()) {
+                if (ins instanceof Div || ins instanceof Mod)
+                    limit = Math.min(limit, LoopInvariantMotion.REGISTER_LIMIT);
+                else if (ins instanceof Call)
+                    limit = 0;
+            }
+        }
+        for (BasicBlock bb : loop.blocks())
+            free = Math.min(free, limit - pressure.getOrDefault(bb, 0));
+
+        Map<Member, List<Use>> replaced = new LinkedHashMap<>();
+        Map<Key, List<Use>> pointers = new LinkedHashMap<>();
+        boolean replaceTest = test != null && escaping.isEmpty() && !used.contains(family.root);
+        if (replaceTest) {
+            // every member used out of the family is reduced, or replaced by a pointer in the addresses
+            Set<Key> keys = new HashSet<>();
+            for (Member member : used) {
+                replaced.put(member, inLoop.get(member));
+                if (member.known && member.base != null)
+                    keys.add(new Key(member.base, member.scale, member.factor));
+            }
+            int added = replaced.size();
+            for (Map.Entry<Member, List<Use>> entry : addressUses.entrySet()) {
+                Member member = entry.getKey();
+                if (replaced.containsKey(member))
+                    continue;
+                for (Use use : entry.getValue()) {
+                    for (Address addr : addresses(use.ins)) {
+                        if (addr.index() != member.ref)
+                            continue;
+                        Key key = new Key((Reference) addr.base(), member.scale * addr.mul(), member.factor);
+                        if (keys.add(key))
+                            added++;
+                        pointers.computeIfAbsent(key, k -> new ArrayList<>()).add(use);
+                    }
+                }
+            }
+            // the bound is in a register unless the test was against a constant, copies are coalesced
+            int removed = 0;
+            for (Member member : family.members.values())
+                removed += member == family.root || isCopy(member) ? 0 : 1;
+            int registers = added - 1 + (test.left() instanceof Immediate || test.right() instanceof Immediate ? 1 : 0);
+            replaceTest = added <= removed && registers <= free && target(replaced.keySet(), pointers.keySet()) != null;
+        }
+        if (!replaceTest) {
+            replaced.clear();
+            pointers.clear();
+            for (Member member : family.members.values()) {
+                if (member == family.root || escaping.contains(member) || replaced.size() >= free)
+                    continue;
+                if ((used.contains(member) || addressUses.containsKey(member)) && expensive(member, family, replaced.keySet()))
+                    replaced.put(member, inLoop.get(member));
+            }
+            if (replaced.isEmpty())
+                return false;
+        }
+
+        apply(loop, family, replaced, pointers, replaceTest ? test : null);
+        int delta = replaced.size() + pointers.size() - (replaceTest ? 1 : 0);      // an upper bound
+        for (BasicBlock bb : loop.blocks())
+            pressure.merge(bb, delta, Integer::sum);
+        return true;
+    }
+
+    // a pointer, base + scale * factor * i
+    private static class Key {
+        Reference base, factor;
+        long scale;
+        Key(Reference base, long scale, Reference factor) {
+            this.base = base;
+            this.scale = scale;
+            this.factor = factor;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return base == other.base && factor == other.factor && scale == other.scale;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(System.identityHashCode(base), System.identityHashCode(factor), scale);
+        }
+    }
+
+    // the test of the header between the basic induction variable and an invariant, null if there is none
+    private static CJump test(Loop loop, Family family, Set<Reference> defined) {
+        List<Instruction> ins = loop.header().ins();
+        Instruction last = ins.get(ins.size() - 1);
+        if (!(last instanceof CJump) || ((CJump) last).type() == CJump.Type.BOOL)
+            return null;
+        CJump cjump = (CJump) last;
+        Reference i = family.root.ref;
+        if (cjump.left() == i && invariant(cjump.right(), defined))
+            return cjump;
+        if (cjump.right() == i && invariant(cjump.left(), defined))
+            return cjump;
+        return null;
+    }
+
+    private int classify(Use use, Member member, Family family, CJump test, Loop loop, Set<Reference> defined) {
+        if (!loop.contains(use.bb))
+            return OUTSIDE;
+        if (family.definedBy.containsKey(use.ins) || (member == family.next && use.ins == family.phi))
+            return FAMILY;
+        if (use.ins == test && member == family.root)
+            return TEST;
+        if (use.ins instanceof Phi || use.ins instanceof Lea || !member.known || member.base != null)
+            return VALUE;
+        // [base + member * mul + add] with an invariant base, and the member used nowhere else in the instruction
+        List<Operand> operands = operands(use.ins);
+        if (operands == null || operands.contains(member.ref))
+            return VALUE;
+        boolean found = false;
+        for (Address addr : addresses(use.ins)) {
+            if (addr.base() == member.ref)
+                return VALUE;
+            if (addr.index() == member.ref) {
+                if (!(addr.base() instanceof Reference) || !invariant(addr.base(), defined))
+                    return VALUE;
+                long add = member.offset * addr.mul() + addr.add();
+                if (Math.abs(add) > Integer.MAX_VALUE / 2)
+                    return VALUE;
+                found = true;
+            }
+        }
+        return found ? ADDRESS : VALUE;
+    }
+
+    // the operands of an instruction which are not addresses
+    private static List<Operand> operands(Instruction ins) {
+        List<Operand> ret = new ArrayList<>(2);
+        if (ins instanceof Move) {
+            ret.add(((Move) ins).dest());
+            ret.add(((Move) ins).src());
+        } else if (ins instanceof Bin) {
+            ret.add(((Bin) ins).left());
+            ret.add(((Bin) ins).right());
+        } else if (ins instanceof Cmp) {
+            ret.add(((Cmp) ins).left());
+            ret.add(((Cmp) ins).right());
+        } else if (ins instanceof CJump) {
+            CJump cjump = (CJump) ins;
+            if (cjump.type() == CJump.Type.BOOL) {
+                ret.add(cjump.cond());
+            } else {
+                ret.add(cjump.left());
+                ret.add(cjump.right());
+            }
+        } else {
+            return null;
+        }
+        ret.removeIf(operand -> operand instanceof Address);
+        return ret;
+    }
+
+    private static List<Address> addresses(Instruction ins) {
+        List<Operand> all = new ArrayList<>(2);
+        if (ins instanceof Move) {
+            all.add(((Move) ins).dest());
+            all.add(((Move) ins).src());
+        } else if (ins instanceof Bin) {
+            all.add(((Bin) ins).left());
+            all.add(((Bin) ins).right());
+        } else if (ins instanceof Cmp) {
+            all.add(((Cmp) ins).left());
+            all.add(((Cmp) ins).right());
+        } else if (ins instanceof CJump && ((CJump) ins).type() != CJump.Type.BOOL) {
+            all.add(((CJump) ins).left());
+            all.add(((CJump) ins).right());
+        }
+        List<Address> ret = new ArrayList<>(2);
+        for (Operand operand : all) {
+            if (operand instanceof Address)
+                ret.add((Address) operand);
+        }
+        return ret;
+    }
+
+    // computed by a multiplication or more than one instruction from the basic variable or a reduced member
+    private static boolean expensive(Member member, Family family, Set<Member> reduced) {
+        int count = 0;
+        boolean multiplies = false;
+        Deque<Member> stack = new ArrayDeque<>();
+        Set<Member> visited = new HashSet<>();
+        stack.push(member);
+        while (!stack.isEmpty()) {
+            Member now = stack.pop();
+            if (now == family.root || (now != member && reduced.contains(now)) || !visited.add(now))
+                continue;
+            count += isCopy(now) ? 0 : 1;
+            multiplies |= now.group.get(now.group.size() - 1) instanceof Mul;
+            for (Member operand : now.operands)
+                stack.push(operand);
+        }
+        return multiplies || count >= 2;
+    }
+
+    // a reduced member or a pointer to compare against the bound, its scale is a constant
+    private static Object target(Set<Member> reduced, Set<Key> pointers) {
+        for (Member member : reduced) {
+            if (member.factor == null)
+                return member;
+        }
+        for (Key key : pointers) {
+            if (key.factor == null)
+                return key;
+        }
+        return null;
+    }
+
+    private void apply(Loop loop, Family family, Map<Member, List<Use>> replaced, Map<Key, List<Use>> pointers, CJump test) {
+        // the values at the entry are computed from the instructions of the members before they are changed
+        List<Instruction> entry = new ArrayList<>();
+        Map<Member, Operand> initial = new HashMap<>();
+        Map<Object, Operand> starts = new LinkedHashMap<>();
+        for (Member member : replaced.keySet())
+            starts.put(member, materialize(member, family.root, family.init, initial, entry));
+        Map<Key, Member> shared = new HashMap<>();
+        for (Member member : replaced.keySet()) {
+            if (member.known && member.base != null)
+                shared.putIfAbsent(new Key(member.base, member.scale, member.factor), member);
+        }
+        for (Key key : pointers.keySet()) {
+            if (!shared.containsKey(key))
+                starts.put(key, linear(key, family.init, entry));
+        }
+        Object target = null;
+        Operand bound = null;
+        if (test != null) {
+            Reference i = family.root.ref;
+            Operand limit = test.left() == i ? test.right() : test.left();
+            target = target(replaced.keySet(), pointers.keySet());
+            if (target instanceof Member)
+                bound = materialize((Member) target, family.root, limit, new HashMap<>(), entry);
+            else
+                bound = linear((Key) target, limit, entry);
+        }
+
+        Map<Object, Reference> variables = new HashMap<>();
+        for (Map.Entry<Object, Operand> start : starts.entrySet()) {
+            Object now = start.getKey();
+            Reference variable;
+            if (now instanceof Member) {
+                Member member = (Member) now;
+                variable = induction(loop, member.ref, start.getValue(), step(member.scale, member.factor, family.step, entry));
+            } else {
+                Key key = (Key) now;
+                variable = induction(loop, key.base, start.getValue(), step(key.scale, key.factor, family.step, entry));
+            }
+            variables.put(now, variable);
+        }
+
+        for (Map.Entry<Member, List<Use>> member : replaced.entrySet()) {
+            for (Use use : member.getValue())
+                replaceUse(use, member.getKey().ref, variables.get(member.getKey()));
+        }
+        for (Map.Entry<Key, List<Use>> pointer : pointers.entrySet()) {
+            Key key = pointer.getKey();
+            Member same = shared.get(key);
+            Reference variable = same != null ? variables.get(same) : variables.get(key);
+            long shift = same != null ? same.offset : 0;
+            for (Use use : pointer.getValue()) {
+                for (Address addr : addresses(use.ins)) {
+                    Member member = family.members.get(addr.index());
+                    if (member == null || addr.base() != key.base || member.scale * addr.mul() != key.scale
+                            || member.factor != key.factor)
+                        continue;
+                    addr.setAdd((int) (member.offset * addr.mul() + addr.add() - shift));
+                    addr.setBase(variable);
+                    addr.setIndex(null);
+                    addr.setMul(1);
+                }
+                use.ins.refreshDefAndUse();
+            }
+        }
+
+        if (test != null) {
+            long scale = target instanceof Member ? ((Member) target).scale : ((Key) target).scale;
+            CJump.Type type = test.left() == family.root.ref ? test.type() : reflect(test.type());
+            if (scale < 0)
+                type = reflect(type);
+            List<Instruction> ins = loop.header().ins();
+            CJump cjump = new CJump(variables.get(target), bound, type, test.trueLabel(), test.falseLabel());
+            cjump.setFallThrough(test.fallThrough());
+            ins.set(ins.size() - 1, cjump);
+
+            // the family is dead now, the phi function and the increment are used only by each other
+            Set<Instruction> dead = Collections.newSetFromMap(new IdentityHashMap<>());
+            dead.add(family.phi);
+            dead.addAll(family.definedBy.keySet());
+            for (BasicBlock bb : loop.blocks())
+                bb.ins().removeIf(dead::contains);
+        }
+
+        for (Instruction ins : entry)
+            ins.refreshDefAndUse();
+        LoopInvariantMotion.append(loop.preheader(), entry);
+    }
+
+    // the phi function of a new induction variable, increased at the end of the latches
+    private Reference induction(Loop loop, Reference like, Operand start, Operand step) {
+        BasicBlock header = loop.header();
+        Phi phi = ssa.insertPhi(header, like);
+        phi.args().put(loop.preheader(), start);
+        for (BasicBlock latch : new LinkedHashSet<>(header.predecessor())) {
+            if (!loop.contains(latch))
+                continue;
+            Reference next = ssa.newVersion(like);
+            Move copy = new Move(next, phi.dest());
+            Add add = new Add(next, step);
+            copy.refreshDefAndUse();
+            add.refreshDefAndUse();
+            LoopInvariantMotion.append(latch, Arrays.asList(copy, add));
+            phi.args().put(latch, next);
+        }
+        phi.refreshDefAndUse();
+        return phi.dest();
+    }
+
+    // scale * factor * step, computed in the preheader if it is not a constant
+    private Operand step(long scale, Reference factor, long step, List<Instruction> entry) {
+        long times = scale * step;
+        if (factor == null)
+            return new Immediate((int) times);
+        if (times == 1)
+            return factor;
+        Reference ret = ssa.newVersion(factor);
+        entry.add(new Move(ret, factor));
+        entry.add(new Mul(ret, new Immediate((int) times)));
+        return ret;
+    }
+
+    // the value of a member when the basic variable is at, by its instructions
+    private Operand materialize(Member member, Member root, Operand at, Map<Member, Operand> done, List<Instruction> entry) {
+        if (member == root)
+            return at;
+        Operand ret = done.get(member);
+        if (ret != null)
+            return ret;
+        Instruction first = member.group.get(0), last = member.group.get(member.group.size() - 1);
+        if (member.group.size() == 2) {
+            Operand old = operandAt(((Move) first).src(), member, root, at, done, entry);
+            if (last instanceof Neg) {
+                ret = arithmetic("imul", member.ref, old, new Immediate(-1), entry);
+            } else {
+                Operand right = operandAt(((Bin) last).right(), member, root, at, done, entry);
+                ret = arithmetic(((Bin) last).name(), member.ref, old, right, entry);
+            }
+        } else if (first instanceof Lea) {
+            Address addr = ((Lea) first).addr();
+            Operand base = addr.base() == null ? null : operandAt(addr.base(), member, root, at, done, entry);
+            Operand index = addr.index() == null ? null : operandAt(addr.index(), member, root, at, done, entry);
+            Long constant = constant(index);
+            if (!(base instanceof Immediate) && !(index instanceof Immediate)) {
+                Reference value = ssa.newVersion(member.ref);
+                entry.add(new Lea(value, new Address(base, index, addr.mul(), addr.add())));
+                ret = value;
+            } else if (base instanceof Reference && Math.abs(constant * addr.mul() + addr.add()) <= Integer.MAX_VALUE / 2) {
+                ret = offset((Reference) base, constant * addr.mul() + addr.add(), entry);
+            } else {
+                ret = index == null ? new Immediate(0) : arithmetic("imul", member.ref, index, new Immediate(addr.mul()), entry);
+                if (base != null)
+                    ret = arithmetic("add", member.ref, ret, base, entry);
+                ret = arithmetic("add", member.ref, ret, new Immediate(addr.add()), entry);
+            }
+        } else {
+            ret = operandAt(((Move) first).src(), member, root, at, done, entry);
+        }
+        done.put(member, ret);
+        return ret;
+    }
+
+    private Operand operandAt(Operand operand, Member member, Member root, Operand at, Map<Member, Operand> done, List<Instruction> entry) {
+        for (Member from : member.operands) {
+            if (from.ref == operand)
+                return materialize(from, root, at, done, entry);
+        }
+        return operand;
+    }
+
+    // left op right in a new version of like, folded if the operands are constants
+    private Operand arithmetic(String name, Reference like, Operand left, Operand right, List<Instruction> entry) {
+        Long a = constant(left), b = constant(right);
+        if (a != null && b != null) {
+            Integer folded = ConstantPropagator.fold(name, (int) (long) a, (int) (long) b);
+            if (folded != null)
+                return new Immediate(folded);
+        }
+        switch (name) {
+            case "add":
+                if (b != null && b == 0)
+                    return left;
+                if (a != null && a == 0)
+                    return right;
+                break;
+            case "sub":
+                if (left == right)
+                    return new Immediate(0);
+                if (b != null && b == 0)
+                    return left;
+                break;
+            case "sal":
+                if (b != null && b == 0)
+                    return left;
+                break;
+            case "imul":
+                if ((a != null && a == 0) || (b != null && b == 0))
+                    return new Immediate(0);
+                if (b != null && b == 1)
+                    return left;
+                if (a != null && a == 1)
+                    return right;
+                break;
+        }
+        Reference value = ssa.newVersion(like);
+        entry.add(new Move(value, left));
+        switch (name) {
+            case "add":  entry.add(new Add(value, right)); break;
+            case "sub":  entry.add(new Sub(value, right)); break;
+            case "imul": entry.add(new Mul(value, right)); break;
+            default:     entry.add(new Sal(value, right)); break;
+        }
+        return value;
+    }
+
+    // base + add
+    private Operand offset(Reference base, long add, List<Instruction> entry) {
+        if (add == 0)
+            return base;
+        Reference value = ssa.newVersion(base);
+        entry.add(new Lea(value, new Address(base, null, 1, (int) add)));
+        return value;
+    }
+
+    // the value of a pointer when the basic variable is at
+    private Operand linear(Key key, Operand at, List<Instruction> entry) {
+        Operand index = at;
+        if (key.factor != null)
+            index = arithmetic("imul", key.base, index, key.factor, entry);
+        Long constant = constant(index);
+        if (constant != null && Math.abs(constant * key.scale) <= Integer.MAX_VALUE / 2)
+            return offset(key.base, constant * key.scale, entry);
+        if (constant != null) {
+            Reference value = ssa.newVersion(key.base);
+            entry.add(new Move(value, index));
+            index = value;
+        }
+        long mul = key.scale;
+        if (!(mul == 1 || mul == 2 || mul == 4 || mul == 8)) {
+            index = arithmetic("imul", key.base, index, new Immediate((int) mul), entry);
+            mul = 1;
+        }
+        Reference value = ssa.newVersion(key.base);
+        entry.add(new Lea(value, new Address(key.base, index, (int) mul, 0)));
+        return value;
+    }
+
+    private static void replaceUse(Use use, Reference from, Reference to) {
+        if (use.ins instanceof Phi) {
+            Phi phi = (Phi) use.ins;
+            if (phi.args().get(use.bb) == from)
+                phi.args().put(use.bb, to);
+        } else {
+            use.ins.replaceUse(from, to);
+        }
+        use.ins.refreshDefAndUse();
+    }
+
+    // a op b -> b op' a
+    private static CJump.Type reflect(CJump.Type type) {
+        switch (type) {
+            case GT: return CJump.Type.LT;
+            case GE: return CJump.Type.LE;
+            case LT: return CJump.Type.GT;
+            case LE: return CJump.Type.GE;
+            default: return type;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.mercy.compiler.BackEnd;
 
+import com.mercy.compiler.CompilationContext;
 import com.mercy.compiler.Entity.*;
 import com.mercy.compiler.INS.*;
 import com.mercy.compiler.INS.Operand.*;
@@ -7,10 +8,7 @@ import com.mercy.compiler.IR.IR;
 import com.mercy.compiler.Option;
 import com.mercy.compiler.Utility.InternalError;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
-import java.util.LinkedList;
+import java.io.*;
 import java.util.List;
 import java.util.ListIterator;
 
@@ -23,7 +21,10 @@ import static java.lang.System.err;
  */
 public class Translator {
     public static String GLOBAL_PREFIX = "__global_";
+    public static final String LIB_FILE = "lib/lib.s";   // pasted after the program, relative to the working directory
 
+    private CompilationContext context;
+    private Option option;
     private List<FunctionEntity> functionEntities;
     private Scope globalScope;
     private List<IR> globalInitializer;
@@ -31,9 +32,11 @@ public class Translator {
     private Register rax, rbx, rcx, rdx, rsi, rdi, rsp, rbp;
     private List<Register> registers;
     private List<Register> paraRegister;
-    private List<String> asm = new LinkedList<>();
+    private StringBuilder asm = new StringBuilder();  // text not written yet
 
     public Translator(InstructionEmitter emitter, RegisterConfig registerConfig) {
+        context = emitter.context();
+        option = context.option();
         functionEntities = emitter.functionEntities();
         globalScope = emitter.globalScope();
         globalInitializer = emitter.globalInitializer();
@@ -48,7 +51,21 @@ public class Translator {
         rbp = registers.get(6); rsp = registers.get(7);
     }
 
-    public List<String> translate() {
+    // a translator for one function, which has its own buffer
+    private Translator(Translator global) {
+        context = global.context;
+        option = global.option;
+        registers = global.registers;
+        paraRegister = global.paraRegister;
+
+        rax = global.rax; rbx = global.rbx;
+        rcx = global.rcx; rdx = global.rdx;
+        rsi = global.rsi; rdi = global.rdi;
+        rbp = global.rbp; rsp = global.rsp;
+    }
+
+    // write the program to 'out' while translating, one function at a time
+    public void translate(Writer out) throws IOException {
         // add extern
         add("global main");
         add("extern printf, scanf, puts, gets, sprintf, sscanf, getchar, strlen, strcmp, strcpy, strncpy, malloc");
@@ -84,18 +101,32 @@ public class Translator {
 
         // translate functions
         add("section .text");
-        for (FunctionEntity entity : functionEntities) {
-            if (entity.isInlined())
-                continue;
-            //currentFunction = entity;
-            locateFrame(entity);
-            add("ALIGN 16");
-            translateFunction(entity);
-            add("");
+        flush(out);
+        try {
+            context.scheduler().forEachOrdered(functionEntities, entity -> {
+                Translator translator = new Translator(this);
+                translator.locateFrame(entity);
+                translator.add("ALIGN 16");
+                translator.translateFunction(entity);
+                translator.add("");
+                return translator.asm;
+            }, function -> {
+                try {
+                    out.append(function);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
 
-        pasteLibfunction();
-        return asm;
+        pasteLibfunction(out);
+    }
+
+    private void flush(Writer out) throws IOException {
+        out.append(asm);
+        asm.setLength(0);
     }
 
     private void locateFrame(FunctionEntity entity) {
@@ -138,7 +169,7 @@ public class Translator {
 
     private void translateFunction(FunctionEntity entity) {
         addLabel(entity.asmName());
-        int startPos = asm.size();
+        int startPos = asm.length();
 
         /***** body *****/
         // translate body
@@ -164,8 +195,8 @@ public class Translator {
         }
 
         /***** prologue *****/
-        List<String> backup = asm, prologue;
-        asm = new LinkedList<>();
+        StringBuilder backup = asm, prologue;
+        asm = new StringBuilder();
 
         // push and pop callee-save registers
         for (Register register : entity.regUsed()) {
@@ -181,7 +212,7 @@ public class Translator {
             add("sub", rsp(), new Immediate(entity.frameSize()));
 
         // store parameters
-        if (!Option.enableGlobalRegisterAllocation) {
+        if (!option.enableGlobalRegisterAllocation) {
             List<ParameterEntity> params = entity.params();
             for (ParameterEntity param : params) {
                 if (!param.reference().equals(param.source())) {  // copy when source and ref are different
@@ -194,14 +225,15 @@ public class Translator {
         // insert prologue
         prologue = asm;
         asm = backup;
-        asm.addAll(startPos, prologue);
+        asm.insert(startPos, prologue);
     }
 
     private void add(String op, Operand l, Operand r) {
-        if (op.equals("mov") && l.toNASM().equals(r.toNASM()))
+        String left = l.toNASM(), right = r.toNASM();
+        if (op.equals("mov") && left.equals(right))
             ; // ignore useless move
         else
-            asm.add("\t" + op + " " + l.toNASM() + ", " + r.toNASM());
+            asm.append('\t').append(op).append(' ').append(left).append(", ").append(right).append('\n');
     }
 
     private void add(String op, Operand l) {
@@ -218,25 +250,25 @@ public class Translator {
                         str = str + "d"; break;
                 }
             }
-            asm.add("\t" + op + " " + str);
+            asm.append('\t').append(op).append(' ').append(str).append('\n');
         } else
-            asm.add("\t" + op + " " + l.toNASM());
+            asm.append('\t').append(op).append(' ').append(l.toNASM()).append('\n');
     }
 
     private void add(String op) {
-        asm.add("\t" + op);
+        asm.append('\t').append(op).append('\n');
     }
 
     private void addLabel(String name) {
-        asm.add(name + ":");
+        asm.append(name).append(":\n");
     }
 
     private void addJump(String name) {
-        asm.add("\tjmp" + " " + name);
+        asm.append("\tjmp ").append(name).append('\n');
     }
 
     private void addComment(String comment) {
-        asm.add("\t;" + comment);
+        asm.append("\t;").append(comment).append('\n');
     }
 
     private int addMove(Register reg, Operand operand) {
@@ -320,7 +352,7 @@ public class Translator {
             add("idiv", rcx());
         }
 
-        if (!Option.enableGlobalRegisterAllocation)
+        if (!option.enableGlobalRegisterAllocation)
             add("mov", left, res);
     }
 
@@ -400,7 +432,7 @@ public class Translator {
             case LT: set = "setl";  break;
         }
 
-        if (Option.enableGlobalRegisterAllocation) {
+        if (option.enableGlobalRegisterAllocation) {
             Register reg = ((Reference)left).reg();
             add(set + " " + reg.lowName());
             add("movzx " + reg.name() + ", " + reg.lowName());
@@ -459,7 +491,7 @@ public class Translator {
         boolean isAddrLeft  = isAddress(ins.dest());
         boolean isAddrRight = isAddress(ins.src());
 
-        if (Option.enableGlobalRegisterAllocation) {
+        if (option.enableGlobalRegisterAllocation) {
             add("mov", ins.dest(), ins.src());
         } else {
             if (isAddrLeft && isAddrRight) {
@@ -480,7 +512,7 @@ public class Translator {
     }
 
     public void visit(Lea ins) {
-        if (!Option.enableGlobalRegisterAllocation)
+        if (!option.enableGlobalRegisterAllocation)
             simplifyAddress(ins.addr(), rax(), rcx());
         ins.addr().setShowSize(false);
         if (ins.dest().isRegister()) {
@@ -603,17 +635,17 @@ public class Translator {
      * register getter
      */
     private Register rax() {
-        if (Option.enableGlobalRegisterAllocation)
+        if (option.enableGlobalRegisterAllocation)
             throwUnhandledCase("rax");
         return rax;
     }
     private Register rcx() {
-        if (Option.enableGlobalRegisterAllocation)
+        if (option.enableGlobalRegisterAllocation)
             throwUnhandledCase("rcx");
         return rcx;
     }
     private Register rdx() {
-        if (Option.enableGlobalRegisterAllocation)
+        if (option.enableGlobalRegisterAllocation)
             throwUnhandledCase("rdx");
         return rdx;
     }
@@ -639,15 +671,16 @@ public class Translator {
     /*
      * Library function
      */
-    private void pasteLibfunction() {
-        asm.add("\n;========== LIB BEGIN ==========");
-        File f = new File("lib/lib.s");
+    private void pasteLibfunction(Writer out) throws IOException {
+        out.append("\n;========== LIB BEGIN ==========\n");
+        File f = new File(LIB_FILE);
         try {
             BufferedReader fin = new BufferedReader(new FileReader(f));
             String line;
             while((line = fin.readLine()) != null)
-                asm.add(line);
-        } catch (Exception e) {
+                out.append(line).append('\n');
+            fin.close();
+        } catch (FileNotFoundException e) {
             e.printStackTrace();
         }
     }
@@ -0,0 +1,397 @@
+package com.mercy.compiler.BackEnd;
+
+import com.mercy.compiler.Entity.FunctionEntity;
+import com.mercy.compiler.INS.*;
+import com.mercy.compiler.INS.Operand.Address;
+import com.mercy.compiler.INS.Operand.Immediate;
+import com.mercy.compiler.INS.Operand.Operand;
+import com.mercy.compiler.INS.Operand.Reference;
+
+import java.util.*;
+
+import static com.mercy.compiler.BackEnd.SSAForm.renamable;
+
+/**
+ * Global value numbering of a function in SSA form, by a walk of the dominator tree.
+ *      Briggs, Preston; Cooper, Keith D.; Simpson, L. Taylor (1997). "Value Numbering"
+ *
+ * The value number of a reference is the first reference found with the same value (its leader), or the constant
+ * it holds. An expression (Bin, Cmp, Neg, Not, Lea or a load) is hashed by its operator and the value numbers of
+ * its operands. The table is scoped by the dominator tree, so an expression is only replaced by one computed in
+ * a dominating block. Uses of a reference are replaced by its leader, and phi functions with the same arguments
+ * as another one, or with one argument only, are removed.
+ *
+ * A load is also keyed by the state of memory, which changes at every store and call. A block starts with the
+ * state at the end of its immediate dominator if no store or call can happen between them, and a store makes
+ * the stored value available to a load of the same address.
+ */
+public class ValueNumbering {
+    // an expression on value numbers, operands are leaders, constants (Integer) or labels (String)
+    private static class Key {
+        final String operator;
+        final Object[] operands;
+
+        Key(String operator, Object... operands) {
+            this.operator = operator;
+            this.operands = operands;
+        }
+
+        @Override
+        public int hashCode() {
+            return operator.hashCode() * 31 + Arrays.hashCode(operands);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && operator.equals(((Key) o).operator) && Arrays.equals(operands, ((Key) o).operands);
+        }
+    }
+
+    private static final int MEMORY_SEARCH_BUDGET = 64;     // blocks searched to prove no store between two blocks
+
+    private FunctionEntity entity;
+    private DominatorTree domTree;
+
+    private Map<Key, Reference> table = new HashMap<>();
+    private Map<Reference, Object> number = new HashMap<>();
+    private Map<Reference, Integer> rank = new HashMap<>();     // order of leaders seen, for commutative operators
+
+    private Set<BasicBlock> writeMemory = new HashSet<>();
+    private Map<BasicBlock, Integer> memoryAtEnd = new HashMap<>();
+    private int memory, memoryCounter = 0;
+
+    public ValueNumbering(SSAForm ssa) {
+        this.entity = ssa.entity();
+        this.domTree = ssa.dominatorTree();
+    }
+
+    public void number() {
+        for (BasicBlock bb : entity.bbs()) {
+            for (Instruction ins : bb.ins()) {
+                if (writesMemory(ins)) {
+                    writeMemory.add(bb);
+                    break;
+                }
+            }
+        }
+
+        // walk the dominator tree by an explicit stack, the expressions of a block are removed after its subtree
+        Deque<List<Key>> scopes = new ArrayDeque<>();
+        Deque<Iterator<BasicBlock>> iters = new ArrayDeque<>();
+        BasicBlock entry = domTree.entry();
+        scopes.push(numberBlock(entry));
+        iters.push(domTree.children(entry).iterator());
+        while (!iters.isEmpty()) {
+            Iterator<BasicBlock> iter = iters.peek();
+            if (iter.hasNext()) {
+                BasicBlock child = iter.next();
+                scopes.push(numberBlock(child));
+                iters.push(domTree.children(child).iterator());
+            } else {
+                for (Key key : scopes.pop())
+                    table.remove(key);
+                iters.pop();
+            }
+        }
+    }
+
+    static boolean writesMemory(Instruction ins) {
+        if (ins instanceof Call)
+            return true;
+        if (ins instanceof Move)
+            return ((Move) ins).dest().isAddress();
+        if (ins instanceof Bin)
+            return ((Bin) ins).left().isAddress();
+        if (ins instanceof Neg)
+            return ((Neg) ins).operand().isAddress();
+        if (ins instanceof Not)
+            return ((Not) ins).operand().isAddress();
+        return false;
+    }
+
+    /*
+     * state of memory at the beginning of a block
+     */
+    private int memoryAtBegin(BasicBlock bb) {
+        BasicBlock idom = domTree.idom(bb);
+        if (idom == null || !noStoreBetween(idom, bb))
+            return ++memoryCounter;
+        return memoryAtEnd.get(idom);
+    }
+
+    // search backward from bb to its dominator, a block in a loop with bb may be searched too
+    private boolean noStoreBetween(BasicBlock idom, BasicBlock bb) {
+        Set<BasicBlock> visited = new HashSet<>();
+        Deque<BasicBlock> stack = new ArrayDeque<>();
+        for (BasicBlock pre : bb.predecessor()) {
+            if (pre != idom && visited.add(pre))
+                stack.push(pre);
+        }
+        while (!stack.isEmpty()) {
+            BasicBlock now = stack.pop();
+            if (writeMemory.contains(now) || visited.size() > MEMORY_SEARCH_BUDGET)
+                return false;
+            for (BasicBlock pre : now.predecessor()) {
+                if (pre != idom && visited.add(pre))
+                    stack.push(pre);
+            }
+        }
+        return true;
+    }
+
+    /*
+     * value numbers
+     */
+    private Object valueOf(Operand operand) {
+        if (operand instanceof Immediate) {
+            Immediate imm = (Immediate) operand;
+            return imm.isConstInt() ? (Object) imm.value() : "label " + imm.label();
+        }
+        if (operand instanceof Reference && renamable((Reference) operand)) {
+            Object value = number.getOrDefault(operand, operand);
+            if (value instanceof Reference)
+                rank.putIfAbsent((Reference) value, rank.size());
+            return value;
+        }
+        return null;    // memory or a register, which has no value number
+    }
+
+    private Reference leader(Reference ref) {
+        Object value = number.get(ref);
+        return value instanceof Reference ? (Reference) value : ref;
+    }
+
+    private void setNumber(Reference ref, Object value) {
+        number.put(ref, value);
+    }
+
+    private boolean isCommutative(String operator) {
+        switch (operator) {
+            case "add": case "imul": case "and": case "or": case "xor": case "set EQ": case "set NE":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // leaders first, in the order they are found, then constants and labels
+    private int compare(Object a, Object b) {
+        int ka = a instanceof Reference ? 0 : a instanceof Integer ? 1 : 2;
+        int kb = b instanceof Reference ? 0 : b instanceof Integer ? 1 : 2;
+        if (ka != kb)
+            return ka - kb;
+        if (ka == 0)
+            return rank.getOrDefault(a, -1) - rank.getOrDefault(b, -1);
+        return ka == 1 ? Integer.compare((Integer) a, (Integer) b) : ((String) a).compareTo((String) b);
+    }
+
+    private Key binaryKey(String operator, Operand left, Operand right) {
+        Object a = valueOf(left), b = valueOf(right);
+        if (a == null || b == null)
+            return null;
+        if (isCommutative(operator) && compare(a, b) > 0) {
+            Object t = a; a = b; b = t;
+        }
+        return new Key(operator, a, b);
+    }
+
+    // [base + index * mul + add]
+    private Key addressKey(String operator, Address addr, Object... more) {
+        Object base = addr.base() == null ? "none" : valueOf(addr.base());
+        Object index = addr.index() == null ? "none" : valueOf(addr.index());
+        if (base == null || index == null)
+            return null;
+        Object[] operands = new Object[4 + more.length];
+        operands[0] = base;
+        operands[1] = index;
+        operands[2] = addr.mul();
+        operands[3] = addr.add();
+        System.arraycopy(more, 0, operands, 4, more.length);
+        return new Key(operator, operands);
+    }
+
+    // a load from memory, by the state of memory
+    private Key loadKey(Operand src) {
+        if (src instanceof Address)
+            return addressKey("load", (Address) src, memory);
+        if (src instanceof Reference && ((Reference) src).type() == Reference.Type.GLOBAL)
+            return new Key("load global", ((Reference) src).name(), memory);
+        return null;
+    }
+
+    private Key updateKey(Instruction update, Operand old) {
+        if (update instanceof Bin)
+            return binaryKey(((Bin) update).name(), old, ((Bin) update).right());
+        if (update instanceof Cmp)
+            return binaryKey("set " + ((Cmp) update).operator(), old, ((Cmp) update).right());
+        Object value = valueOf(old);
+        if (value == null)
+            return null;
+        return new Key(update instanceof Neg ? "neg" : "not", value);
+    }
+
+    /*
+     * number a block, return the expressions put into the table
+     */
+    private List<Key> numberBlock(BasicBlock bb) {
+        memory = memoryAtBegin(bb);
+        List<Key> added = new ArrayList<>();
+        List<Instruction> ins = bb.ins();
+        List<Instruction> newIns = new ArrayList<>(ins.size());
+        Map<Key, Reference> phis = new HashMap<>();
+
+        for (int i = 0; i < ins.size(); i++) {
+            Instruction now = ins.get(i);
+            if (now instanceof Phi) {
+                if (!numberPhi(bb, (Phi) now, phis))
+                    newIns.add(now);
+                continue;
+            }
+            replaceByLeaders(now);
+
+            Instruction next = i + 1 < ins.size() ? ins.get(i + 1) : null;
+            Reference updated = next == null ? null : SSAForm.updated(next);
+            if (updated != null && now instanceof Move && ((Move) now).dest() == updated) {
+                // "mov x2, x1; add x2, y" is one expression
+                replaceByLeaders(next);
+                Key key = updateKey(next, ((Move) now).src());
+                if (reuse(key, updated, newIns, added)) {
+                    i++;
+                } else {
+                    setNumber(updated, updated);
+                    newIns.add(now);
+                }
+                continue;
+            }
+
+            if (now instanceof Move && ((Move) now).dest() instanceof Reference
+                    && renamable((Reference) ((Move) now).dest())) {
+                Reference dest = (Reference) ((Move) now).dest();
+                Operand src = ((Move) now).src();
+                Object value = valueOf(src);
+                if (value != null) {                    // a copy or a constant
+                    setNumber(dest, value);
+                } else if (reuse(loadKey(src), dest, newIns, added)) {
+                    continue;
+                } else {
+                    setNumber(dest, dest);
+                }
+            } else if (now instanceof Lea && renamable(((Lea) now).dest())) {
+                Reference dest = ((Lea) now).dest();
+                if (reuse(addressKey("lea", ((Lea) now).addr()), dest, newIns, added))
+                    continue;
+                setNumber(dest, dest);
+            } else {
+                for (Reference ref : now.def()) {
+                    if (renamable(ref))
+                        setNumber(ref, ref);
+                }
+                if (writesMemory(now)) {
+                    memory = ++memoryCounter;
+                    if (now instanceof Move)
+                        forward((Move) now, added);
+                }
+            }
+            newIns.add(now);
+        }
+        bb.setIns(newIns);
+        memoryAtEnd.put(bb, memory);
+
+        // arguments of phi functions in successors
+        Set<BasicBlock> visited = new HashSet<>();
+        for (BasicBlock suc : bb.successor()) {
+            if (!visited.add(suc))
+                continue;
+            for (Instruction phi : suc.ins()) {
+                if (phi instanceof Label)
+                    continue;
+                if (!(phi instanceof Phi))
+                    break;
+                Operand arg = ((Phi) phi).args().get(bb);
+                if (arg instanceof Reference && renamable((Reference) arg) && leader((Reference) arg) != arg) {
+                    ((Phi) phi).args().put(bb, leader((Reference) arg));
+                    phi.refreshDefAndUse();
+                }
+            }
+        }
+        return added;
+    }
+
+    // replace the expression defining dest by a copy of the leader if it is in the table, otherwise put it in
+    private boolean reuse(Key key, Reference dest, List<Instruction> newIns, List<Key> added) {
+        if (key == null)
+            return false;
+        Reference found = table.get(key);
+        if (found != null) {
+            setNumber(dest, leader(found));
+            Move move = new Move(dest, leader(found));
+            move.refreshDefAndUse();
+            newIns.add(move);
+            return true;
+        }
+        table.put(key, dest);
+        added.add(key);
+        return false;
+    }
+
+    // a load of the address just stored to gets the value stored
+    private void forward(Move store, List<Key> added) {
+        Operand value = store.src();
+        if (!(value instanceof Reference) || !renamable((Reference) value))
+            return;
+        Key key = loadKey(store.dest());
+        if (key != null && !table.containsKey(key)) {
+            table.put(key, (Reference) value);
+            added.add(key);
+        }
+    }
+
+    // return true if the phi is removed
+    private boolean numberPhi(BasicBlock bb, Phi phi, Map<Key, Reference> phis) {
+        Object[] args = new Object[phi.args().size()];
+        Object same = null;
+        boolean allSame = true;
+        int k = 0;
+        for (BasicBlock pre : bb.predecessor()) {
+            Operand arg = phi.args().get(pre);
+            Object value = arg == null ? null : valueOf(arg);
+            if (value == null || k >= args.length) {
+                setNumber(phi.dest(), phi.dest());
+                return false;
+            }
+            args[k++] = value;
+            allSame &= same == null || same.equals(value);
+            same = value;
+        }
+
+        if (allSame && same instanceof Reference) {
+            setNumber(phi.dest(), same);
+            return true;
+        }
+        Key key = new Key("phi", args);
+        Reference found = phis.get(key);
+        if (found != null) {
+            setNumber(phi.dest(), leader(found));
+            return true;
+        }
+        phis.put(key, phi.dest());
+        setNumber(phi.dest(), phi.dest());
+        return false;
+    }
+
+    private void replaceByLeaders(Instruction ins) {
+        Reference updated = SSAForm.updated(ins);
+        boolean changed = false;
+        for (Reference ref : ins.use()) {
+            if (!renamable(ref) || ref == updated)
+                continue;
+            Reference leader = leader(ref);
+            if (leader != ref) {
+                ins.replaceUse(ref, leader);
+                changed = true;
+            }
+        }
+        if (changed)
+            ins.refreshDefAndUse();
+    }
+}
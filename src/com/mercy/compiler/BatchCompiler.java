@@ -0,0 +1,213 @@
+package com.mercy.compiler;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compiles many files in one JVM, several at a time.
+ *
+ * The input is
+ *      a directory : every .mx file below it
+ *      a manifest  : a file of source paths, one per line, relative to the manifest. Blank lines and lines
+ *                    starting with '#' are skipped
+ * The output of <input>/a/b.mx is <out>/a/b.asm. Files are compiled in parallel by Option.backendThreads threads,
+ * each of them with a sequential backend. The summary reports success and time of every file in input order,
+ * with the diagnostics of the failed ones.
+ */
+public class BatchCompiler {
+    private static final String SOURCE_SUFFIX = ".mx";
+    private static final String OUTPUT_SUFFIX = ".asm";
+
+    private Option option;
+
+    public BatchCompiler(Option option) {
+        this.option = option;
+    }
+
+    private static class Job {
+        Path source;
+        Path output;
+        int status;
+        long time;    // ns
+        String diagnostics;
+    }
+
+    // compile all files, write the summary to 'summary', return the exit status
+    public int run(PrintStream summary) throws IOException {
+        List<Job> jobs = collectJobs();
+        int threads = Math.max(1, Math.min(option.backendThreads, jobs.size()));
+
+        long wallTime = System.nanoTime();
+        PrintStream stderr = System.err;
+        DiagnosticsRouter router = new DiagnosticsRouter(stderr);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        System.setErr(new PrintStream(router, true));
+        try {
+            List<Future<Job>> results = new ArrayList<>();
+            for (Job job : jobs)
+                results.add(pool.submit(() -> compile(job, router)));
+
+            // report in input order, as soon as every file before is done
+            int failed = 0;
+            long totalTime = 0;
+            for (Future<Job> result : results) {
+                Job job = result.get();
+                totalTime += job.time;
+                if (job.status != 0)
+                    failed++;
+                summary.printf("%-4s %9.1f ms  %s\n", job.status == 0 ? "ok" : "FAIL", job.time / 1e6, job.source);
+                if (job.status != 0 && !job.diagnostics.isEmpty()) {
+                    for (String line : job.diagnostics.split("\n"))
+                        summary.println("    " + line);
+                }
+            }
+            wallTime = System.nanoTime() - wallTime;
+            summary.printf("==== %d files, %d failed, %.1f s compiling, %.1f s wall, %d threads ====\n",
+                    jobs.size(), failed, totalTime / 1e9, wallTime / 1e9, threads);
+            summary.flush();
+            return failed == 0 ? 0 : 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("batch is interrupted");
+        } catch (ExecutionException e) {   // compile() catches everything, never happens
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            System.setErr(stderr);
+        }
+    }
+
+    private Job compile(Job job, DiagnosticsRouter router) {
+        ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+        router.capture(diagnostics);
+        long time = System.nanoTime();
+        try {
+            if (job.diagnostics != null) {      // rejected when collected
+                System.err.println(job.diagnostics);
+                job.status = 1;
+            } else if (!Files.isReadable(job.source)) {
+                System.err.println("cannot read " + job.source);
+                job.status = 1;
+            } else {
+                Option fileOption = option.copy();
+                fileOption.inFile = job.source.toString();
+                fileOption.outFile = job.output.toString();
+                fileOption.backendThreads = 1;    // files are the unit of parallelism
+                if (job.output.getParent() != null)
+                    Files.createDirectories(job.output.getParent());
+                job.status = Main.compileFile(fileOption);
+                if (job.status != 0)    // do not leave a partial output
+                    Files.deleteIfExists(job.output);
+            }
+        } catch (Throwable e) {    // e.g. a stack overflow, must not stop other files
+            e.printStackTrace();
+            job.status = 1;
+        } finally {
+            job.time = System.nanoTime() - time;
+            System.err.flush();
+            router.release();
+            job.diagnostics = new String(diagnostics.toByteArray(), StandardCharsets.UTF_8).trim();
+        }
+        return job;
+    }
+
+    private List<Job> collectJobs() throws IOException {
+        Path input = Paths.get(option.batchInput);
+        Path outDir = Paths.get(option.batchOutDir);
+        Path base;
+        List<Path> sources;
+
+        if (Files.isDirectory(input)) {
+            base = input;
+            try (Stream<Path> files = Files.walk(input)) {
+                sources = files.filter(path -> Files.isRegularFile(path) && path.toString().endsWith(SOURCE_SUFFIX))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        } else {
+            base = input.toAbsolutePath().getParent();
+            sources = new ArrayList<>();
+            for (String line : Files.readAllLines(input, StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                sources.add(base.resolve(line));
+            }
+        }
+
+        List<Job> jobs = new ArrayList<>();
+        Map<Path, Path> outputs = new HashMap<>();
+        for (Path source : sources) {
+            Job job = new Job();
+            job.source = source;
+            job.output = outDir.resolve(outputName(base, source));
+            Path clash = outputs.putIfAbsent(job.output.toAbsolutePath().normalize(), source);
+            if (clash != null)
+                job.diagnostics = "output " + job.output + " is also the output of " + clash;
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    // the path of the source relative to the input, or its name if it is not below the input
+    private String outputName(Path base, Path source) {
+        Path relative = base.toAbsolutePath().normalize().relativize(source.toAbsolutePath().normalize());
+        if (relative.startsWith(".."))
+            relative = relative.getFileName();
+        String name = relative.toString();
+        if (name.endsWith(SOURCE_SUFFIX))
+            name = name.substring(0, name.length() - SOURCE_SUFFIX.length());
+        return name + OUTPUT_SUFFIX;
+    }
+
+    /*
+     * System.err of a compiling thread goes to the buffer of its file, other threads write to the real stderr.
+     * Files have a sequential backend, so all diagnostics of a file are printed by the thread compiling it.
+     */
+    private static class DiagnosticsRouter extends OutputStream {
+        private PrintStream fallback;
+        private ThreadLocal<OutputStream> target = new ThreadLocal<>();
+
+        DiagnosticsRouter(PrintStream fallback) {
+            this.fallback = fallback;
+        }
+
+        void capture(OutputStream out) {
+            target.set(out);
+        }
+
+        void release() {
+            target.remove();
+        }
+
+        private OutputStream current() {
+            OutputStream out = target.get();
+            return out == null ? fallback : out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            current().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            current().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            current().flush();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package com.mercy.compiler;
+
+import com.mercy.compiler.BackEnd.Translator;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of generated assembly, so that a source compiled before is not compiled again.
+ *
+ * The key of an entry is the SHA-256 of
+ *      the build of the compiler : its jar, or its class files
+ *      the library pasted into the output (Translator.LIB_FILE)
+ *      the options that affect the output, see fingerprint()
+ *      the bytes of the source
+ * An entry <key>.asm holds the whole output. Entries are written to a temporary file and moved into place,
+ * so concurrent compilers, in one JVM or not, never see a partial entry. The modification time of an entry is
+ * its last use, entries used least recently are deleted when the cache exceeds Option.cacheSize.
+ */
+public class CompilationCache {
+    private static final String ENTRY_SUFFIX = ".asm";
+    private static final String TEMP_PREFIX = "tmp-";
+    private static final long TEMP_EXPIRY = 3600 * 1000;   // ms, temporaries of a killed compiler are deleted after it
+
+    // options which do not change the output
+    private static final Set<String> IRRELEVANT_OPTIONS = new HashSet<>(Arrays.asList(
+            "inFile", "outFile", "serverFile", "batchInput", "batchOutDir", "cacheDir", "cacheSize",
+            "printRemoveInfo", "printInlineInfo", "printIrrelevantMarkInfo", "printInstruction", "printBasicBlocks",
+            "printNaiveAllocatorInfo", "printGlobalAllocationInfo", "printPassTiming", "statsFile",
+            "backendThreads", "enableStreamingAST"));
+
+    private static byte[] buildHash;
+
+    private Option option;
+    private Path dir;
+
+    public CompilationCache(Option option) {
+        this.option = option;
+        this.dir = Paths.get(option.cacheDir);
+    }
+
+    // statistics and debug output need the passes to run
+    public static boolean usable(Option option) {
+        return option.cacheDir != null && !option.printPassTiming && option.statsFile == null
+                && !option.printInstruction && !option.printBasicBlocks;
+    }
+
+    // compile through the cache, the output is the same as Main.compile
+    public void compile(InputStream sourceCode, PrintStream asmCode) throws Exception {
+        byte[] source = readAll(sourceCode);
+        Files.createDirectories(dir);
+        Path entry = dir.resolve(key(source) + ENTRY_SUFFIX);
+
+        if (load(entry, asmCode))
+            return;
+
+        Path temp = Files.createTempFile(dir, TEMP_PREFIX, ENTRY_SUFFIX);
+        try {
+            try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(temp))) {
+                PrintStream tee = new PrintStream(new TeeOutputStream(asmCode, file));
+                Main.runPipeline(new ByteArrayInputStream(source), tee, option);
+                tee.flush();
+            }
+            Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        evict();
+    }
+
+    private boolean load(Path entry, PrintStream asmCode) throws IOException {
+        byte[] asm;
+        try {
+            asm = Files.readAllBytes(entry);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {   // a miss, or evicted by another compiler just now
+            return false;
+        }
+        asmCode.write(asm);
+        asmCode.flush();
+        return true;
+    }
+
+    // delete the entries used least recently until the cache fits in its size
+    private void evict() throws IOException {
+        long limit = option.cacheSize;
+        long now = System.currentTimeMillis();
+        List<Path> entries = new ArrayList<>();
+        Map<Path, Long> time = new HashMap<>(), size = new HashMap<>();
+        long total = 0;
+
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path path : files.collect(Collectors.toList())) {
+                String name = path.getFileName().toString();
+                try {
+                    long modified = Files.getLastModifiedTime(path).toMillis();
+                    if (name.startsWith(TEMP_PREFIX)) {
+                        if (now - modified > TEMP_EXPIRY)
+                            Files.deleteIfExists(path);
+                    } else if (name.endsWith(ENTRY_SUFFIX)) {
+                        entries.add(path);
+                        time.put(path, modified);
+                        size.put(path, Files.size(path));
+                        total += size.get(path);
+                    }
+                } catch (NoSuchFileException e) {   // deleted by another compiler
+                }
+            }
+        }
+        if (limit <= 0 || total <= limit)
+            return;
+
+        entries.sort(Comparator.comparing(time::get));
+        for (Path path : entries) {
+            if (total <= limit)
+                break;
+            Files.deleteIfExists(path);
+            total -= size.get(path);
+        }
+    }
+
+    private String key(byte[] source) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(buildHash());
+        update(digest, readLib());
+        update(digest, fingerprint().getBytes(StandardCharsets.UTF_8));
+        update(digest, source);
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest())
+            sb.append(String.format("%02x", b));
+        return sb.toString();
+    }
+
+    // length first, so that the boundaries of the parts are part of the key
+    private void update(MessageDigest digest, byte[] bytes) {
+        digest.update(Long.toString(bytes.length).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) ':');
+        digest.update(bytes);
+    }
+
+    private byte[] readLib() throws IOException {
+        try {
+            return Files.readAllBytes(Paths.get(Translator.LIB_FILE));
+        } catch (NoSuchFileException e) {   // the translator reports it
+            return new byte[0];
+        }
+    }
+
+    // every option except the irrelevant ones, so a new option changes the key unless it is declared irrelevant
+    private String fingerprint() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            Field[] fields = Option.class.getFields();     // in no particular order
+            Arrays.sort(fields, Comparator.comparing(Field::getName));
+            for (Field field : fields) {
+                if (Modifier.isStatic(field.getModifiers()) || IRRELEVANT_OPTIONS.contains(field.getName()))
+                    continue;
+                Object value = field.get(option);
+                if (value instanceof Set)
+                    value = new TreeSet<>((Set<?>) value);
+                sb.append(field.getName()).append('=').append(value).append('\n');
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+        return sb.toString();
+    }
+
+    // the jar of the compiler, or all its class files when it runs from a directory
+    private static synchronized byte[] buildHash() throws IOException {
+        if (buildHash != null)
+            return buildHash;
+
+        MessageDigest digest = sha256();
+        Path location;
+        try {
+            location = Paths.get(CompilationCache.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if (Files.isDirectory(location)) {
+            try (Stream<Path> files = Files.walk(location)) {
+                for (Path path : files.filter(p -> p.toString().endsWith(".class")).sorted().collect(Collectors.toList())) {
+                    digest.update(location.relativize(path).toString().getBytes(StandardCharsets.UTF_8));
+                    digest.update(Files.readAllBytes(path));
+                }
+            }
+        } else {
+            digest.update(Files.readAllBytes(location));
+        }
+        buildHash = digest.digest();
+        return buildHash;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {  // every JVM has SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+    private static class TeeOutputStream extends OutputStream {
+        private OutputStream first, second;
+
+        TeeOutputStream(OutputStream first, OutputStream second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            first.write(b);
+            second.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            first.write(b, off, len);
+            second.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            first.flush();
+            second.flush();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.mercy.compiler;
+
+import com.mercy.compiler.AST.BinaryOpNode.BinaryOp;
+import com.mercy.compiler.BackEnd.FunctionScheduler;
+import com.mercy.compiler.Entity.Entity;
+import com.mercy.compiler.Entity.FunctionEntity;
+import com.mercy.compiler.Entity.Scope;
+import com.mercy.compiler.Entity.VariableEntity;
+import com.mercy.compiler.Type.ArrayType;
+import com.mercy.compiler.Type.StringType;
+import com.mercy.compiler.Type.Type;
+import com.mercy.compiler.Utility.LibFunction;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static com.mercy.compiler.Type.Type.*;
+import static com.mercy.compiler.Utility.LibFunction.LIB_PREFIX;
+
+/**
+ * State of one compilation : its options, the library and builtin functions, and the scheduler of its backend.
+ * Nothing here is shared with other compilations, so compilations can run concurrently on different threads.
+ * Labels and temporaries are numbered by the passes, which are created for every compilation as well.
+ */
+public class CompilationContext {
+    private Option option;
+    private FunctionScheduler scheduler;
+    private List<Entity> library;
+    private Map<BinaryOp, FunctionEntity> stringOperators;
+    private Scope stringScope;
+    private Scope arrayScope;
+
+    public CompilationContext(Option option) {
+        this.option = option;
+        this.scheduler = new FunctionScheduler(option.backendThreads);
+        this.library = createLibrary();
+        this.stringOperators = StringType.builtinOperators();
+        this.stringScope = StringType.builtinScope(stringOperators);
+        this.arrayScope = ArrayType.builtinScope();
+    }
+
+    private static List<Entity> createLibrary() {
+        List<Entity> ret = new LinkedList<>();
+
+        // lib function
+        ret.add(new LibFunction(voidType, "print", "printf", new Type[]{stringType}).getEntity());
+        ret.add(new LibFunction(voidType, "println", "puts", new Type[]{stringType}).getEntity());
+        ret.add(new LibFunction(stringType, "getString", null).getEntity());
+        ret.add(new LibFunction(integerType, "getInt", null).getEntity());
+        ret.add(new LibFunction(stringType, "toString", new Type[]{integerType}).getEntity());
+        ret.add(new LibFunction(integerType, LIB_PREFIX + "printInt", LIB_PREFIX + "printInt", new Type[]{integerType}).getEntity());
+        ret.add(new LibFunction(integerType, LIB_PREFIX + "printlnInt", LIB_PREFIX + "printlnInt", new Type[]{integerType}).getEntity());
+        ret.add(new LibFunction(integerType, LIB_PREFIX + "malloc", "malloc", new Type[]{integerType}).getEntity());
+        // null
+        ret.add(new VariableEntity(null, nullType, "null", null));
+
+        return ret;
+    }
+
+    public Option option() {
+        return option;
+    }
+
+    public FunctionScheduler scheduler() {
+        return scheduler;
+    }
+
+    public List<Entity> library() {
+        return library;
+    }
+
+    // the library function of a string operator, null for unsupported operators
+    public FunctionEntity stringOperator(BinaryOp op) {
+        return stringOperators.get(op);
+    }
+
+    public Scope stringScope() {
+        return stringScope;
+    }
+
+    public Scope arrayScope() {
+        return arrayScope;
+    }
+}
@@ -0,0 +1,149 @@
+package com.mercy.compiler;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static java.lang.System.err;
+
+/**
+ * A resident compiler, which saves the start-up of the JVM, loading of ANTLR and warming up of the JIT for every
+ * compilation. Requests are compiled one by one, every request starts with default options and fresh compiler state.
+ *
+ * A request is one line, of fields separated by tab : the working directory of the client, then the arguments as
+ * on the command line. Relative paths in the arguments are resolved against the working directory.
+ * The response is the diagnostics of the compilation (what the compiler prints to stderr), then a last line
+ * "exit <status>". The argument "--shutdown" stops the server.
+ *
+ * Requests are read from
+ *      stdin                : for "--server -", responses go to stdout
+ *      a socket on loopback : for "--server <file>", one request per connection. The port and a random token are
+ *                             written to <file>, readable by the owner only. A request must start with the token field.
+ */
+public class CompileServer {
+    private static final int READ_TIMEOUT = 10000;    // ms, for a client that never finishes its request
+
+    private String serverFile;
+    private String token;
+    private boolean running = true;
+
+    public CompileServer(String serverFile) {
+        this.serverFile = serverFile;
+    }
+
+    public void run() throws IOException {
+        if (serverFile.equals("-")) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            PrintStream out = System.out;
+            String line;
+            while (running && (line = in.readLine()) != null) {
+                out.print(handle(line));
+                out.flush();
+            }
+            return;
+        }
+
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+        token = sb.toString();
+
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            writeServerFile(server.getLocalPort() + " " + token + "\n");
+            err.println("compile server is listening on port " + server.getLocalPort());
+            while (running) {
+                try (Socket socket = server.accept()) {
+                    socket.setSoTimeout(READ_TIMEOUT);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                    Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                    String line = in.readLine();
+                    if (line == null)
+                        continue;
+                    int split = line.indexOf('\t');
+                    if (split < 0 || !line.substring(0, split).equals(token))
+                        out.write("invalid token\nexit 1\n");
+                    else
+                        out.write(handle(line.substring(split + 1)));
+                    out.flush();
+                } catch (IOException e) {
+                    err.println("compile server : " + e.getMessage());
+                }
+            }
+        } finally {
+            Files.deleteIfExists(Paths.get(serverFile));
+        }
+    }
+
+    // the file is only readable by its owner, since the token allows to write any file the server can write
+    private void writeServerFile(String content) throws IOException {
+        Path path = Paths.get(serverFile);
+        Files.deleteIfExists(path);
+        try {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(path);
+        }
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // compile a request, return the response
+    private String handle(String request) {
+        String[] fields = request.split("\t");
+        String dir = fields[0];
+        String[] args = Arrays.copyOfRange(fields, 1, fields.length);
+
+        if (args.length == 1 && args[0].equals("--shutdown")) {
+            running = false;
+            return "exit 0\n";
+        }
+
+        ByteArrayOutputStream diagnostics = new ByteArrayOutputStream();
+        PrintStream stderr = System.err;
+        int status;
+        System.setErr(new PrintStream(diagnostics, true));
+        try {
+            Option option = new Option();
+            if (!Main.parseOption(args, option)) {
+                Main.printUsage(System.err);
+                status = 0;
+            } else if (option.serverFile != null) {
+                System.err.println("a request cannot start another server");
+                status = 1;
+            } else {
+                option.inFile = resolve(dir, option.inFile);
+                option.outFile = resolve(dir, option.outFile);
+                option.statsFile = resolve(dir, option.statsFile);
+                option.batchInput = resolve(dir, option.batchInput);
+                option.batchOutDir = resolve(dir, option.batchOutDir);
+                option.cacheDir = resolve(dir, option.cacheDir);
+                if (option.batchInput != null)
+                    status = new BatchCompiler(option).run(System.err);
+                else
+                    status = Main.compileFile(option);
+            }
+        } catch (Throwable e) {    // e.g. a bad number in arguments, or a stack overflow, must not stop the server
+            e.printStackTrace();
+            status = 1;
+        } finally {
+            System.err.flush();
+            System.setErr(stderr);
+        }
+        return diagnostics.toString() + "exit " + status + "\n";
+    }
+
+    private String resolve(String dir, String path) {
+        if (path == null)
+            return null;
+        return Paths.get(dir).resolve(path).toString();
+    }
+}
@@ -2,12 +2,17 @@ package com.mercy.compiler.Entity;
 
 import com.mercy.compiler.AST.*;
 import com.mercy.compiler.BackEnd.BasicBlock;
+import com.mercy.compiler.INS.Bin;
+import com.mercy.compiler.INS.CJump;
+import com.mercy.compiler.INS.Cmp;
 import com.mercy.compiler.INS.Instruction;
 import com.mercy.compiler.INS.Label;
+import com.mercy.compiler.INS.Move;
+import com.mercy.compiler.INS.Operand.Address;
+import com.mercy.compiler.INS.Operand.Operand;
 import com.mercy.compiler.INS.Operand.Reference;
 import com.mercy.compiler.INS.Operand.Register;
 import com.mercy.compiler.IR.IR;
-import com.mercy.compiler.Option;
 import com.mercy.compiler.Type.FunctionType;
 import com.mercy.compiler.Type.Type;
 
@@ -57,20 +62,16 @@ public class FunctionEntity extends Entity {
         return thisPointer;
     }
 
-    // check whether can be inlined
-    private Map<FunctionEntity, Boolean> visited;
+    // check whether can be inlined, a recursive function is on a cycle of the call graph
     private int stmtSize;
-    public void checkInlinable() {
+    public void checkInlinable(boolean isRecursive) {
         if (name.equals("main")) {
             isInlined = false;
         } else {
-            visited = new Hashtable<>();
-            isInlined = !findLoop(this, this);
+            isInlined = !isRecursive;
             stmtSize = stmtSize(body);
             if (stmtSize > 8)
                 isInlined = false;
-            if (isInlined && Option.enableFunctionInline && Option.printInlineInfo)
-                System.err.println(name() + " is inlined");
         }
     }
 
@@ -104,19 +105,6 @@ public class FunctionEntity extends Entity {
         return ct;
     }
 
-    private boolean findLoop(FunctionEntity called, FunctionEntity root) {
-        if (visited.containsKey(called)) {
-            return called == root;
-        }
-
-        visited.put(called, true);
-        for (FunctionEntity func : called.calls()) {
-            if (findLoop(func, root))
-                return true;
-        }
-        return false;
-    }
-
     // for locating local variabes
     public List<VariableEntity> allLocalVariables() {
         return scope.allLocalVariables();
@@ -224,6 +212,50 @@ public class FunctionEntity extends Entity {
         this.bbs = bbs;
     }
 
+    // number the instructions from 0 in the order of bbs, returns the number of instructions
+    public int numberInstructions() {
+        int index = 0;
+        for (BasicBlock basicBlock : bbs) {
+            for (Instruction ins : basicBlock.ins())
+                ins.setIndex(index++);
+        }
+        return index;
+    }
+
+    // an Address can be shared by several instructions (e.g. load and store of the same element),
+    // but the allocators and SSAForm rewrite it in place, so give every instruction its own copy
+    public void unshareAddress() {
+        Set<Operand> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (BasicBlock basicBlock : bbs) {
+            for (Instruction ins : basicBlock.ins()) {
+                if (ins instanceof Move) {
+                    Move move = (Move) ins;
+                    move.setDest(unshare(move.dest(), seen));
+                    move.setSrc(unshare(move.src(), seen));
+                } else if (ins instanceof Bin) {
+                    Bin bin = (Bin) ins;
+                    bin.setLeft(unshare(bin.left(), seen));
+                    bin.setRight(unshare(bin.right(), seen));
+                } else if (ins instanceof Cmp) {
+                    ((Cmp) ins).setLeft(unshare(((Cmp) ins).left(), seen));
+                } else if (ins instanceof CJump && ((CJump) ins).left() != null) {
+                    ((CJump) ins).setLeft(unshare(((CJump) ins).left(), seen));
+                }
+            }
+        }
+    }
+
+    private static Operand unshare(Operand operand, Set<Operand> seen) {
+        if (!(operand instanceof Address))
+            return operand;
+        if (seen.add(operand))
+            return operand;
+        Address addr = (Address) operand;
+        Address copy = new Address(addr.base(), addr.index(), addr.mul(), addr.add());
+        seen.add(copy);
+        return copy;
+    }
+
     public int frameSize() {
         return frameSize;
     }
@@ -2,6 +2,7 @@ package com.mercy.compiler.FrontEnd;
 
 import com.mercy.compiler.AST.DefinitionNode;
 import com.mercy.compiler.AST.Location;
+import com.mercy.compiler.CompilationContext;
 import com.mercy.compiler.Entity.*;
 import com.mercy.compiler.Utility.SemanticError;
 
@@ -11,6 +12,7 @@ import java.util.List;
  * Created by mercy on 17-3-18.
  */
 public class AST {
+    private CompilationContext context;
     private Scope scope;
     private List<DefinitionNode> definitionNodes;
     private List<ClassEntity> classEntities;
@@ -27,8 +29,10 @@ public class AST {
         this.scope = new Scope(true);
     }
 
-    public void loadLibrary(List<Entity> entities) {
-        for (Entity entity : entities) {
+    // load the library functions of the compilation, the passes after it get the compilation from the AST
+    public void loadLibrary(CompilationContext context) {
+        this.context = context;
+        for (Entity entity : context.library()) {
             scope.insert(entity);
         }
     }
@@ -37,6 +41,10 @@ public class AST {
      * semantic check
      */
     public void resolveSymbol() {
+        // long chains of operators first, every pass after it recurses into expressions
+        ExpressionBalancer balancer = new ExpressionBalancer();
+        balancer.visitDefinitions(definitionNodes);
+
         // put function entity and class entity into scope
         for (ClassEntity entity : classEntities) {
             scope.insert(entity);
@@ -51,7 +59,7 @@ public class AST {
     }
 
     public void checkType() {
-        TypeChecker checker = new TypeChecker(scope);
+        TypeChecker checker = new TypeChecker(scope, context);
         checker.visitDefinitions(definitionNodes);
 
         // ckeck main function
@@ -76,6 +84,10 @@ public class AST {
         analyzer.visitDefinitions(definitionNodes);
     }
 
+    public CompilationContext context() {
+        return context;
+    }
+
     public Scope scope() {
         return scope;
     }
@@ -11,6 +11,7 @@ import com.mercy.compiler.Type.*;
 import com.mercy.compiler.Utility.InternalError;
 import com.mercy.compiler.Utility.SemanticError;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.ParseTreeProperty;
 
 import java.util.LinkedList;
@@ -422,6 +423,18 @@ public class ASTBuilder extends MalicBaseListener {
     }
 
 
+    // drop the parse tree below the children of 'ctx', they are not used once the node of 'ctx' is built
+    void release(ParserRuleContext ctx) {
+        if (ctx.children == null)
+            return;
+        for (ParseTree child : ctx.children) {
+            if (child instanceof ParserRuleContext) {
+                map.removeFrom(child);
+                ((ParserRuleContext) child).children = null;
+            }
+        }
+    }
+
     private StmtNode getStmt(MalicParser.StatementContext ctx) {
         if (ctx == null)
             return null;
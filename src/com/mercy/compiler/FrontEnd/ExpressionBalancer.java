@@ -0,0 +1,147 @@
+package com.mercy.compiler.FrontEnd;
+
+import com.mercy.compiler.AST.*;
+import com.mercy.compiler.AST.BinaryOpNode.BinaryOp;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Rebalances long chains of an associative operator, e.g. a + b + c + ... of a generated source.
+ * The parser builds such a chain as a left-leaning tree as deep as the chain is long, which overflows the stack
+ * of every recursive pass after it. A chain is rebuilt into a balanced tree of the same operands in the same
+ * order, so operands are still evaluated from left to right, and the depth is only the log of its length.
+ *
+ * Chains are
+ *      + and -     : a - b is a + (-b), the signs are kept by choosing + or - at every node
+ *      *, &, |, ^  : associative in the wrapping arithmetic of int
+ *      &&, ||      : with the same short circuit
+ * Short chains are left as they are, so the output of ordinary programs does not change.
+ * Chains of the other operators, e.g. a / b / c, cannot be balanced. They are walked by a loop, see visitChain.
+ */
+public class ExpressionBalancer extends Visitor {
+    private static final int MIN_BALANCED_CHAIN = 256;   // operands
+
+    private List<ExprNode> operands = new ArrayList<>();
+    private List<Boolean> negated = new ArrayList<>();
+
+    @Override
+    public Void visit(BinaryOpNode node) {
+        if (isBalanced(node.operator()))
+            balance(node);
+        else
+            visitChain(node);
+        return null;
+    }
+
+    @Override
+    public Void visit(LogicalAndNode node) {
+        balance(node);
+        return null;
+    }
+
+    @Override
+    public Void visit(LogicalOrNode node) {
+        balance(node);
+        return null;
+    }
+
+    private static boolean isBalanced(BinaryOp op) {
+        switch (op) {
+            case ADD: case SUB: case MUL: case BIT_AND: case BIT_OR: case BIT_XOR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // like Visitor.visit(BinaryOpNode), but the chain stops at an operator to balance, which starts a chain itself
+    private void visitChain(BinaryOpNode top) {
+        LinkedList<BinaryOpNode> chain = new LinkedList<>();
+        ExprNode expr = top;
+        while (expr.getClass() == BinaryOpNode.class && !isBalanced(((BinaryOpNode) expr).operator())) {
+            chain.addFirst((BinaryOpNode) expr);
+            expr = ((BinaryOpNode) expr).left();
+        }
+        visitExpr(expr);
+        for (BinaryOpNode node : chain)
+            visitExpr(node.right());
+    }
+
+    private void balance(BinaryOpNode node) {
+        flatten(node);
+        List<ExprNode> chain = new ArrayList<>(operands);
+        if (operands.size() >= MIN_BALANCED_CHAIN) {
+            BinaryOpNode root = (BinaryOpNode) build(node, 0, operands.size(), false);
+            node.setOperator(root.operator());
+            node.setLeft(root.left());
+            node.setRight(root.right());
+        }
+        operands.clear();
+        negated.clear();
+
+        // operands are not in the chain, but may be chains of other operators
+        for (ExprNode operand : chain)
+            visitExpr(operand);
+    }
+
+    // collect the operands of the chain from left to right, by an explicit stack instead of recursion
+    private void flatten(BinaryOpNode top) {
+        LinkedList<ExprNode> stack = new LinkedList<>();
+        LinkedList<Boolean> signs = new LinkedList<>();
+        stack.push(top);
+        signs.push(false);
+        while (!stack.isEmpty()) {
+            ExprNode expr = stack.pop();
+            boolean negative = signs.pop();
+            if (inChain(expr, top)) {
+                BinaryOpNode node = (BinaryOpNode) expr;
+                stack.push(node.right());
+                signs.push(negative ^ (node.operator() == BinaryOp.SUB));
+                stack.push(node.left());
+                signs.push(negative);
+            } else {
+                operands.add(expr);
+                negated.add(negative);
+            }
+        }
+    }
+
+    private boolean inChain(ExprNode expr, BinaryOpNode top) {
+        if (expr.getClass() != top.getClass())
+            return false;
+        BinaryOp op = ((BinaryOpNode) expr).operator();
+        if (isAdditive(top.operator()))
+            return isAdditive(op);
+        return op == top.operator();
+    }
+
+    private boolean isAdditive(BinaryOp op) {
+        return op == BinaryOp.ADD || op == BinaryOp.SUB;
+    }
+
+    /*
+     * the balanced tree of operands [lo, hi), with the signs flipped if 'flip'.
+     * the first operand must be positive after flipping, the sign of the operand at the middle decides
+     * whether the right half is added or subtracted.
+     */
+    private ExprNode build(BinaryOpNode top, int lo, int hi, boolean flip) {
+        if (hi - lo == 1)
+            return operands.get(lo);
+
+        int mid = (lo + hi) >>> 1;
+        boolean subtract = negated.get(mid) != flip;
+        ExprNode left = build(top, lo, mid, flip);
+        ExprNode right = build(top, mid, hi, flip ^ subtract);
+
+        if (top instanceof LogicalAndNode)
+            return new LogicalAndNode(left, right);
+        else if (top instanceof LogicalOrNode)
+            return new LogicalOrNode(left, right);
+        else if (isAdditive(top.operator()))
+            return new BinaryOpNode(left, subtract ? BinaryOp.SUB : BinaryOp.ADD, right);
+        else
+            return new BinaryOpNode(left, top.operator(), right);
+    }
+}
@@ -0,0 +1,46 @@
+package com.mercy.compiler.FrontEnd;
+
+import org.antlr.v4.runtime.tree.*;
+
+import java.util.LinkedList;
+
+/**
+ * ParseTreeWalker by an explicit stack, since the recursive one overflows on the deep trees of long expressions.
+ * The listener gets the same events in the same order.
+ */
+public class IterativeParseTreeWalker extends ParseTreeWalker {
+    @Override
+    public void walk(ParseTreeListener listener, ParseTree root) {
+        LinkedList<ParseTree> nodes = new LinkedList<>();
+        LinkedList<Integer> nextChild = new LinkedList<>();
+
+        nodes.push(root);
+        nextChild.push(-1);     // -1 : not entered yet
+        while (!nodes.isEmpty()) {
+            ParseTree node = nodes.peek();
+            int index = nextChild.pop();
+
+            if (node instanceof ErrorNode) {
+                listener.visitErrorNode((ErrorNode) node);
+                nodes.pop();
+            } else if (node instanceof TerminalNode) {
+                listener.visitTerminal((TerminalNode) node);
+                nodes.pop();
+            } else {
+                RuleNode rule = (RuleNode) node;
+                if (index < 0) {
+                    enterRule(listener, rule);
+                    index = 0;
+                }
+                if (index < rule.getChildCount()) {
+                    nextChild.push(index + 1);
+                    nodes.push(rule.getChild(index));
+                    nextChild.push(-1);
+                } else {
+                    exitRule(listener, rule);
+                    nodes.pop();
+                }
+            }
+        }
+    }
+}
@@ -18,6 +18,7 @@ import static java.lang.System.err;
  * Created by mercy on 17-5-22.
  */
 public class OutputIrrelevantMaker extends com.mercy.compiler.FrontEnd.Visitor {
+    private Option option;
     private Scope globalScope;
     private Set<Entity> globalVariables = new HashSet<>();
 
@@ -31,6 +32,7 @@ public class OutputIrrelevantMaker extends com.mercy.compiler.FrontEnd.Visitor {
     private FunctionEntity     mainFunction;
 
     public OutputIrrelevantMaker(AST ast) {
+        option = ast.context().option();
         globalScope = ast.scope();
         for (Entity entity : ast.scope().entities().values()) {
             if (entity instanceof VariableEntity)
@@ -65,15 +67,20 @@ public class OutputIrrelevantMaker extends com.mercy.compiler.FrontEnd.Visitor {
 
     private Set<DependenceEdge> visited = new HashSet<>();
     private void propaOutputIrrelevant(Entity entity) {
-        if (entity.outputIrrelevant())
-            return;
-
-        for (Entity rely : entity.dependence()) {
-            DependenceEdge edge = new DependenceEdge(entity, rely);
-            if (!visited.contains(edge)) {
-                visited.add(edge);
-                rely.setOutputIrrelevant(false);
-                propaOutputIrrelevant(rely);
+        Stack<Entity> stack = new Stack<>();    // chains of dependence can be long, e.g. of calls
+        stack.push(entity);
+        while (!stack.isEmpty()) {
+            Entity now = stack.pop();
+            if (now.outputIrrelevant())
+                continue;
+
+            for (Entity rely : now.dependence()) {
+                DependenceEdge edge = new DependenceEdge(now, rely);
+                if (!visited.contains(edge)) {
+                    visited.add(edge);
+                    rely.setOutputIrrelevant(false);
+                    stack.push(rely);
+                }
             }
         }
     }
@@ -113,7 +120,7 @@ public class OutputIrrelevantMaker extends com.mercy.compiler.FrontEnd.Visitor {
             visitDefinition(definitionNode);
         visited.clear();
 
-        if (Option.printIrrelevantMarkInfo) {
+        if (option.printIrrelevantMarkInfo) {
             // print dependence edge
             err.println("========== EDGE ==========");
             for (Entity entity : allEntity) {
@@ -0,0 +1,122 @@
+package com.mercy.compiler.FrontEnd;
+
+import com.mercy.compiler.Parser.MalicLexer;
+import com.mercy.compiler.Parser.MalicParser;
+import com.mercy.compiler.Utility.SemanticError;
+import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.ParseTreeListener;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+/**
+ * Parses in SLL prediction mode first, which is much faster and enough for almost every input of the grammar.
+ * SLL bails out at the first error, then the input is parsed again in full LL mode, which reports syntax errors
+ * by ParserErrorListener. An input is rejected only if LL fails, so the result is the same as LL alone.
+ *
+ * parseAST builds the AST while parsing : the ASTBuilder gets every rule as soon as the rule is parsed, and the
+ * parse tree below it is released. Only the rules being parsed and their direct children are kept,
+ * instead of the whole parse tree.
+ */
+public class TwoStageParser {
+    private boolean fallback = false;
+    private ASTBuilder builder;
+    private BuildingListener listener;
+
+    public ParseTree parse(ANTLRInputStream input) {
+        return parse(input, false);
+    }
+
+    public AST parseAST(ANTLRInputStream input) {
+        parse(input, true);
+        if (listener.error != null)     // reported after syntax errors, as when the AST is built after parsing
+            throw listener.error;
+        return builder.getAST();
+    }
+
+    private ParseTree parse(ANTLRInputStream input, boolean buildAST) {
+        MalicLexer lexer = new MalicLexer(input);
+        CommonTokenStream tokens = new CommonTokenStream(lexer);
+        MalicParser parser = new MalicParser(tokens);
+
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        if (buildAST)
+            listen(parser);
+        try {
+            return parser.compilationUnit();
+        } catch (ParseCancellationException e) {
+            fallback = true;
+        }
+
+        parser.reset();     // rewinds the tokens, which are lexed only once
+        parser.removeParseListeners();
+        parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+        if (buildAST)
+            listen(parser);
+        parser.addErrorListener(new ParserErrorListener());
+        parser.setErrorHandler(new DefaultErrorStrategy());
+        return parser.compilationUnit();
+    }
+
+    // a new builder for every stage, the nodes of a failed stage are discarded
+    private void listen(MalicParser parser) {
+        builder = new ASTBuilder();
+        listener = new BuildingListener(builder);
+        parser.addParseListener(listener);
+        parser.addErrorListener(listener);      // before ParserErrorListener, which throws
+    }
+
+    // prediction mode of the last parse
+    public String mode() {
+        return fallback ? "LL" : "SLL";
+    }
+
+    /*
+     * Rules are exited when the parser unwinds from a syntax error too, those rules are incomplete.
+     * BailErrorStrategy marks all rules being parsed with the exception, other syntax errors are reported
+     * to the error listeners first.
+     */
+    private static class BuildingListener extends BaseErrorListener implements ParseTreeListener {
+        private ASTBuilder builder;
+        private boolean failed = false;
+        private SemanticError error;    // found by the builder
+
+        BuildingListener(ASTBuilder builder) {
+            this.builder = builder;
+        }
+
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object symbol, int row, int column, String message, RecognitionException e) {
+            failed = true;
+        }
+
+        @Override
+        public void exitEveryRule(ParserRuleContext ctx) {
+            if (failed || ctx.exception != null)
+                return;
+            try {
+                ctx.exitRule(builder);
+                builder.release(ctx);
+            } catch (SemanticError e) {
+                error = e;
+                failed = true;
+            }
+        }
+
+        @Override
+        public void enterEveryRule(ParserRuleContext ctx) {
+        }
+
+        @Override
+        public void visitTerminal(TerminalNode node) {
+        }
+
+        @Override
+        public void visitErrorNode(ErrorNode node) {
+        }
+    }
+}
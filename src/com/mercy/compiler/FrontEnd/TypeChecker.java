@@ -1,6 +1,7 @@
 package com.mercy.compiler.FrontEnd;
 
 import com.mercy.compiler.AST.*;
+import com.mercy.compiler.CompilationContext;
 import com.mercy.compiler.Entity.*;
 import com.mercy.compiler.Type.*;
 import com.mercy.compiler.Utility.InternalError;
@@ -22,9 +23,12 @@ public class TypeChecker extends Visitor {
     private FunctionEntity currentFunction = null;
     private Scope scope;
     private FunctionEntity mallocFunc;
+    private Scope arrayScope, stringScope;  // builtin members
 
-    public TypeChecker (Scope scope) {
+    public TypeChecker (Scope scope, CompilationContext context) {
         this.scope = scope;
+        this.arrayScope = context.arrayScope();
+        this.stringScope = context.stringScope();
         mallocFunc = (FunctionEntity) scope.lookupCurrentLevel(LIB_PREFIX + "malloc");
     }
 
@@ -191,10 +195,7 @@ public class TypeChecker extends Visitor {
     }
 
     @Override
-    public Void visit(BinaryOpNode node) {
-        visitExpr(node.left());
-        visitExpr(node.right());
-
+    protected void visitOperator(BinaryOpNode node) {
         Type ltype = node.left().type(), rtype = node.right().type();
         switch(node.operator()) {
             case MUL : case DIV :case MOD : case SUB:
@@ -233,8 +234,6 @@ public class TypeChecker extends Visitor {
             default:
                 throw new InternalError("Invalid operator " + node.operator());
         }
-
-        return null;
     }
 
     @Override
@@ -342,9 +341,9 @@ public class TypeChecker extends Visitor {
         } else if (type.isArray() || type.isString()){
             Entity member;
             if (type.isArray())
-                member = ArrayType.scope().lookupCurrentLevel(node.member());
+                member = arrayScope.lookupCurrentLevel(node.member());
             else
-                member = StringType.scope().lookupCurrentLevel(node.member());
+                member = stringScope.lookupCurrentLevel(node.member());
 
             if (member == null)
                 throw new SemanticError(node.location(), "Cannot resolve member : "
@@ -135,13 +135,22 @@ abstract public class Visitor implements ASTVisitor<Void, Void> {
         return null;
     }
 
+    // a chain like a / b / c is walked by a loop, see BinaryOpNode.leftChain
     @Override
     public Void visit(BinaryOpNode n) {
-        visitExpr(n.left());
-        visitExpr(n.right());
+        List<BinaryOpNode> chain = n.leftChain();
+        visitExpr(chain.get(0).left());
+        for (BinaryOpNode node : chain) {
+            visitExpr(node.right());
+            visitOperator(node);
+        }
         return null;
     }
 
+    // a binary operator after its operands are visited
+    protected void visitOperator(BinaryOpNode node) {
+    }
+
     @Override
     public Void visit(LogicalOrNode node) {
         visitExpr(node.left());
@@ -54,8 +54,6 @@ abstract public class Bin extends Instruction {
         }
         use.addAll(left.getAllRef());
         use.addAll(right.getAllRef());
-        allref.addAll(use);
-        allref.addAll(def);
     }
 
     abstract public String name();
@@ -6,7 +6,7 @@ import com.mercy.compiler.INS.Operand.Operand;
 import com.mercy.compiler.INS.Operand.Reference;
 import com.mercy.compiler.Utility.InternalError;
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
@@ -60,7 +60,7 @@ public class CJump extends Instruction {
     @Override
     public void replaceUse(Reference from, Reference to) {
         if (bringOut != null && bringOut.contains(from)) {
-            Set<Reference> newBringOut = new HashSet<>();
+            Set<Reference> newBringOut = new LinkedHashSet<>();
             for (Reference reference : bringOut) {
                 newBringOut.add((Reference) reference.replace(from, to));
             }
@@ -89,7 +89,6 @@ public class CJump extends Instruction {
         }
         if (bringOut != null)
             use.addAll(bringOut);
-        allref.addAll(use);
     }
 
     // getter
@@ -124,6 +123,9 @@ public class CJump extends Instruction {
     public void setLeft(Operand left) {
         this.left = left;
     }
+    public void setRight(Operand right) {
+        this.right = right;
+    }
 
     public String name() {
         switch (type) {
@@ -157,9 +159,9 @@ public class CJump extends Instruction {
         switch (raw) {
             case "je" : return "je";
             case "jne": return "jne";
-            case "jg":  return "jlt";
+            case "jg":  return "jl";
             case "jge": return "jle";
-            case "jl":  return "jgt";
+            case "jl":  return "jg";
             case "jle": return "jge";
             default:
                 throw new InternalError("invalid compare operator");
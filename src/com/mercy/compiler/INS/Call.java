@@ -5,7 +5,7 @@ import com.mercy.compiler.Entity.FunctionEntity;
 import com.mercy.compiler.INS.Operand.Operand;
 import com.mercy.compiler.INS.Operand.Reference;
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -66,11 +66,13 @@ public class Call extends Instruction {
         }
         operands = newOperands;
 
-        Set<Reference> newParaReg = new HashSet<>();
-        for (Reference reference : usedParameterRegister) {
-            newParaReg.add((Reference) reference.replace(from, to));
+        if (usedParameterRegister != null) {    // set by the allocator
+            Set<Reference> newParaReg = new LinkedHashSet<>();
+            for (Reference reference : usedParameterRegister) {
+                newParaReg.add((Reference) reference.replace(from, to));
+            }
+            usedParameterRegister = newParaReg;
         }
-        usedParameterRegister = newParaReg;
     }
 
     @Override
@@ -92,8 +94,6 @@ public class Call extends Instruction {
             for (Reference parareg : usedParameterRegister) {
                 use.addAll(parareg.getAllRef());
             }
-        allref.addAll(use);
-        allref.addAll(def);
     }
 
     @Override
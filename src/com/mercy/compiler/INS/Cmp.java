@@ -33,6 +33,9 @@ public class Cmp extends Instruction {
     public void setLeft(Operand left) {
         this.left = left;
     }
+    public void setRight(Operand right) {
+        this.right = right;
+    }
 
     @Override
     public void replaceUse(Reference from, Reference to) {
@@ -60,8 +63,6 @@ public class Cmp extends Instruction {
         }
         use.addAll(left.getAllRef());
         use.addAll(right.getAllRef());
-        allref.addAll(use);
-        allref.addAll(def);
     }
 
     @Override
@@ -2,15 +2,31 @@ package com.mercy.compiler.INS;
 
 import com.mercy.compiler.BackEnd.Translator;
 import com.mercy.compiler.INS.Operand.Operand;
+import com.mercy.compiler.INS.Operand.Reference;
 
 /**
  * Created by mercy on 17-4-25.
  */
 public class Div extends Bin {
+    private Reference highPart;     // rdx after register allocation, which idiv reads and writes
+
     public Div(Operand left, Operand right) {
         super(left, right);
     }
 
+    public void setHighPart(Reference highPart) {
+        this.highPart = highPart;
+    }
+
+    @Override
+    public void calcDefAndUse() {
+        super.calcDefAndUse();
+        if (highPart != null) {
+            use.add(highPart);
+            def.add(highPart);
+        }
+    }
+
     @Override
     public String name() {
         return "div";
@@ -3,25 +3,19 @@ package com.mercy.compiler.INS;
 import com.mercy.compiler.BackEnd.Translator;
 import com.mercy.compiler.INS.Operand.Reference;
 
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
  * Created by mercy on 17-4-25.
  */
 abstract public class Instruction {
-    protected List<Instruction> predessor = new LinkedList<>();
-    protected List<Instruction> sucessor = new LinkedList<>();
-
-    protected Set<Reference> in = new HashSet<>();
-    protected Set<Reference> out = new HashSet<>();
-
+    // cached by refreshDefAndUse, liveness is not kept per instruction, see LivenessAnalyzer
     protected Set<Reference> use;
     protected Set<Reference> def;
-    protected Set<Reference> allref;
-    protected Set<Reference> live;
+
+    protected int index = -1;   // program point, see FunctionEntity.numberInstructions
 
     abstract public void replaceUse(Reference from, Reference to);
     abstract public void replaceDef(Reference from, Reference to);
@@ -33,83 +27,64 @@ abstract public class Instruction {
     /*
      * getter and setter
      */
-    public List<Instruction> predessor() {
-        return predessor;
+    public int index() {
+        return index;
     }
-
-    public List<Instruction> sucessor() {
-        return sucessor;
-    }
-
-    public Set<Reference> in() {
-        return in;
-    }
-
-    public Set<Reference> out() {
-        return out;
+    public void setIndex(int index) {
+        this.index = index;
     }
 
     public Set<Reference> use() {
-        if (use == null) {
-            initDefAndUse();
-            this.calcDefAndUse();
-        }
+        if (use == null)
+            refreshDefAndUse();
         return use;
     }
 
     public Set<Reference> def() {
-        if (def == null) {
-            initDefAndUse();
-            this.calcDefAndUse();
-        }
+        if (def == null)
+            refreshDefAndUse();
         return def;
     }
 
     public void initDefAndUse() {
-        use = new HashSet<>();
-        def = new HashSet<>();
-        allref = new HashSet<>();
+        use = new LinkedHashSet<>();
+        def = new LinkedHashSet<>();
     }
 
-    public Set<Reference> allref() {
-        if (allref == null) {
-            initDefAndUse();
-            this.calcDefAndUse();
-        }
-        return allref;
+    // calc def and use again after the operands are changed
+    public void refreshDefAndUse() {
+        initDefAndUse();
+        calcDefAndUse();
+        use = compact(use);
+        def = compact(def);
     }
 
-    abstract public void calcDefAndUse();
-
-    public void setIn(Set<Reference> in) {
-        this.in = in;
+    // most instructions have at most one def and one use, they do not need a hash table
+    private Set<Reference> compact(Set<Reference> set) {
+        switch (set.size()) {
+            case 0:  return Collections.emptySet();
+            case 1:  return Collections.singleton(set.iterator().next());
+            default: return set;
+        }
     }
 
-    public void setOut(Set<Reference> out) {
-        this.out = out;
+    // use and def, in this order
+    public Set<Reference> allref() {
+        Set<Reference> allref = new LinkedHashSet<>(use());
+        allref.addAll(def());
+        return allref;
     }
 
-    public Set<Reference> live() {
-        if (live == null) {
-            live = new HashSet<>();
-            for (Reference ref : in) {
-                if (ref.alias != null)
-                    live.add(ref.alias);
-                else
-                    live.add(ref);
-            }
-            for (Reference ref : out) {
-                if (ref.alias != null)
-                    live.add(ref.alias);
-                else
-                    live.add(ref);
-            }
-        }
-        return live;
-    }
+    abstract public void calcDefAndUse();
 
-    public void setLive(Set<Reference> live) {
-        this.live = live;
+    // calc all references without touching the cached def and use (for statistics)
+    public Set<Reference> collectAllRef() {
+        Set<Reference> backupUse = use, backupDef = def;
+        initDefAndUse();
+        calcDefAndUse();
+        Set<Reference> ret = allref();
+        use = backupUse; def = backupDef;
+        return ret;
     }
 
     abstract public void accept(Translator translator);
@@ -4,7 +4,7 @@ import com.mercy.compiler.BackEnd.BasicBlock;
 import com.mercy.compiler.BackEnd.Translator;
 import com.mercy.compiler.INS.Operand.Reference;
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
@@ -13,7 +13,7 @@ import java.util.Set;
 public class Label extends Instruction {
     private String name;
     private BasicBlock basicBlock;
-    private Set<Reference> bringUse = new HashSet<>();
+    private Set<Reference> bringUse = new LinkedHashSet<>();
 
     public Label(String name) {
         this.name = name;
@@ -49,8 +49,6 @@ public class Lea extends Instruction {
         if (dest instanceof Reference)
             def.addAll(dest.getAllRef());
         use.addAll(addr.getAllRef());
-        allref.addAll(use);
-        allref.addAll(def);
     }
 
     @Override
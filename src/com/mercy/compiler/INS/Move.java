@@ -66,8 +66,6 @@ public class Move extends Instruction {
             use.addAll(dest.getAllRef());
             use.addAll(src.getAllRef());
         }
-        allref.addAll(use);
-        allref.addAll(def);
     }
 
     @Override
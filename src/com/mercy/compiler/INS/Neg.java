@@ -45,8 +45,6 @@ public class Neg extends Instruction {
             def.addAll(operand().getAllRef());
         }
         use.addAll(operand().getAllRef());
-        allref.addAll(use);
-        allref.addAll(def);
     }
 
     @Override
@@ -2,7 +2,7 @@ package com.mercy.compiler.INS.Operand;
 
 import com.mercy.compiler.Utility.InternalError;
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 /**
@@ -35,7 +35,7 @@ public class Address extends Operand {
 
     @Override
     public Set<Reference> getAllRef() {
-        Set<Reference> ret = new HashSet<>();
+        Set<Reference> ret = new LinkedHashSet<>();
         if (base != null)
             ret.addAll(base.getAllRef());
         if (index != null) {
@@ -4,7 +4,7 @@ import com.mercy.compiler.Entity.Entity;
 import com.mercy.compiler.INS.Move;
 import com.mercy.compiler.Utility.InternalError;
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import static com.mercy.compiler.BackEnd.Translator.GLOBAL_PREFIX;
@@ -27,12 +27,14 @@ public class Reference extends Operand {
     // for naive allocator
     private int refTimes;
 
+    // dense index in a function, for liveness analysis
+    public int index = -1;
+
     // for global allocator, public for convenient
-    public Set<Reference> adjList = new HashSet<>();
     public int degree;
     public Reference alias;
     public Register color;
-    public Set<Move> moveList = new HashSet<>();
+    public Set<Move> moveList = new LinkedHashSet<>();
     public boolean isPrecolored;
     public boolean isSpilled;
 
@@ -59,8 +61,7 @@ public class Reference extends Operand {
     // reset for a new iteration in global allocation
     public void reset() {
         refTimes = 0;
-        moveList = new HashSet<>();
-        adjList = new HashSet<>();
+        moveList = new LinkedHashSet<>();
         if (!isPrecolored) {
             color = null;
             degree = 0;
@@ -152,7 +153,7 @@ public class Reference extends Operand {
 
     @Override
     public Set<Reference> getAllRef() {
-        Set<Reference> ret = new HashSet<>();
+        Set<Reference> ret = new LinkedHashSet<>();
         if (this.type != GLOBAL && this.type != CANNOT_COLOR && this.type != SPECIAL)
             ret.add(this);
         return ret;
@@ -0,0 +1,64 @@
+package com.mercy.compiler.INS;
+
+import com.mercy.compiler.BackEnd.BasicBlock;
+import com.mercy.compiler.BackEnd.Translator;
+import com.mercy.compiler.INS.Operand.Operand;
+import com.mercy.compiler.INS.Operand.Reference;
+import com.mercy.compiler.Utility.InternalError;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Phi function of SSA form, dest gets args.get(pre) when the control comes from the predecessor pre.
+ * Phi functions are at the beginning of a block, just after its label. They only exist between
+ * SSAForm.construct and SSAForm.destruct, so they are never translated.
+ * Arguments are used at the end of the predecessors, see LivenessAnalyzer.
+ */
+public class Phi extends Instruction {
+    private Reference dest;
+    private Map<BasicBlock, Operand> args = new LinkedHashMap<>();
+
+    public Phi(Reference dest) {
+        this.dest = dest;
+    }
+
+    public Reference dest() {
+        return dest;
+    }
+
+    public Map<BasicBlock, Operand> args() {
+        return args;
+    }
+
+    @Override
+    public void replaceUse(Reference from, Reference to) {
+        for (Map.Entry<BasicBlock, Operand> entry : args.entrySet())
+            entry.setValue(entry.getValue().replace(from, to));
+    }
+
+    @Override
+    public void replaceDef(Reference from, Reference to) {
+        dest = (Reference) dest.replace(from, to);
+    }
+
+    @Override
+    public void calcDefAndUse() {
+        def.addAll(dest.getAllRef());
+        for (Operand arg : args.values())
+            use.addAll(arg.getAllRef());
+    }
+
+    @Override
+    public void accept(Translator translator) {
+        throw new InternalError("phi of " + dest + " is not destructed");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("phi " + dest);
+        for (Map.Entry<BasicBlock, Operand> entry : args.entrySet())
+            sb.append(", ").append(entry.getKey()).append(": ").append(entry.getValue());
+        return sb.toString();
+    }
+}
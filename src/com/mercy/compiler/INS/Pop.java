@@ -38,7 +38,6 @@ public class Pop extends Instruction {
     @Override
     public void calcDefAndUse() {
         def.addAll(operand().getAllRef());
-        allref.addAll(use);
     }
 
     @Override
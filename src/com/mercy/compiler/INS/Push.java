@@ -37,7 +37,6 @@ public class Push extends Instruction {
     @Override
     public void calcDefAndUse() {
         use.addAll(operand().getAllRef());
-        allref.addAll(use);
     }
 
     @Override
@@ -16,6 +16,9 @@ public class Return extends Instruction {
     public Operand ret() {
         return ret;
     }
+    public void setRet(Operand ret) {
+        this.ret = ret;
+    }
 
     @Override
     public void replaceUse(Reference from, Reference to) {
@@ -29,13 +32,13 @@ public class Return extends Instruction {
 
     @Override
     public void replaceAll(Reference from, Reference to) {
+        replaceUse(from, to);
     }
 
     @Override
     public void calcDefAndUse() {
         if (ret != null) {
             use.addAll(ret.getAllRef());
-            allref.addAll(use);
         }
     }
 
@@ -1,138 +1,175 @@
 package com.mercy.compiler;
 
 import com.mercy.compiler.BackEnd.*;
-import com.mercy.compiler.Entity.Entity;
 import com.mercy.compiler.Entity.FunctionEntity;
-import com.mercy.compiler.Entity.VariableEntity;
 import com.mercy.compiler.FrontEnd.AST;
 import com.mercy.compiler.FrontEnd.ASTBuilder;
-import com.mercy.compiler.FrontEnd.ParserErrorListener;
+import com.mercy.compiler.FrontEnd.IterativeParseTreeWalker;
+import com.mercy.compiler.FrontEnd.TwoStageParser;
 import com.mercy.compiler.INS.Instruction;
-import com.mercy.compiler.Parser.MalicLexer;
-import com.mercy.compiler.Parser.MalicParser;
-import com.mercy.compiler.Type.Type;
 import com.mercy.compiler.Utility.InternalError;
-import com.mercy.compiler.Utility.LibFunction;
+import com.mercy.compiler.Utility.PassStatistics;
 import com.mercy.compiler.Utility.SemanticError;
 import org.antlr.v4.runtime.ANTLRInputStream;
-import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.tree.ParseTree;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.PrintStream;
-import java.util.LinkedList;
+import java.io.*;
+import java.util.Arrays;
 import java.util.List;
 
-import static com.mercy.compiler.Type.Type.*;
-import static com.mercy.compiler.Utility.LibFunction.LIB_PREFIX;
 import static java.lang.System.*;
 
 public class Main {
     public static void main(String[] args) throws Exception {
-        parseOption(args);
+        Option option = new Option();
+        if (!parseOption(args, option)) {
+            printUsage(out);
+            exit(0);
+        }
+
+        if (option.serverFile != null) {
+            new CompileServer(option.serverFile).run();
+            return;
+        }
 
-        InputStream is = new FileInputStream(Option.inFile);
-        PrintStream os = new PrintStream(new FileOutputStream(Option.outFile));
+        if (option.batchInput != null) {
+            int status = new BatchCompiler(option).run(out);
+            if (status != 0)
+                exit(status);
+            return;
+        }
 
-        try {
-            compile(is, os);
+        int status = compileFile(option);
+        if (status != 0)
+            exit(status);
+    }
+
+    // compile option.inFile into option.outFile, return the exit status
+    public static int compileFile(Option option) {
+        try (InputStream is = new FileInputStream(option.inFile);
+             PrintStream os = new PrintStream(new FileOutputStream(option.outFile))) {
+            compile(is, os, option);
         } catch (SemanticError error) {
             err.println(error.getMessage());
-            exit(1);
+            return 1;
         } catch (InternalError error) {
             err.println(error.getMessage());
-            exit(1);
+            return 1;
         } catch (Exception e) {
             e.printStackTrace();
-            exit(1);
+            return 1;
         }
+        return 0;
     }
 
     public static void compile(InputStream sourceCode, PrintStream asmCode) throws Exception {
-        ANTLRInputStream input = new ANTLRInputStream(sourceCode);
-        MalicLexer lexer = new MalicLexer(input);
-        CommonTokenStream tokens = new CommonTokenStream(lexer);
-        MalicParser parser = new MalicParser(tokens);
-        parser.removeErrorListeners();
-        parser.addErrorListener(new ParserErrorListener());
-        ParseTree tree = parser.compilationUnit();
+        compile(sourceCode, asmCode, new Option());
+    }
 
-        ParseTreeWalker walker = new ParseTreeWalker();
-        ASTBuilder listener = new ASTBuilder();
+    public static void compile(InputStream sourceCode, PrintStream asmCode, Option option) throws Exception {
+        if (CompilationCache.usable(option))
+            new CompilationCache(option).compile(sourceCode, asmCode);
+        else
+            runPipeline(sourceCode, asmCode, option);
+    }
+
+    // all state of the compilation is in its context, so compilations on different threads do not interfere
+    static void runPipeline(InputStream sourceCode, PrintStream asmCode, Option option) throws Exception {
+        CompilationContext context = new CompilationContext(option);
+        PassStatistics stats = new PassStatistics(option.printPassTiming || option.statsFile != null, context.scheduler());
 
-        walker.walk(listener, tree);   // 0th pass, CST -> AST
+        AST ast;
+        TwoStageParser parser = new TwoStageParser();
+        if (option.enableStreamingAST) {
+            stats.begin("parse", null);
+            ast = parser.parseAST(new ANTLRInputStream(sourceCode));  // 0th pass, tokens -> AST
+            stats.count("prediction mode", parser.mode());
+            stats.end(null);
+        } else {
+            stats.begin("parse", null);
+            ParseTree tree = parser.parse(new ANTLRInputStream(sourceCode));
+            stats.count("prediction mode", parser.mode());
+            stats.end(null);
 
-        AST ast  = listener.getAST();
-        ast.loadLibrary(getLibrary()); // load library function
-        Type.initializeBuiltinType();
+            stats.begin("ast", null);
+            IterativeParseTreeWalker walker = new IterativeParseTreeWalker();
+            ASTBuilder listener = new ASTBuilder();
+
+            walker.walk(listener, tree);   // 0th pass, CST -> AST
+            ast = listener.getAST();
+            stats.end(null);
+        }
+
+        stats.begin("semantic", null);
+        ast.loadLibrary(context);      // load library function
 
         ast.resolveSymbol();                          // 1st pass, extract info of class and function
         ast.checkType();                              // 2nd pass, check type
-        if (Option.enableOutputIrrelevantElimination) // 3rd pass, eliminate output-irrelevant code
+        if (option.enableOutputIrrelevantElimination) // 3rd pass, eliminate output-irrelevant code
             ast.eliminateOutputIrrelevantNode();
-
-        // disable global allocation when the number of entities is too large (to satisfy the time and memory limit)
-        boolean backupSettingForTest = Option.enableGlobalRegisterAllocation;
-        if (ast.scope().allLocalVariables().size() > 256)
-            Option.enableGlobalRegisterAllocation = false;
+        stats.end(null);
 
         // generate IR
+        stats.begin("ir", null);
         IRBuilder irBuilder = new IRBuilder(ast);
         irBuilder.generateIR();
+        InstructionEmitter emitter = new InstructionEmitter(irBuilder);
+        List<FunctionEntity> functions = emitter.functionEntities();
+        stats.end(functions);
 
         // emit instructions
-        InstructionEmitter emitter = new InstructionEmitter(irBuilder);
+        stats.begin("emit", functions);
         emitter.emit();
+        stats.end(functions);
 
         // build control flow graph
+        stats.begin("cfg", functions);
         ControlFlowAnalyzer cfgBuilder = new ControlFlowAnalyzer(emitter);
         cfgBuilder.buildControlFlow();
+        stats.end(functions);
 
         // optimize data flow
+        stats.begin("dataflow", functions);
         DataFlowAnalyzer dataFlowAnalyzer = new DataFlowAnalyzer(emitter);
         dataFlowAnalyzer.optimize();
+        stats.end(functions);
 
-        if (Option.printInstruction)        // for debug
+        if (option.printInstruction)        // for debug
             printInstructions(emitter.functionEntities());
 
         // allocate register
+        stats.begin("allocate", functions);
         RegisterConfig registerConfig = new RegisterConfig();
-        if (Option.enableGlobalRegisterAllocation) {
+        if (option.enableGlobalRegisterAllocation) {
             Allocator allocator = new Allocator(emitter, registerConfig);
             allocator.allocate();
+            stats.count("allocator", "global");
+            stats.count("spilled nodes", allocator.spilledCount());
+            stats.count("coalesced moves", allocator.coalescedCount());
+            stats.count("over-budget functions", allocator.overBudgetCount());
+            stats.count("linear scan functions", allocator.linearScanCount());
         } else {
             NaiveAllocator allocator = new NaiveAllocator(emitter, registerConfig);
             allocator.allocate();
+            stats.count("allocator", "naive");
         }
+        stats.end(functions);
 
         // translate to x86 nasm
+        stats.begin("translate", functions);
         Translator translator = new Translator(emitter, registerConfig);
-        List<String> asm = translator.translate();
-        for (String s : asm)
-            asmCode.println(s);
-
-        Option.enableGlobalRegisterAllocation = backupSettingForTest;
-    }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(asmCode), 1 << 16);
+        translator.translate(writer);
+        writer.flush();
+        stats.end(functions);
 
-    private static List<Entity> getLibrary() {
-        List<Entity> ret = new LinkedList<>();
-
-        // lib function
-        ret.add(new LibFunction(voidType, "print", "printf", new Type[]{stringType}).getEntity());
-        ret.add(new LibFunction(voidType, "println", "puts", new Type[]{stringType}).getEntity());
-        ret.add(new LibFunction(stringType, "getString", null).getEntity());
-        ret.add(new LibFunction(integerType, "getInt", null).getEntity());
-        ret.add(new LibFunction(stringType, "toString", new Type[]{integerType}).getEntity());
-        ret.add(new LibFunction(integerType, LIB_PREFIX + "printInt", LIB_PREFIX + "printInt", new Type[]{integerType}).getEntity());
-        ret.add(new LibFunction(integerType, LIB_PREFIX + "printlnInt", LIB_PREFIX + "printlnInt", new Type[]{integerType}).getEntity());
-        ret.add(new LibFunction(integerType, LIB_PREFIX + "malloc", "malloc", new Type[]{integerType}).getEntity());
-        // null
-        ret.add(new VariableEntity(null, nullType, "null", null));
-
-        return ret;
+        if (option.printPassTiming)
+            stats.printTable(err);
+        if (option.statsFile != null) {
+            PrintStream statsOut = new PrintStream(new FileOutputStream(option.statsFile));
+            stats.printJSON(statsOut);
+            statsOut.close();
+        }
     }
 
     private static void printInstructions(List<FunctionEntity> functionEntities) {
@@ -148,43 +185,157 @@ public class Main {
         }
     }
 
-    private static void printUsage() {
+    public static void printUsage(PrintStream out) {
         out.println("Usage: java -jar Malic.jar [options]");
         out.println("Options:");
         out.println("  -in   <file> : M* language source code");
         out.println("  -out  <file> : NASM output");
+        out.println("  --time-passes       : print time, allocation and program size of every pass to stderr");
+        out.println("  --stats      <file> : write the statistics of every pass as JSON");
+        out.println("  --alloc-budget <n>  : max interference edges of a function for register allocation,");
+        out.println("                        larger functions are allocated by linear scan (default 2000000, 0 for no limit)");
+        out.println("  --allocator  <name> : register allocator, graph (graph coloring, default) or linear (linear scan)");
+        out.println("  --linear-scan <f,g> : use linear scan for these functions only");
+        out.println("  --jobs       <n>    : number of threads of the backend, which compiles functions in parallel");
+        out.println("                        (default: number of processors, 1 for sequential)");
+        out.println("  --server     <file> : stay resident and compile requests from the client (malicd.bash),");
+        out.println("                        the port of the server is written to <file>. \"-\" to read requests from stdin");
+        out.println("  --batch      <path> : compile every .mx file below a directory, or the files listed in a manifest,");
+        out.println("                        --jobs files at a time, and print a summary");
+        out.println("  --batch-out  <dir>  : output directory of --batch, which mirrors the input tree");
+        out.println("  --cache      <dir>  : reuse the output of a source compiled before with the same options and compiler");
+        out.println("  --cache-size <MB>   : size of the cache, entries used least recently are deleted (default 512, 0 for no limit)");
+        out.println("  --parse-tree        : build the whole parse tree before the AST, instead of the AST while parsing");
+        out.println("  --no-ssa            : skip the global passes on SSA form (constant propagation, value numbering,");
+        out.println("                        loop invariant code motion, strength reduction)");
         out.println("  -help        : print this help page");
-        exit(0);
     }
 
-    private static void parseOption(String []args) {
+    // return false if the usage should be printed instead
+    public static boolean parseOption(String []args, Option option) {
         for (int i = 0; i < args.length; i++) {
             switch (args[i]) {
                 case "--print-ins":
-                    Option.printInstruction = true;
+                    option.printInstruction = true;
                     break;
                 case "--print-remove":
-                    Option.printRemoveInfo = true;
+                    option.printRemoveInfo = true;
+                    break;
+                case "--time-passes":
+                    option.printPassTiming = true;
                     break;
+                case "--stats":
+                    if (i + 1 >= args.length)
+                        err.println("invalid argument for statistics file, ignored");
+                    else
+                        option.statsFile = args[++i];
+                    break;
+                case "--alloc-budget": {
+                    int budget = -1;
+                    try {
+                        if (i + 1 < args.length)
+                            budget = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        // reported below
+                    }
+                    if (budget < 0)
+                        err.println("invalid argument for allocation budget, use default setting instead");
+                    else
+                        option.allocationEdgeBudget = budget;
+                    break;
+                }
+                case "--allocator":
+                    if (i + 1 >= args.length)
+                        err.println("invalid argument for allocator, use default setting instead");
+                    else if (args[++i].equals("linear"))
+                        option.enableLinearScanAllocation = true;
+                    else if (args[i].equals("graph"))
+                        option.enableLinearScanAllocation = false;
+                    else
+                        err.println("unknown allocator " + args[i] + ", use default setting instead");
+                    break;
+                case "--linear-scan":
+                    if (i + 1 >= args.length)
+                        err.println("invalid argument for linear scan functions, ignored");
+                    else
+                        option.linearScanFunctions.addAll(Arrays.asList(args[++i].split(",")));
+                    break;
+                case "--jobs": {
+                    int jobs = 0;
+                    try {
+                        if (i + 1 < args.length)
+                            jobs = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        // reported below
+                    }
+                    if (jobs < 1)
+                        err.println("invalid argument for jobs, use default setting instead");
+                    else
+                        option.backendThreads = jobs;
+                    break;
+                }
                 case "-in":
                     if (i + 1 >= args.length)
                         err.println("invalid argument for input file, use default setting instead");
                     else
-                        Option.inFile = args[++i];
+                        option.inFile = args[++i];
                     break;
                 case "-out":
                     if (i + 1 >= args.length)
                         err.println("invalid argument for output file, use default setting instead");
                     else
-                        Option.outFile = args[++i];
+                        option.outFile = args[++i];
+                    break;
+                case "--server":
+                    if (i + 1 >= args.length)
+                        err.println("invalid argument for server file, ignored");
+                    else
+                        option.serverFile = args[++i];
+                    break;
+                case "--batch":
+                    if (i + 1 >= args.length)
+                        err.println("invalid argument for batch input, ignored");
+                    else
+                        option.batchInput = args[++i];
+                    break;
+                case "--batch-out":
+                    if (i + 1 >= args.length)
+                        err.println("invalid argument for batch output directory, ignored");
+                    else
+                        option.batchOutDir = args[++i];
+                    break;
+                case "--cache":
+                    if (i + 1 >= args.length)
+                        err.println("invalid argument for cache directory, ignored");
+                    else
+                        option.cacheDir = args[++i];
+                    break;
+                case "--cache-size": {
+                    long megabytes = -1;
+                    try {
+                        if (i + 1 < args.length)
+                            megabytes = Long.parseLong(args[++i]);
+                    } catch (NumberFormatException e) {
+                        // reported below
+                    }
+                    if (megabytes < 0 || megabytes > Long.MAX_VALUE >> 20)    // the size in bytes must not overflow
+                        err.println("invalid argument for cache size, use default setting instead");
+                    else
+                        option.cacheSize = megabytes << 20;
+                    break;
+                }
+                case "--parse-tree":
+                    option.enableStreamingAST = false;
+                    break;
+                case "--no-ssa":
+                    option.enableSSA = false;
                     break;
                 case "-help":
-                    printUsage();
+                    return false;
             }
         }
 
-        if (Option.inFile == null || Option.outFile == null) {
-            printUsage();
-        }
+        return option.serverFile != null || (option.batchInput != null && option.batchOutDir != null)
+                || (option.inFile != null && option.outFile != null);
     }
 }
@@ -1,49 +1,91 @@
 package com.mercy.compiler;
 
+import java.util.HashSet;
+import java.util.Set;
+
 /**
  * Created by mercy on 17-5-20.
+ *
+ * Options of one compilation, a new instance has the default settings.
+ * Constants are shared by all compilations.
  */
-public class Option {
+public class Option implements Cloneable {
     /***** CONSTANT *****/
-    public static int REG_SIZE = 8;
-    public static int STACK_VAR_ALIGNMENT_SIZE = 4;
-    public static int CLASS_MEMBER_ALIGNMENT_SIZE = 4;
-    public static int FRAME_ALIGNMENT_SIZE = 16;
+    public static final int REG_SIZE = 8;
+    public static final int STACK_VAR_ALIGNMENT_SIZE = 4;
+    public static final int CLASS_MEMBER_ALIGNMENT_SIZE = 4;
+    public static final int FRAME_ALIGNMENT_SIZE = 16;
 
     /***** I/O *****/
-    public static String inFile;
-    public static String outFile;
+    public String inFile;
+    public String outFile;
+    public String serverFile;   // --server <file>, run as a compile server
+    public String batchInput;   // --batch <dir or manifest>, compile many files
+    public String batchOutDir;  // --batch-out <dir>, outputs of a batch mirror the tree of the inputs
+
+    /***** CACHE *****/
+    public String cacheDir;                      // --cache <dir>, reuse the output of a source compiled before
+    public long cacheSize = 512L << 20;          // --cache-size <MB>, in bytes. 0 for no limit
 
     /***** DEBUG *****/
-    public static boolean printRemoveInfo         = true;
-    public static boolean printInlineInfo         = true;
-    public static boolean printIrrelevantMarkInfo = false;
-    public static boolean printInstruction        = false;
-    public static boolean printBasicBlocks        = false;
+    public boolean printRemoveInfo         = true;
+    public boolean printInlineInfo         = true;
+    public boolean printIrrelevantMarkInfo = false;
+    public boolean printInstruction        = false;
+    public boolean printBasicBlocks        = false;
+
+    public boolean printNaiveAllocatorInfo = true;
+    public boolean printGlobalAllocationInfo = false;
 
-    public static boolean printNaiveAllocatorInfo = true;
-    public static boolean printGlobalAllocationInfo = false;
+    /***** STATISTICS *****/
+    public boolean printPassTiming = false;   // --time-passes
+    public String statsFile;                  // --stats <file>, in JSON
+
+    /***** PARALLELISM *****/
+    // workers of the backend, which compiles functions in parallel. 1 for a sequential backend
+    public int backendThreads = Runtime.getRuntime().availableProcessors();   // --jobs <n>
 
     /***** OPTIMIZATION *****/
-    public static boolean enableGlobalRegisterAllocation = true;
+    public boolean enableGlobalRegisterAllocation = true;
+    // max number of interference edges of a function, larger functions are allocated by linear scan. 0 for no limit
+    public int allocationEdgeBudget = 2000000;   // --alloc-budget <n>
+    public boolean enableLinearScanAllocation = false;         // --allocator linear, for all functions
+    public Set<String> linearScanFunctions = new HashSet<>();  // --linear-scan <f,g,...>
+
+    // front end
+    public boolean enableStreamingAST                = true;    // build the AST while parsing, --parse-tree to disable
 
     // ast-ir level
-    public static boolean enableFunctionInline              = true;
-    public static boolean enableSelfInline                  = true;
-    public static boolean enableInstructionSelection        = true;
-    public static boolean enableCommonAssignElimination     = true;
-    public static boolean enablePrintExpanding              = true;
+    public boolean enableFunctionInline              = true;
+    public boolean enableSelfInline                  = true;
+    public boolean enableInstructionSelection        = true;
+    public boolean enableCommonAssignElimination     = true;
+    public boolean enablePrintExpanding              = true;
 
     // control flow
-    public static boolean enableControlFlowOptimization     = true;
-    public static boolean enableCJumpOptimization           = true;
+    public boolean enableControlFlowOptimization     = true;
+    public boolean enableCJumpOptimization           = true;
 
     // data flow
-    public static boolean enableCommonExpressionElimination = true;
-    public static boolean enableConstantPropagation         = true;
-    public static boolean enableDeadcodeElimination         = true;
+    public boolean enableSSA                         = true;    // global passes on SSA form, --no-ssa to disable
+    public boolean enableCommonExpressionElimination = true;    // by global value numbering on SSA form, else inside blocks
+    public boolean enableLoopInvariantMotion         = true;    // on SSA form
+    public boolean enableStrengthReduction           = true;    // of induction variables, on SSA form
+    public boolean enableConstantPropagation         = true;
+    public boolean enableDeadcodeElimination         = true;
 
     // other
-    public static boolean enableOutputIrrelevantElimination = true;
-    public static boolean enableLeafFunctionOptimization    = true;
-}
\ No newline at end of file
+    public boolean enableOutputIrrelevantElimination = true;
+    public boolean enableLeafFunctionOptimization    = true;
+
+    // the options of another compilation, which can be modified without affecting this one
+    public Option copy() {
+        try {
+            Option ret = (Option) super.clone();
+            ret.linearScanFunctions = new HashSet<>(linearScanFunctions);
+            return ret;
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
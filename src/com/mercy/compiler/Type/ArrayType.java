@@ -12,15 +12,12 @@ public class ArrayType extends Type {
     private Type baseType;
     static final int DEFAULT_POINTER_SIZE = 8;
 
-    static private Scope scope;
     static private ArrayType magicArray = new ArrayType(nullType); // for matching "this" pointer in function call
 
-    static public void initializeBuiltinFunction() {
-        scope = new Scope(true);
+    // builtin functions are created for every compilation, see StringType.builtinOperators
+    static public Scope builtinScope() {
+        Scope scope = new Scope(true);
         scope.insert(new LibFunction(integerType, "size", LIB_PREFIX + "array_size", new Type[]{magicArray}).getEntity());
-    }
-
-    static public Scope scope() {
         return scope;
     }
 
@@ -1,9 +1,14 @@
 package com.mercy.compiler.Type;
 
+import com.mercy.compiler.AST.BinaryOpNode.BinaryOp;
 import com.mercy.compiler.Entity.FunctionEntity;
 import com.mercy.compiler.Entity.Scope;
 import com.mercy.compiler.Utility.LibFunction;
 
+import java.util.EnumMap;
+import java.util.Map;
+
+import static com.mercy.compiler.AST.BinaryOpNode.BinaryOp.*;
 import static com.mercy.compiler.Utility.LibFunction.LIB_PREFIX;
 
 /**
@@ -12,30 +17,29 @@ import static com.mercy.compiler.Utility.LibFunction.LIB_PREFIX;
 public class StringType extends Type {
     static final int DEFAULT_SIZE = 8;
     static final public String STRING_CONSTANT_PREFIX = "__str_constant_";
-    static public FunctionEntity operatorADD, operatorEQ, operatorNE, operatorLT, operatorGT, operatorGE, operatorLE;
-    static private Scope scope;
 
-    static public void initializeBuiltinFunction() {
-        // operators
-        operatorADD = new LibFunction(stringType, LIB_PREFIX + "str_operator_ADD", new Type[]{stringType, stringType}).getEntity();
-        operatorEQ  = new LibFunction(stringType, LIB_PREFIX + "str_operator_EQ", new Type[]{stringType, stringType}).getEntity();
-        operatorNE  = new LibFunction(stringType, LIB_PREFIX + "str_operator_NE", new Type[]{stringType, stringType}).getEntity();
-        operatorLT  = new LibFunction(stringType, LIB_PREFIX + "str_operator_LT", new Type[]{stringType, stringType}).getEntity();
-        operatorGT  = new LibFunction(stringType, LIB_PREFIX + "str_operator_GT", new Type[]{stringType, stringType}).getEntity();
-        operatorLE  = new LibFunction(stringType, LIB_PREFIX + "str_operator_LE", new Type[]{stringType, stringType}).getEntity();
-        operatorGE  = new LibFunction(stringType, LIB_PREFIX + "str_operator_GE", new Type[]{stringType, stringType}).getEntity();
+    // builtin functions are created for every compilation, since the compilation modifies their entities
+    static public Map<BinaryOp, FunctionEntity> builtinOperators() {
+        Map<BinaryOp, FunctionEntity> operators = new EnumMap<>(BinaryOp.class);
+        operators.put(ADD, new LibFunction(stringType, LIB_PREFIX + "str_operator_ADD", new Type[]{stringType, stringType}).getEntity());
+        operators.put(EQ, new LibFunction(stringType, LIB_PREFIX + "str_operator_EQ", new Type[]{stringType, stringType}).getEntity());
+        operators.put(NE, new LibFunction(stringType, LIB_PREFIX + "str_operator_NE", new Type[]{stringType, stringType}).getEntity());
+        operators.put(LT, new LibFunction(stringType, LIB_PREFIX + "str_operator_LT", new Type[]{stringType, stringType}).getEntity());
+        operators.put(GT, new LibFunction(stringType, LIB_PREFIX + "str_operator_GT", new Type[]{stringType, stringType}).getEntity());
+        operators.put(LE, new LibFunction(stringType, LIB_PREFIX + "str_operator_LE", new Type[]{stringType, stringType}).getEntity());
+        operators.put(GE, new LibFunction(stringType, LIB_PREFIX + "str_operator_GE", new Type[]{stringType, stringType}).getEntity());
+        return operators;
+    }
 
-        scope = new Scope(true);
+    static public Scope builtinScope(Map<BinaryOp, FunctionEntity> operators) {
+        Scope scope = new Scope(true);
         scope.insert(new LibFunction(integerType, "length", LIB_PREFIX + "str_length", new Type[]{stringType}).getEntity());
         scope.insert(new LibFunction(stringType, "substring", LIB_PREFIX + "str_substring",new Type[]{stringType, integerType, integerType}).getEntity());
         scope.insert(new LibFunction(integerType, "parseInt", LIB_PREFIX + "str_parseInt",new Type[]{stringType}).getEntity());
         scope.insert(new LibFunction(integerType, "ord", LIB_PREFIX + "str_ord",new Type[]{stringType, integerType}).getEntity());
-        scope.insert(operatorADD);
-        scope.insert(operatorLT);
-        scope.insert(operatorEQ);
-    }
-
-    static public Scope scope() {
+        scope.insert(operators.get(ADD));
+        scope.insert(operators.get(LT));
+        scope.insert(operators.get(EQ));
         return scope;
     }
 
@@ -10,11 +10,6 @@ abstract public class Type {
     static public StringType stringType = new StringType();
     static public NullType nullType = new NullType();
 
-    static public void initializeBuiltinType() {
-        StringType.initializeBuiltinFunction();
-        ArrayType.initializeBuiltinFunction();
-    }
-
     public boolean isVoid() {
         return false;
     }
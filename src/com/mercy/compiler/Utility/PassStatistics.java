@@ -0,0 +1,222 @@
+package com.mercy.compiler.Utility;
+
+import com.mercy.compiler.BackEnd.BasicBlock;
+import com.mercy.compiler.BackEnd.FunctionScheduler;
+import com.mercy.compiler.Entity.FunctionEntity;
+import com.mercy.compiler.INS.Instruction;
+import com.mercy.compiler.INS.Operand.Reference;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * Per-pass statistics of a compilation : wall time, allocated bytes and the size of the program
+ * before and after every pass. Disabled statistics cost nothing.
+ * Allocated bytes are those of the compiling thread and of the tasks its scheduler ran on workers,
+ * so other compilations in the same JVM (--batch, --server) are not counted.
+ */
+public class PassStatistics {
+    public static class Size {
+        public int ir, ins, bbs, refs;
+    }
+
+    public static class Pass {
+        public String name;
+        public long time;      // ns
+        public long bytes;     // -1 if not supported by the JVM
+        public Size before, after;
+    }
+
+    private boolean enabled;
+    private List<Pass> passes = new ArrayList<>();
+    private Map<String, Object> counters = new LinkedHashMap<>();
+
+    private Pass current;
+    private long startTime, startBytes;
+    private FunctionScheduler scheduler;
+    private static final com.sun.management.ThreadMXBean threadBean = threadBean();
+
+    public PassStatistics(boolean enabled, FunctionScheduler scheduler) {
+        this.enabled = enabled;
+        this.scheduler = scheduler;
+        if (enabled && threadBean != null) {
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+            scheduler.countAllocation();
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported())
+            return (com.sun.management.ThreadMXBean) bean;
+        return null;
+    }
+
+    // bytes allocated by the current thread so far, -1 if not supported by the JVM
+    public static long currentThreadAllocatedBytes() {
+        if (threadBean == null)
+            return -1;
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public boolean enabled() {
+        return enabled;
+    }
+
+    // 'functions' can be null when there is no function yet (front end)
+    public void begin(String name, List<FunctionEntity> functions) {
+        if (!enabled)
+            return;
+        current = new Pass();
+        current.name = name;
+        current.before = measure(functions);
+        startBytes = allocatedBytes();
+        startTime = System.nanoTime();
+    }
+
+    public void end(List<FunctionEntity> functions) {
+        if (!enabled)
+            return;
+        current.time = System.nanoTime() - startTime;
+        current.bytes = threadBean == null ? -1 : allocatedBytes() - startBytes;
+        current.after = measure(functions);
+        passes.add(current);
+        current = null;
+    }
+
+    // record a counter of the compilation, e.g. spilled nodes
+    public void count(String name, Object value) {
+        if (enabled)
+            counters.put(name, value);
+    }
+
+    public List<Pass> passes() {
+        return passes;
+    }
+
+    public Map<String, Object> counters() {
+        return counters;
+    }
+
+    // of this thread and of the tasks of this compilation on worker threads
+    private long allocatedBytes() {
+        if (threadBean == null)
+            return 0;
+        return currentThreadAllocatedBytes() + scheduler.workerAllocatedBytes();
+    }
+
+    private Size measure(List<FunctionEntity> functions) {
+        if (functions == null)
+            return null;
+        Size size = new Size();
+        Set<Reference> refs = new HashSet<>();
+        for (FunctionEntity entity : functions) {
+            if (entity.isInlined())
+                continue;
+            if (entity.IR() != null)
+                size.ir += entity.IR().size();
+            if (entity.bbs() != null) {
+                size.bbs += entity.bbs().size();
+                for (BasicBlock basicBlock : entity.bbs()) {
+                    size.ins += basicBlock.ins().size();
+                    for (Instruction ins : basicBlock.ins())
+                        refs.addAll(ins.collectAllRef());
+                }
+            } else if (entity.INS() != null) {
+                size.ins += entity.INS().size();
+                for (Instruction ins : entity.INS())
+                    refs.addAll(ins.collectAllRef());
+            }
+        }
+        size.refs = refs.size();
+        return size;
+    }
+
+    /*
+     * output
+     */
+    public void printTable(PrintStream out) {
+        long totalTime = 0, totalBytes = 0;
+        out.println("===== pass statistics =====");
+        out.printf("%-12s %10s %12s %16s %16s %12s %12s\n",
+                "pass", "time(ms)", "alloc(KB)", "ir", "ins", "bbs", "refs");
+        for (Pass pass : passes) {
+            out.printf("%-12s %10.3f %12s %16s %16s %12s %12s\n", pass.name, pass.time / 1e6,
+                    pass.bytes < 0 ? "-" : String.format("%.1f", pass.bytes / 1024.0),
+                    change(pass, 0), change(pass, 1), change(pass, 2), change(pass, 3));
+            totalTime += pass.time;
+            totalBytes += Math.max(pass.bytes, 0);
+        }
+        out.printf("%-12s %10.3f %12.1f\n", "total", totalTime / 1e6, totalBytes / 1024.0);
+        for (Map.Entry<String, Object> entry : counters.entrySet())
+            out.printf("%-24s %s\n", entry.getKey(), entry.getValue());
+    }
+
+    private String change(Pass pass, int which) {
+        if (pass.after == null)
+            return "-";
+        int after = select(pass.after, which);
+        if (pass.before == null)
+            return Integer.toString(after);
+        int before = select(pass.before, which);
+        return before == after ? Integer.toString(after) : before + "->" + after;
+    }
+
+    private int select(Size size, int which) {
+        switch (which) {
+            case 0:  return size.ir;
+            case 1:  return size.ins;
+            case 2:  return size.bbs;
+            default: return size.refs;
+        }
+    }
+
+    public void printJSON(PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n  \"passes\": [");
+        String gap = "\n";
+        for (Pass pass : passes) {
+            sb.append(gap).append("    {\"name\": ").append(quote(pass.name))
+                    .append(", \"timeNs\": ").append(pass.time)
+                    .append(", \"allocatedBytes\": ").append(pass.bytes)
+                    .append(", \"before\": ").append(sizeJSON(pass.before))
+                    .append(", \"after\": ").append(sizeJSON(pass.after)).append("}");
+            gap = ",\n";
+        }
+        sb.append("\n  ],\n  \"counters\": {");
+        gap = "\n";
+        for (Map.Entry<String, Object> entry : counters.entrySet()) {
+            Object value = entry.getValue();
+            sb.append(gap).append("    ").append(quote(entry.getKey())).append(": ")
+                    .append(value instanceof Number || value instanceof Boolean ? value.toString() : quote(value.toString()));
+            gap = ",\n";
+        }
+        sb.append("\n  }\n}");
+        out.println(sb.toString());
+    }
+
+    private String sizeJSON(Size size) {
+        if (size == null)
+            return "null";
+        return "{\"ir\": " + size.ir + ", \"ins\": " + size.ins + ", \"bbs\": " + size.bbs + ", \"refs\": " + size.refs + "}";
+    }
+
+    private String quote(String str) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : str.toCharArray()) {
+            switch (c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n");  break;
+                default:
+                    if (c < 0x20)
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
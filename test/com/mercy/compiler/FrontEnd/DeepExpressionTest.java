@@ -0,0 +1,85 @@
+package com.mercy.compiler.FrontEnd;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import static com.mercy.compiler.Main.compile;
+import static junit.framework.TestCase.fail;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Expressions 100k operators deep, as a generated source may have, must compile with the default stack.
+ */
+@RunWith(Parameterized.class)
+public class DeepExpressionTest {
+    private static final int DEPTH = 100000;
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> data() {
+        Collection<Object[]> params = new ArrayList<>();
+        params.add(new Object[] {"add", "int main() { int a = 1; int b = 2; int s = "
+                + chain(i -> i % 2 == 0 ? "a" : "b", " + ") + "; println(toString(s)); return 0; }"});
+        params.add(new Object[] {"sub", "int main() { int a = 3; int b = 2; int s = "
+                + chain(i -> i % 3 == 0 ? "a" : "b", " - ") + " + " + chain(i -> "a", " * ")
+                + "; println(toString(s)); return 0; }"});
+        params.add(new Object[] {"logic", "int main() { int a = 1; if ("
+                + chain(i -> "a < " + (i + 2), " && ") + ") println(\"and\"); if ("
+                + chain(i -> "a == " + (i + 5), " || ") + ") println(\"or\"); return 0; }"});
+        params.add(new Object[] {"string", "int main() { int a = 7; print("
+                + chain(i -> i == 0 ? "toString(a)" : "\"x\"", " + ") + "); return 0; }"});
+        // chains of operators which cannot be balanced
+        params.add(new Object[] {"div", "int main() { int a = 1000; int b = 1; int s = "
+                + chain(i -> i == 0 ? "a" : "b", " / ") + "; println(toString(s)); return 0; }"});
+        params.add(new Object[] {"mod", "int main() { int a = 1000; int b = 7; int s = "
+                + chain(i -> i == 0 ? "a" : "b", " % ") + "; println(toString(s)); return 0; }"});
+        params.add(new Object[] {"shift", "int main() { int a = 5; int b = 0; int s = "
+                + chain(i -> i == 0 ? "a" : "b", " << ") + "; println(toString(s)); return 0; }"});
+        params.add(new Object[] {"compare", "int main() { int a = 1000; int b = 1; if ("
+                + chain(i -> i == 0 ? "a" : "b", " / ") + " < a) println(\"lt\"); return 0; }"});
+        return params;
+    }
+
+    private interface Term {
+        String get(int i);
+    }
+
+    private static String chain(Term term, String operator) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < DEPTH; i++) {
+            if (i > 0)
+                sb.append(operator);
+            sb.append(term.get(i));
+        }
+        return sb.toString();
+    }
+
+    private String name;
+    private String source;
+
+    public DeepExpressionTest(String name, String source) {
+        this.name = name;
+        this.source = source;
+    }
+
+    @Test
+    public void testDeepExpression() throws Exception {
+        System.out.println("# deep " + name);
+        System.out.flush();
+
+        ByteArrayOutputStream asm = new ByteArrayOutputStream();
+        try {
+            compile(new ByteArrayInputStream(source.getBytes(StandardCharsets.UTF_8)), new PrintStream(asm));
+        } catch (StackOverflowError error) {
+            fail("stack overflow");
+        }
+        assertTrue(asm.toString().contains("main:"));
+    }
+}